@@ -0,0 +1,56 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allowing a new state to disk with no memory budget, so every one of its sectors is spilled to the journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AllowToDiskBenchmark {
+    @Param({"10", "100"})
+    public int fillPercent;
+    @Param({"NONE", "DEFLATE"})
+    public SectorCodec codec;
+
+    private Path directory;
+    private Path regionPath;
+    private StateJournal journal;
+    private ExternalState state;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("chunky-editor-benchmark-");
+        this.regionPath = this.directory.resolve("r.0.0.mca");
+        Files.write(this.regionPath, SyntheticRegions.generate(this.fillPercent, 2, 0));
+        this.journal = new StateJournal();
+    }
+
+    @Setup(Level.Invocation)
+    public void takeState() throws IOException {
+        this.state = new ExternalState(this.regionPath, new SectorStore(this.codec, this.journal, 0));
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseState() {
+        // releasing frees the journal records, so the journal doesn't grow across invocations
+        this.state.release();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.journal.clear();
+        SyntheticRegions.deleteRecursively(this.directory);
+    }
+
+    @Benchmark
+    public void allowToDisk() {
+        this.state.allowToDisk();
+    }
+}
@@ -0,0 +1,97 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshotting a region and comparing it against previous states, the work done for every region on every snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExternalStateBenchmark {
+    @Param({"10", "50", "100"})
+    public int fillPercent;
+    @Param({"1", "3"})
+    public int sectorsPerChunk;
+    @Param({"NONE", "DEFLATE"})
+    public SectorCodec codec;
+
+    private Path directory;
+    private Path regionPath;
+    private StateJournal journal;
+    private SectorStore store;
+    private ExternalState state;
+    /** Identical content in the same store, compared by sector identity */
+    private ExternalState sameStoreCopy;
+    /** Identical content in another store, compared byte by byte */
+    private ExternalState otherStoreCopy;
+    private InternalState header;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("chunky-editor-benchmark-");
+        this.regionPath = this.directory.resolve("r.0.0.mca");
+        Files.write(this.regionPath, SyntheticRegions.generate(this.fillPercent, this.sectorsPerChunk, 0));
+
+        this.journal = new StateJournal();
+        this.store = new SectorStore(this.codec, this.journal, Long.MAX_VALUE);
+        this.state = new ExternalState(this.regionPath, this.store);
+        this.sameStoreCopy = new ExternalState(this.regionPath, this.store);
+        this.otherStoreCopy = new ExternalState(this.regionPath, new SectorStore(this.codec, this.journal, Long.MAX_VALUE));
+        this.header = this.state.asInternalState();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.state.release();
+        this.sameStoreCopy.release();
+        this.otherStoreCopy.release();
+        this.journal.clear();
+        SyntheticRegions.deleteRecursively(this.directory);
+    }
+
+    /**
+     * Snapshot a region whose sectors are all already in the store, as when it hasn't changed since the previous state
+     */
+    @Benchmark
+    public ExternalState constructDeduplicated() throws IOException {
+        ExternalState externalState = new ExternalState(this.regionPath, this.store);
+        externalState.release();
+        return externalState;
+    }
+
+    /**
+     * Snapshot a region into an empty store, so every sector is hashed, encoded and copied
+     */
+    @Benchmark
+    public ExternalState constructUnique() throws IOException {
+        ExternalState externalState = new ExternalState(this.regionPath, new SectorStore(this.codec, this.journal, Long.MAX_VALUE));
+        externalState.release();
+        return externalState;
+    }
+
+    @Benchmark
+    public boolean dataMatchesSameStore() throws IOException {
+        return this.state.dataMatches(this.sameStoreCopy);
+    }
+
+    @Benchmark
+    public boolean dataMatchesOtherStore() throws IOException {
+        return this.state.dataMatches(this.otherStoreCopy);
+    }
+
+    @Benchmark
+    public boolean headerMatchesInternal() throws IOException {
+        return this.header.headerMatches(this.state);
+    }
+
+    @Benchmark
+    public boolean headerMatchesExternal() throws IOException {
+        return this.state.headerMatches(this.otherStoreCopy);
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The header writes done by deleting chunks and by undoing a deletion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegionWriteBenchmark {
+    /** How many chunks of the region to delete, spread evenly over it */
+    @Param({"1", "32", "1024"})
+    public int deletedChunks;
+
+    private Path directory;
+    private Path regionPath;
+    private byte[] originalHeader;
+    private InternalState deleted;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("chunky-editor-benchmark-");
+        this.regionPath = this.directory.resolve("r.0.0.mca");
+        Files.write(this.regionPath, SyntheticRegions.generate(100, 1, 0));
+
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(this.regionPath)) {
+            this.originalHeader = writer.header();
+            deleteChunks(writer);
+            this.deleted = new InternalState(writer.header(), null);
+        }
+    }
+
+    /**
+     * Every benchmark starts from the original header, so always has something to change
+     */
+    @Setup(Level.Invocation)
+    public void restoreHeader() throws IOException {
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(this.regionPath)) {
+            writer.setHeader(this.originalHeader);
+            writer.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SyntheticRegions.deleteRecursively(this.directory);
+    }
+
+    private void deleteChunks(RegionHeaderWriter writer) {
+        int step = SyntheticRegions.CHUNKS_PER_REGION / this.deletedChunks;
+        for (int i = 0; i < SyntheticRegions.CHUNKS_PER_REGION; i += step) {
+            writer.clearChunk(i & 31, i >> 5);
+        }
+    }
+
+    /**
+     * The per-region work of {@link VanillaWorldState#deleteChunks}
+     */
+    @Benchmark
+    public int deleteChunks() throws IOException {
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(this.regionPath)) {
+            deleteChunks(writer);
+            return writer.commit();
+        }
+    }
+
+    /**
+     * Writing one header only state over another, as undo does
+     */
+    @Benchmark
+    public long writeInternalState() throws IOException {
+        return this.deleted.writeState(this.regionPath);
+    }
+}
@@ -0,0 +1,253 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.ChunkSelection;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
+import io.github.notstirred.chunkyeditor.minecraft.WorldLock;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+
+/**
+ * A headless load test, replaying a long scripted editing session against a large synthetic world.
+ * <p>
+ * The session is a seeded random mix of chunk deletions, undos, redos, and external modifications as Minecraft would
+ * make them, so the undo history grows the way it does for a real user. Configured with system properties, run with
+ * {@code ./gradlew sessionReplay -Preplay.regions=4096}:
+ * </p>
+ * <ul>
+ *     <li>{@code replay.regions} The number of region files in the world</li>
+ *     <li>{@code replay.fillPercent} The percentage of chunks present in each region</li>
+ *     <li>{@code replay.steps} The number of actions in the session</li>
+ *     <li>{@code replay.regionsPerAction} The maximum number of regions each action touches</li>
+ *     <li>{@code replay.chunksPerRegion} The maximum number of chunks deleted from each region</li>
+ *     <li>{@code replay.memoryBudgetMiB} The state memory budget, the editor's default if unset</li>
+ *     <li>{@code replay.seed} The same seed always replays the same session</li>
+ *     <li>{@code replay.directory} Where to create the world, a temporary directory deleted afterwards if unset</li>
+ * </ul>
+ */
+public class SessionReplay {
+    private enum Action {
+        DELETE(45),
+        UNDO(20),
+        REDO(10),
+        EXTERNAL_MODIFICATION(25);
+
+        private final int weight;
+
+        Action(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final int regionCount = Integer.getInteger("replay.regions", 1024);
+    private final int fillPercent = Integer.getInteger("replay.fillPercent", 10);
+    private final int steps = Integer.getInteger("replay.steps", 500);
+    private final int regionsPerAction = Integer.getInteger("replay.regionsPerAction", 16);
+    private final int chunksPerRegion = Integer.getInteger("replay.chunksPerRegion", 64);
+    private final Long memoryBudgetMiB = Long.getLong("replay.memoryBudgetMiB");
+    private final Random random = new Random(Long.getLong("replay.seed", 0));
+
+    private final int worldWidth = (int) Math.ceil(Math.sqrt(this.regionCount));
+    private final List<VanillaRegionPos> regions = new ArrayList<>();
+
+    private final Map<Action, Long> actionCounts = new EnumMap<>(Action.class);
+    private final Map<Action, Long> actionNanos = new EnumMap<>(Action.class);
+    private long peakSampledHeapBytes = 0;
+    private long peakStatesBytes = 0;
+    private long peakDiskBytes = 0;
+    private int peakDiskFiles = 0;
+
+    public static void main(String[] args) throws Exception {
+        String directory = System.getProperty("replay.directory");
+        Path worldDirectory = directory != null ? Path.of(directory) : Files.createTempDirectory("chunky-editor-replay-");
+        try {
+            new SessionReplay().run(worldDirectory);
+        } finally {
+            if (directory == null) {
+                SyntheticRegions.deleteRecursively(worldDirectory);
+            }
+        }
+    }
+
+    private void run(Path worldDirectory) throws IOException, ExecutionException, InterruptedException {
+        Path regionDirectory = worldDirectory.resolve("region");
+        Files.createDirectories(regionDirectory);
+        Files.write(worldDirectory.resolve("session.lock"), new byte[0]);
+
+        long generateStart = System.nanoTime();
+        for (int i = 0; i < this.regionCount; i++) {
+            VanillaRegionPos regionPos = new VanillaRegionPos(i % this.worldWidth, i / this.worldWidth);
+            Files.write(regionDirectory.resolve(regionPos.fileName()), SyntheticRegions.generate(this.fillPercent, 1, i));
+            this.regions.add(regionPos);
+        }
+        System.out.printf("Generated %d regions in %.1fs%n", this.regionCount, seconds(System.nanoTime() - generateStart));
+
+        RegionWorkerPool workerPool = RegionWorkerPool.withDefaultSize();
+        WorldLock worldLock = WorldLock.of(worldDirectory, isFirstConfirm -> true);
+        VanillaWorldState worldState = new VanillaWorldState(worldDirectory, worldLock, workerPool, WorldChangeListener.NONE);
+        VanillaStateTracker stateTracker = worldState.getStateTracker();
+        if (this.memoryBudgetMiB != null) {
+            worldState.setMemoryBudgetBytes(this.memoryBudgetMiB * 1024 * 1024);
+        }
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .toList();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        long sessionStart = System.nanoTime();
+        for (int step = 0; step < this.steps; step++) {
+            Action action = nextAction();
+            long actionStart = System.nanoTime();
+            switch (action) {
+                case DELETE -> worldState.deleteChunks(Runnable::run, pickChunks(), new TaskProgress()).get();
+                case UNDO -> {
+                    if (worldState.undo(Runnable::run, new TaskProgress()) == null) {
+                        continue; // nothing to undo
+                    }
+                }
+                case REDO -> {
+                    if (worldState.redo(Runnable::run, new TaskProgress()) == null) {
+                        continue; // nothing to redo
+                    }
+                }
+                case EXTERNAL_MODIFICATION -> modifyExternally(regionDirectory);
+            }
+            this.actionNanos.merge(action, System.nanoTime() - actionStart, Long::sum);
+            this.actionCounts.merge(action, 1L, Long::sum);
+            sample(stateTracker);
+
+            if ((step + 1) % Math.max(1, this.steps / 10) == 0) {
+                System.out.printf("Step %d/%d: %.1fs, %d states, %dMiB memory, %dMiB disk in %d files%n",
+                        step + 1, this.steps, seconds(System.nanoTime() - sessionStart), stateTracker.stateCount(),
+                        stateTracker.statesSizeBytes() / 1024 / 1024, stateTracker.statesDiskSizeBytes() / 1024 / 1024,
+                        stateTracker.statesDiskFileCount());
+            }
+        }
+        long sessionNanos = System.nanoTime() - sessionStart;
+
+        System.out.printf("%nSession of %d steps on %d regions took %.1fs%n", this.steps, this.regionCount, seconds(sessionNanos));
+        this.actionCounts.forEach((action, count) -> System.out.printf("  %s: %d, mean %.1fms%n",
+                action, count, (double) this.actionNanos.get(action) / count / TimeUnit.MILLISECONDS.toNanos(1)));
+        System.out.printf("Peak heap: %dMiB sampled after each step, %dMiB summed pool peaks%n",
+                this.peakSampledHeapBytes / 1024 / 1024,
+                heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / 1024 / 1024);
+        System.out.printf("States: %d in history, peak %dMiB memory, final %dMiB%n",
+                stateTracker.stateCount(), this.peakStatesBytes / 1024 / 1024, stateTracker.statesSizeBytes() / 1024 / 1024);
+        System.out.printf("Spill files: peak %dMiB in %d files, final %dMiB in %d files%n",
+                this.peakDiskBytes / 1024 / 1024, this.peakDiskFiles,
+                stateTracker.statesDiskSizeBytes() / 1024 / 1024, stateTracker.statesDiskFileCount());
+        System.out.println(EditorMetrics.INSTANCE.getSummary());
+
+        worldState.removeAllStates();
+        workerPool.shutdown();
+    }
+
+    private Action nextAction() {
+        int totalWeight = 0;
+        for (Action action : Action.values()) {
+            totalWeight += action.weight;
+        }
+        int choice = this.random.nextInt(totalWeight);
+        for (Action action : Action.values()) {
+            choice -= action.weight;
+            if (choice < 0) {
+                return action;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return A few neighbouring regions, as a user selects an area on the map
+     */
+    private List<VanillaRegionPos> pickRegions() {
+        VanillaRegionPos corner = this.regions.get(this.random.nextInt(this.regions.size()));
+        int size = (int) Math.ceil(Math.sqrt(1 + this.random.nextInt(this.regionsPerAction)));
+        List<VanillaRegionPos> picked = new ArrayList<>();
+        for (int x = corner.x(); x < corner.x() + size && x < this.worldWidth; x++) {
+            for (int z = corner.z(); z < corner.z() + size; z++) {
+                if (x + z * this.worldWidth < this.regionCount) {
+                    picked.add(new VanillaRegionPos(x, z));
+                }
+            }
+        }
+        return picked;
+    }
+
+    private ChunkSelection pickChunks() {
+        ChunkSelection chunks = new ChunkSelection();
+        for (VanillaRegionPos regionPos : pickRegions()) {
+            int chunkCount = 1 + this.random.nextInt(this.chunksPerRegion);
+            for (int i = 0; i < chunkCount; i++) {
+                int chunkIdx = this.random.nextInt(SyntheticRegions.CHUNKS_PER_REGION);
+                chunks.add((regionPos.x() << 5) + (chunkIdx & 31), (regionPos.z() << 5) + (chunkIdx >> 5));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Save some chunks as Minecraft would, rewriting present chunks in place and regenerating deleted chunks at the
+     * end of the file. Either way the chunk's timestamp is updated.
+     */
+    private void modifyExternally(Path regionDirectory) throws IOException {
+        for (VanillaRegionPos regionPos : pickRegions()) {
+            try (FileChannel channel = FileChannel.open(regionDirectory.resolve(regionPos.fileName()), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                int chunkCount = 1 + this.random.nextInt(Math.max(1, this.chunksPerRegion / 8));
+                for (int i = 0; i < chunkCount; i++) {
+                    int chunkIdx = this.random.nextInt(SyntheticRegions.CHUNKS_PER_REGION);
+                    ByteBuffer location = ByteBuffer.allocate(RegionHeaderWriter.LOCATION_ENTRY_BYTES);
+                    channel.read(location, (long) chunkIdx * RegionHeaderWriter.LOCATION_ENTRY_BYTES);
+                    int sectorOffset = location.getInt(0) >>> 8;
+
+                    byte[] payload = new byte[SECTOR_SIZE_BYTES / 2];
+                    this.random.nextBytes(payload);
+                    if (sectorOffset == 0) {
+                        sectorOffset = (int) ((channel.size() + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES);
+                        ByteBuffer sector = ByteBuffer.allocate(SECTOR_SIZE_BYTES);
+                        sector.putInt(payload.length + 1).put((byte) 2).put(payload).clear();
+                        writeFully(channel, sector, (long) sectorOffset * SECTOR_SIZE_BYTES);
+                        writeFully(channel, ByteBuffer.allocate(4).putInt(0, (sectorOffset << 8) | 1),
+                                (long) chunkIdx * RegionHeaderWriter.LOCATION_ENTRY_BYTES);
+                    } else {
+                        // skip the length and compression type
+                        writeFully(channel, ByteBuffer.wrap(payload, 0, 64), (long) sectorOffset * SECTOR_SIZE_BYTES + 5);
+                    }
+                    writeFully(channel, ByteBuffer.allocate(4).putInt(0, (int) (System.currentTimeMillis() / 1000) + i),
+                            SECTOR_SIZE_BYTES + chunkIdx * 4L);
+                }
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void sample(VanillaStateTracker stateTracker) {
+        this.peakSampledHeapBytes = Math.max(this.peakSampledHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        this.peakStatesBytes = Math.max(this.peakStatesBytes, stateTracker.statesSizeBytes());
+        this.peakDiskBytes = Math.max(this.peakDiskBytes, stateTracker.statesDiskSizeBytes());
+        this.peakDiskFiles = Math.max(this.peakDiskFiles, stateTracker.statesDiskFileCount());
+    }
+
+    private static double seconds(long nanos) {
+        return (double) nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+
+/**
+ * The size accounting done as states are added to and released from a group.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StateGroupBenchmark {
+    @Param({"16", "1024"})
+    public int regionCount;
+
+    private final AtomicLong internalStatesBytes = new AtomicLong();
+    private VanillaRegionPos[] positions;
+    private InternalState[] states;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.positions = new VanillaRegionPos[this.regionCount];
+        this.states = new InternalState[this.regionCount];
+        for (int i = 0; i < this.regionCount; i++) {
+            this.positions[i] = new VanillaRegionPos(i & 31, i >> 5);
+            this.states[i] = new InternalState(new byte[HEADER_SIZE_BYTES], null);
+        }
+    }
+
+    @Benchmark
+    public long putAndRelease() {
+        VanillaStateTracker.StateGroup group = new VanillaStateTracker.StateGroup(this.internalStatesBytes);
+        for (int i = 0; i < this.regionCount; i++) {
+            group.put(this.positions[i], this.states[i]);
+        }
+        long size = this.internalStatesBytes.get();
+        group.release();
+        return size;
+    }
+
+    /**
+     * Replacing every state of a group, as retaking the current snapshot does
+     */
+    @Benchmark
+    public long putReplacing() {
+        VanillaStateTracker.StateGroup group = new VanillaStateTracker.StateGroup(this.internalStatesBytes);
+        for (int i = 0; i < this.regionCount; i++) {
+            group.put(this.positions[i], this.states[i]);
+        }
+        for (int i = 0; i < this.regionCount; i++) {
+            group.put(this.positions[i], this.states[this.regionCount - 1 - i]);
+        }
+        long size = this.internalStatesBytes.get();
+        group.release();
+        return size;
+    }
+}
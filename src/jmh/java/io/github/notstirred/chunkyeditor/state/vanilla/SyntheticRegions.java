@@ -0,0 +1,72 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+
+/**
+ * Generates synthetic Anvil region files for the benchmarks.
+ * <p>
+ * Present chunks are laid out back to back after the header and timestamp table, each starting with the usual length
+ * and zlib compression type. Their payload is random, so like real compressed chunk data it doesn't compress further,
+ * while the padding after it does.
+ * </p>
+ */
+final class SyntheticRegions {
+    static final int CHUNKS_PER_REGION = 1024;
+    private static final byte COMPRESSION_ZLIB = 2;
+
+    private SyntheticRegions() {
+    }
+
+    /**
+     * @param fillPercent The percentage of chunks which are present
+     * @param sectorsPerChunk The number of sectors each present chunk occupies
+     * @param seed The same seed always generates the same region
+     */
+    static byte[] generate(int fillPercent, int sectorsPerChunk, long seed) {
+        Random random = new Random(seed);
+        boolean[] present = new boolean[CHUNKS_PER_REGION];
+        int presentCount = 0;
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            present[i] = random.nextInt(100) < fillPercent;
+            presentCount += present[i] ? 1 : 0;
+        }
+
+        ByteBuffer region = ByteBuffer.allocate((2 + presentCount * sectorsPerChunk) * SECTOR_SIZE_BYTES);
+        int timestamp = 1_600_000_000;
+        int nextSector = 2;
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            region.putInt(i * RegionHeaderWriter.LOCATION_ENTRY_BYTES, (nextSector << 8) | sectorsPerChunk);
+            region.putInt(SECTOR_SIZE_BYTES + i * 4, timestamp + random.nextInt(1_000_000));
+
+            // leave up to half a sector of padding, as real chunks rarely fill their last sector
+            int payloadLength = sectorsPerChunk * SECTOR_SIZE_BYTES - 5 - random.nextInt(SECTOR_SIZE_BYTES / 2);
+            byte[] payload = new byte[payloadLength];
+            random.nextBytes(payload);
+            region.position(nextSector * SECTOR_SIZE_BYTES);
+            region.putInt(payloadLength + 1);
+            region.put(COMPRESSION_ZLIB);
+            region.put(payload);
+            nextSector += sectorsPerChunk;
+        }
+        return region.array();
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
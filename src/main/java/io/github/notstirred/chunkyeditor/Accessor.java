@@ -4,28 +4,29 @@ import se.llbit.chunky.world.Chunk;
 import se.llbit.chunky.world.ChunkPosition;
 import se.llbit.chunky.world.region.MCRegion;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 
 public class Accessor {
-    private static final Method MCRegion$setChunk = findMethod(MCRegion.class, "setChunk", ChunkPosition.class, Chunk.class);
+    // a static final handle is a constant to the JIT, so invoking it costs about as much as a direct call
+    private static final MethodHandle MCRegion$setChunk = findMethod(MCRegion.class, "setChunk", ChunkPosition.class, Chunk.class);
 
     public static void invoke_MCRegion$setChunk(MCRegion region, ChunkPosition pos, Chunk chunk) {
         try {
-            MCRegion$setChunk.invoke(region, pos, chunk);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
+            MCRegion$setChunk.invokeExact(region, pos, chunk);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
         }
     }
 
-    private static Method findMethod(Class<?> clazz, String methodName, Class<?>... params) {
-        Method method;
+    private static MethodHandle findMethod(Class<?> clazz, String methodName, Class<?>... params) {
         try {
-            method = clazz.getDeclaredMethod(methodName, params);
+            Method method = clazz.getDeclaredMethod(methodName, params);
             method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        return method;
     }
 }
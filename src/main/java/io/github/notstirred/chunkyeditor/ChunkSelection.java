@@ -0,0 +1,284 @@
+package io.github.notstirred.chunkyeditor;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import se.llbit.chunky.world.ChunkPosition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A set of chunks, held as a 1024 bit mask for every region with any chunk selected. Selecting millions of chunks costs
+ * a few objects per region, rather than one per chunk.
+ * <p>
+ * A chunk's bit in its region's mask is its index in the region's location table, {@code x + z * 32}, using the
+ * position of the chunk within the region.
+ * </p>
+ * <p>
+ * Not thread safe, but may be read from many threads at once once it's no longer modified.
+ * </p>
+ */
+public class ChunkSelection {
+    public static final int CHUNKS_PER_REGION = 1024;
+    private static final int WORDS_PER_REGION = CHUNKS_PER_REGION / Long.SIZE;
+
+    /** The mask of every region with any chunk selected, keyed by {@link #pack packed} region position */
+    private final Long2ObjectOpenHashMap<long[]> masks = new Long2ObjectOpenHashMap<>();
+    private long chunkCount = 0;
+
+    public ChunkSelection() {
+    }
+
+    public static ChunkSelection of(Collection<ChunkPosition> chunks) {
+        ChunkSelection selection = new ChunkSelection();
+        for (ChunkPosition chunkPos : chunks) {
+            selection.add(chunkPos.x, chunkPos.z);
+        }
+        return selection;
+    }
+
+    public ChunkSelection copy() {
+        ChunkSelection copy = new ChunkSelection();
+        for (Long2ObjectMap.Entry<long[]> entry : this.masks.long2ObjectEntrySet()) {
+            copy.masks.put(entry.getLongKey(), entry.getValue().clone());
+        }
+        copy.chunkCount = this.chunkCount;
+        return copy;
+    }
+
+    public void add(int chunkX, int chunkZ) {
+        long[] mask = this.masks.get(pack(chunkX >> 5, chunkZ >> 5));
+        if (mask == null) {
+            mask = new long[WORDS_PER_REGION];
+            this.masks.put(pack(chunkX >> 5, chunkZ >> 5), mask);
+        }
+        int index = chunkIndex(chunkX, chunkZ);
+        long bit = 1L << index;
+        if ((mask[index >> 6] & bit) == 0) {
+            mask[index >> 6] |= bit;
+            this.chunkCount++;
+        }
+    }
+
+    public void remove(int chunkX, int chunkZ) {
+        long key = pack(chunkX >> 5, chunkZ >> 5);
+        long[] mask = this.masks.get(key);
+        if (mask == null) {
+            return;
+        }
+        int index = chunkIndex(chunkX, chunkZ);
+        long bit = 1L << index;
+        if ((mask[index >> 6] & bit) != 0) {
+            mask[index >> 6] &= ~bit;
+            this.chunkCount--;
+            if (isEmpty(mask)) {
+                this.masks.remove(key);
+            }
+        }
+    }
+
+    public boolean contains(int chunkX, int chunkZ) {
+        long[] mask = this.masks.get(pack(chunkX >> 5, chunkZ >> 5));
+        int index = chunkIndex(chunkX, chunkZ);
+        return mask != null && (mask[index >> 6] & 1L << index) != 0;
+    }
+
+    /**
+     * Select every chunk of the region
+     */
+    public void addRegion(VanillaRegionPos regionPos) {
+        long[] mask = new long[WORDS_PER_REGION];
+        Arrays.fill(mask, -1L);
+        long[] previous = this.masks.put(pack(regionPos.x(), regionPos.z()), mask);
+        this.chunkCount += CHUNKS_PER_REGION - cardinality(previous);
+    }
+
+    /**
+     * Deselect every chunk of the region
+     */
+    public void removeRegion(VanillaRegionPos regionPos) {
+        this.chunkCount -= cardinality(this.masks.remove(pack(regionPos.x(), regionPos.z())));
+    }
+
+    /**
+     * Deselect every chunk outside the regions
+     */
+    public void retainRegions(Collection<VanillaRegionPos> regionPositions) {
+        ChunkSelection retained = new ChunkSelection();
+        for (VanillaRegionPos regionPos : regionPositions) {
+            long key = pack(regionPos.x(), regionPos.z());
+            long[] mask = this.masks.get(key);
+            if (mask != null) {
+                retained.masks.put(key, mask);
+                retained.chunkCount += cardinality(mask);
+            }
+        }
+        this.masks.clear();
+        for (Long2ObjectMap.Entry<long[]> entry : retained.masks.long2ObjectEntrySet()) {
+            this.masks.put(entry.getLongKey(), entry.getValue());
+        }
+        this.chunkCount = retained.chunkCount;
+    }
+
+    /**
+     * Select every chunk selected in either
+     */
+    public void addAll(ChunkSelection other) {
+        for (Long2ObjectMap.Entry<long[]> entry : other.masks.long2ObjectEntrySet()) {
+            long[] mask = this.masks.get(entry.getLongKey());
+            if (mask == null) {
+                this.masks.put(entry.getLongKey(), entry.getValue().clone());
+                this.chunkCount += cardinality(entry.getValue());
+                continue;
+            }
+            long[] otherMask = entry.getValue();
+            for (int i = 0; i < WORDS_PER_REGION; i++) {
+                this.chunkCount += Long.bitCount(otherMask[i] & ~mask[i]);
+                mask[i] |= otherMask[i];
+            }
+        }
+    }
+
+    /**
+     * Deselect every chunk selected in the other
+     */
+    public void removeAll(ChunkSelection other) {
+        for (Long2ObjectMap.Entry<long[]> entry : other.masks.long2ObjectEntrySet()) {
+            long[] mask = this.masks.get(entry.getLongKey());
+            if (mask == null) {
+                continue;
+            }
+            long[] otherMask = entry.getValue();
+            for (int i = 0; i < WORDS_PER_REGION; i++) {
+                this.chunkCount -= Long.bitCount(mask[i] & otherMask[i]);
+                mask[i] &= ~otherMask[i];
+            }
+            if (isEmpty(mask)) {
+                this.masks.remove(entry.getLongKey());
+            }
+        }
+    }
+
+    /**
+     * Deselect every chunk not selected in the other
+     */
+    public void retainAll(ChunkSelection other) {
+        List<VanillaRegionPos> emptied = new ArrayList<>();
+        for (Long2ObjectMap.Entry<long[]> entry : this.masks.long2ObjectEntrySet()) {
+            long[] mask = entry.getValue();
+            long[] otherMask = other.masks.get(entry.getLongKey());
+            for (int i = 0; i < WORDS_PER_REGION; i++) {
+                long retained = otherMask == null ? 0 : mask[i] & otherMask[i];
+                this.chunkCount -= Long.bitCount(mask[i] & ~retained);
+                mask[i] = retained;
+            }
+            if (isEmpty(mask)) {
+                emptied.add(unpack(entry.getLongKey()));
+            }
+        }
+        emptied.forEach(regionPos -> this.masks.remove(pack(regionPos.x(), regionPos.z())));
+    }
+
+    public boolean isEmpty() {
+        return this.chunkCount == 0;
+    }
+
+    public long chunkCount() {
+        return this.chunkCount;
+    }
+
+    /**
+     * @return The number of regions with any chunk selected
+     */
+    public int regionCount() {
+        return this.masks.size();
+    }
+
+    public int chunkCount(VanillaRegionPos regionPos) {
+        return cardinality(this.masks.get(pack(regionPos.x(), regionPos.z())));
+    }
+
+    /**
+     * @return Whether every chunk of the region is selected
+     */
+    public boolean isWholeRegion(VanillaRegionPos regionPos) {
+        return chunkCount(regionPos) == CHUNKS_PER_REGION;
+    }
+
+    /**
+     * @return Every region with any chunk selected
+     */
+    public List<VanillaRegionPos> regions() {
+        List<VanillaRegionPos> regions = new ArrayList<>(this.masks.size());
+        for (Long2ObjectMap.Entry<long[]> entry : this.masks.long2ObjectEntrySet()) {
+            regions.add(unpack(entry.getLongKey()));
+        }
+        return regions;
+    }
+
+    /**
+     * @param consumer Given the index of every selected chunk of the region, {@code x + z * 32}, in ascending order
+     */
+    public void forEachChunkIndex(VanillaRegionPos regionPos, IntConsumer consumer) {
+        long[] mask = this.masks.get(pack(regionPos.x(), regionPos.z()));
+        if (mask == null) {
+            return;
+        }
+        for (int i = 0; i < WORDS_PER_REGION; i++) {
+            long word = mask[i];
+            while (word != 0) {
+                consumer.accept(i * Long.SIZE + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * @param consumer Given the absolute position of every selected chunk of the region
+     */
+    public void forEachChunk(VanillaRegionPos regionPos, ChunkConsumer consumer) {
+        int baseX = regionPos.x() << 5;
+        int baseZ = regionPos.z() << 5;
+        forEachChunkIndex(regionPos, index -> consumer.accept(baseX + (index & 31), baseZ + (index >> 5)));
+    }
+
+    private static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    private static long pack(int regionX, int regionZ) {
+        return (long) regionX << 32 | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private static VanillaRegionPos unpack(long key) {
+        return new VanillaRegionPos((int) (key >> 32), (int) key);
+    }
+
+    private static int cardinality(long[] mask) {
+        if (mask == null) {
+            return 0;
+        }
+        int cardinality = 0;
+        for (long word : mask) {
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    private static boolean isEmpty(long[] mask) {
+        for (long word : mask) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(int chunkX, int chunkZ);
+    }
+}
@@ -1,6 +1,8 @@
 package io.github.notstirred.chunkyeditor;
 
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
 import io.github.notstirred.chunkyeditor.minecraft.WorldLock;
+import io.github.notstirred.chunkyeditor.state.vanilla.RegionWorkerPool;
 import io.github.notstirred.chunkyeditor.ui.EditorTab;
 import io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState;
 import io.github.notstirred.chunkyeditor.ui.util.ConfirmationDialogue;
@@ -32,6 +34,8 @@ public class Editor implements Plugin {
 
     private final Executor editorExecutor = new ThreadPoolExecutor(1, 1, 0L,
             TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(1));
+    /** Region file I/O within an editor task is partitioned across these workers */
+    private final RegionWorkerPool regionWorkerPool = RegionWorkerPool.withDefaultSize();
 
     @Nullable private VanillaWorldState worldState = null;
 
@@ -45,6 +49,9 @@ public class Editor implements Plugin {
     }
 
     @Override public void attach(Chunky chunky) {
+        EditorMetrics.INSTANCE.registerMBeans();
+        EditorMetrics.INSTANCE.startSummaryLog(EditorMetrics.defaultLogIntervalSeconds());
+
         CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
         }, editorExecutor);
 
@@ -79,7 +86,16 @@ public class Editor implements Plugin {
      */
     public void worldLoaded(World world, Boolean isSameWorld) {
         if(!isSameWorld) {
+            VanillaWorldState previousWorldState = this.worldState;
             this.worldState = null;
+            if (previousWorldState != null) {
+                // a running task may still be using it, so it is closed after
+                try {
+                    CompletableFuture.runAsync(previousWorldState::close, this.editorExecutor);
+                } catch (RejectedExecutionException e) {
+                    Log.warn("Failed to close the previous world's undo history, it is closed once no longer used instead", e);
+                }
+            }
         }
     }
 
@@ -90,7 +106,7 @@ public class Editor implements Plugin {
      * @return The world state for the world, or null if the user cancelled, or null if error
      */
     @Nullable
-    private static VanillaWorldState createWorldState(@NotNull World world) {
+    private static VanillaWorldState createWorldState(@NotNull World world, RegionWorkerPool regionWorkerPool) {
         try {
             File worldDirectory = world.getWorldDirectory();
             if (worldDirectory == null) {
@@ -104,7 +120,7 @@ public class Editor implements Plugin {
                return Editor.getScaryUserConfirmation();
             });
             if (worldLock.tryLock()) {
-                return new VanillaWorldState(world, worldLock);
+                return new VanillaWorldState(world, worldLock, regionWorkerPool);
             } else {
                 return null;
             }
@@ -118,7 +134,7 @@ public class Editor implements Plugin {
     public VanillaWorldState getWorldState() {
         if (this.mapLoader != null && this.worldState == null) {
             World world = this.mapLoader.getWorld();
-            this.worldState = createWorldState(world);
+            this.worldState = createWorldState(world, this.regionWorkerPool);
         }
 
         return this.worldState;
@@ -170,7 +186,7 @@ public class Editor implements Plugin {
         if (ButtonType.YES.equals(buttonType)) {
             VanillaWorldState worldStateUnsafe = Editor.INSTANCE.getWorldStateUnsafe();
             assert worldStateUnsafe != null;
-            worldStateUnsafe.getStateTracker().removeAllStates();
+            worldStateUnsafe.removeAllStates();
             return true;
         }
         return ButtonType.NO.equals(buttonType);
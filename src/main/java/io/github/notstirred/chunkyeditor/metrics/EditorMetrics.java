@@ -0,0 +1,235 @@
+package io.github.notstirred.chunkyeditor.metrics;
+
+import io.github.notstirred.chunkyeditor.state.State;
+import io.github.notstirred.chunkyeditor.state.vanilla.DeltaState;
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time and I/O of editor operations goes, shared by every world the editor opens.
+ * <p>
+ * Exposed through JMX under {@value #JMX_DOMAIN}, and optionally logged as a summary on a fixed interval.
+ * Recording is lock-free, so may be done from any region worker.
+ * </p>
+ */
+public class EditorMetrics implements EditorMetricsMXBean {
+    public static final EditorMetrics INSTANCE = new EditorMetrics();
+
+    private static final String JMX_DOMAIN = "io.github.notstirred.chunkyeditor";
+
+    public enum Operation {
+        /** A whole chunk deletion, including its snapshots */
+        DELETE,
+        /** A whole undo */
+        UNDO,
+        /** A whole redo */
+        REDO,
+        /** A whole region compaction, including its snapshots */
+        COMPACT,
+        /** A whole pruning, including the scan and the deletion */
+        PRUNE,
+        /** Clearing the whole undo history */
+        CLEAR,
+        /** Snapshotting a set of regions */
+        SNAPSHOT,
+        /** Snapshotting a single region, including any comparison */
+        SNAPSHOT_REGION,
+        /** Scanning the chunks of a single region for pruning */
+        SCAN_REGION,
+        /** Comparing a region against its previous states */
+        COMPARE,
+        /** Allowing a new state to disk, spilling the least recently used sectors if over budget */
+        SPILL,
+        /** Writing the edited header of a single region */
+        HEADER_WRITE,
+        /** Writing a state back to a single region */
+        REGION_WRITE,
+        /** Updating the map view with the result of an operation, once for each slice of the JavaFX thread it takes */
+        MAP_REFRESH
+    }
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesSpilled = new LongAdder();
+    private final LongAdder regionsProcessed = new LongAdder();
+    private final LongAdder internalStates = new LongAdder();
+    private final LongAdder externalStates = new LongAdder();
+    private final LongAdder deltaStates = new LongAdder();
+
+    private boolean registered = false;
+    @Nullable private ScheduledExecutorService summaryLogger;
+
+    private EditorMetrics() {
+        for (Operation operation : Operation.values()) {
+            this.latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * The interval between logged summaries when none is specified, overridable with
+     * {@code -Dchunky-editor.metricsLogIntervalSeconds=60}. Zero disables the summary.
+     */
+    public static long defaultLogIntervalSeconds() {
+        return Long.getLong("chunky-editor.metricsLogIntervalSeconds", 300);
+    }
+
+    public LatencyHistogram latency(Operation operation) {
+        return this.latencies.get(operation);
+    }
+
+    /**
+     * Record the time since {@code startNanos}, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(Operation operation, long startNanos) {
+        this.latencies.get(operation).recordSince(startNanos);
+    }
+
+    public void addBytesRead(long bytes) {
+        this.bytesRead.add(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        this.bytesWritten.add(bytes);
+    }
+
+    public void addBytesSpilled(long bytes) {
+        this.bytesSpilled.add(bytes);
+    }
+
+    public void addRegionsProcessed(int regions) {
+        this.regionsProcessed.add(regions);
+    }
+
+    /**
+     * Count a newly taken state by kind
+     */
+    public void stateTaken(State state) {
+        if (state.isInternal()) {
+            this.internalStates.increment();
+        } else if (state instanceof DeltaState) {
+            this.deltaStates.increment();
+        } else {
+            this.externalStates.increment();
+        }
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesSpilled() {
+        return this.bytesSpilled.sum();
+    }
+
+    @Override
+    public long getRegionsProcessed() {
+        return this.regionsProcessed.sum();
+    }
+
+    @Override
+    public long getInternalStates() {
+        return this.internalStates.sum();
+    }
+
+    @Override
+    public long getExternalStates() {
+        return this.externalStates.sum();
+    }
+
+    @Override
+    public long getDeltaStates() {
+        return this.deltaStates.sum();
+    }
+
+    @Override
+    public double getInternalStateRatio() {
+        long internal = getInternalStates();
+        long total = internal + getExternalStates() + getDeltaStates();
+        return total == 0 ? 0 : (double) internal / total;
+    }
+
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format(
+                "Editor metrics: %d regions, %dMiB read, %dMiB written, %dMiB spilled, states %d internal / %d external / %d delta (%.0f%% internal)",
+                getRegionsProcessed(),
+                getBytesRead() / 1024 / 1024,
+                getBytesWritten() / 1024 / 1024,
+                getBytesSpilled() / 1024 / 1024,
+                getInternalStates(),
+                getExternalStates(),
+                getDeltaStates(),
+                getInternalStateRatio() * 100));
+        this.latencies.forEach((operation, latency) -> {
+            if (latency.getCount() > 0) {
+                summary.append(String.format("\n  %s: %d ops, mean %.1fms, p50 %.1fms, p99 %.1fms, max %.1fms",
+                        operation, latency.getCount(), latency.getMeanMillis(), latency.getP50Millis(),
+                        latency.getP99Millis(), latency.getMaxMillis()));
+            }
+        });
+        return summary.toString();
+    }
+
+    /**
+     * Register the totals and every operation's latencies with the platform MBean server. Does nothing if already registered.
+     */
+    public synchronized void registerMBeans() {
+        if (this.registered) {
+            return;
+        }
+        this.registered = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=Metrics"));
+            for (Map.Entry<Operation, LatencyHistogram> entry : this.latencies.entrySet()) {
+                server.registerMBean(entry.getValue(), new ObjectName(JMX_DOMAIN + ":type=Latency,operation=" + entry.getKey()));
+            }
+        } catch (JMException e) {
+            Log.warn("Failed to register editor metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Log a summary on a fixed interval, but only if anything happened since the last one. Does nothing if already started.
+     *
+     * @param intervalSeconds The interval between summaries, zero or less disables them
+     */
+    public synchronized void startSummaryLog(long intervalSeconds) {
+        if (this.summaryLogger != null || intervalSeconds <= 0) {
+            return;
+        }
+        this.summaryLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chunky-editor-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastRegionsProcessed = { 0 };
+        this.summaryLogger.scheduleAtFixedRate(() -> {
+            long regionsProcessed = getRegionsProcessed();
+            if (regionsProcessed != lastRegionsProcessed[0]) {
+                lastRegionsProcessed[0] = regionsProcessed;
+                Log.info(getSummary());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+}
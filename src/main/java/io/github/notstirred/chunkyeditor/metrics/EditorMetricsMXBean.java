@@ -0,0 +1,27 @@
+package io.github.notstirred.chunkyeditor.metrics;
+
+/**
+ * Totals across every editor operation, as exposed over JMX
+ */
+public interface EditorMetricsMXBean {
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getBytesSpilled();
+
+    long getRegionsProcessed();
+
+    long getInternalStates();
+
+    long getExternalStates();
+
+    long getDeltaStates();
+
+    /**
+     * @return The fraction of region snapshots which only needed the header, or 0 if there were none
+     */
+    double getInternalStateRatio();
+
+    String getSummary();
+}
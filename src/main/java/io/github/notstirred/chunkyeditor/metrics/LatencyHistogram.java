@@ -0,0 +1,100 @@
+package io.github.notstirred.chunkyeditor.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of operation durations, with power of two nanosecond buckets.
+ * <p>
+ * Percentiles are reported as the upper bound of the bucket they fall in, so are accurate to within a factor of two.
+ * That is plenty to tell a 1ms header write from a 100ms region snapshot.
+ * </p>
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+    /** Bucket {@code i} holds durations in {@code [2^(i-1), 2^i)} nanoseconds, bucket 0 holds zero */
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+        this.count.increment();
+        this.totalNanos.add(nanos);
+        this.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Record the time since {@code startNanos}, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param percentile In the range {@code [0, 1]}
+     * @return The upper bound of the bucket the percentile falls in, or 0 if nothing was recorded
+     */
+    public long percentileNanos(double percentile) {
+        long count = this.count.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, this.maxNanos.get());
+            }
+        }
+        return this.maxNanos.get();
+    }
+
+    @Override
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return toMillis(this.totalNanos.sum());
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = this.count.sum();
+        return count == 0 ? 0 : toMillis(this.totalNanos.sum()) / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return toMillis(this.maxNanos.get());
+    }
+
+    @Override
+    public double getP50Millis() {
+        return toMillis(percentileNanos(0.5));
+    }
+
+    @Override
+    public double getP90Millis() {
+        return toMillis(percentileNanos(0.9));
+    }
+
+    @Override
+    public double getP99Millis() {
+        return toMillis(percentileNanos(0.99));
+    }
+
+    private static double toMillis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.notstirred.chunkyeditor.metrics;
+
+/**
+ * The durations of one kind of editor operation, as exposed over JMX
+ */
+public interface LatencyHistogramMXBean {
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+}
@@ -0,0 +1,213 @@
+package io.github.notstirred.chunkyeditor.minecraft;
+
+import se.llbit.util.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.function.Predicate;
+
+/**
+ * The few fields of a chunk's NBT which chunks can be pruned by.
+ * <p>
+ * Read straight from the decompressed stream, every other tag is skipped over without being parsed or held, so reading
+ * a chunk costs a fixed amount of memory whatever its size. Chunks from before 1.18 keep their fields in a
+ * {@code Level} compound, which is read the same way.
+ * </p>
+ *
+ * @param dataVersion The data version the chunk was last saved with, or {@link #NO_DATA_VERSION} for chunks from before 1.9
+ * @param inhabitedTime The total ticks players have spent near the chunk
+ * @param status The generation status without its namespace, or null for chunks from before 1.13
+ * @param fullyGenerated Whether generation finished. Chunks which don't say are assumed to be fully generated.
+ */
+public record ChunkSummary(int dataVersion, long inhabitedTime, @Nullable String status, boolean fullyGenerated) {
+    public static final int NO_DATA_VERSION = -1;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    /** The same limit Minecraft reads NBT with */
+    private static final int MAX_DEPTH = 512;
+
+    /**
+     * Chunks players have spent less than the given time near, such as those only passed through
+     *
+     * @param ticks 20 ticks is a second
+     */
+    public static Predicate<ChunkSummary> inhabitedTimeBelow(long ticks) {
+        return chunk -> chunk.inhabitedTime < ticks;
+    }
+
+    /**
+     * Chunks whose generation never finished, such as those at the edge of the explored area
+     */
+    public static Predicate<ChunkSummary> notFullyGenerated() {
+        return chunk -> !chunk.fullyGenerated;
+    }
+
+    /**
+     * Chunks last saved by a version of Minecraft in the range, inclusive. Chunks from before 1.9 have a data version
+     * of {@link #NO_DATA_VERSION}.
+     */
+    public static Predicate<ChunkSummary> dataVersionBetween(int min, int max) {
+        return chunk -> chunk.dataVersion >= min && chunk.dataVersion <= max;
+    }
+
+    /**
+     * Read the summary of a chunk, stopping as soon as every field has been found
+     *
+     * @param in The decompressed NBT of the chunk, should be buffered
+     * @throws IOException If the NBT is malformed or cut short
+     */
+    public static ChunkSummary read(DataInputStream in) throws IOException {
+        if (in.readByte() != TAG_COMPOUND) {
+            throw new IOException("Chunk NBT root is not a compound");
+        }
+        skipFully(in, in.readUnsignedShort()); // root name
+
+        Fields fields = new Fields();
+        readCompound(in, fields, true);
+        return fields.toSummary();
+    }
+
+    private static class Fields {
+        int dataVersion = NO_DATA_VERSION;
+        long inhabitedTime = 0;
+        @Nullable String status = null;
+        /** Pre 1.13 chunks have no status, and say whether they were populated instead */
+        int terrainPopulated = -1;
+
+        boolean foundDataVersion = false;
+        boolean foundInhabitedTime = false;
+
+        boolean isComplete() {
+            return this.foundDataVersion && this.foundInhabitedTime && this.status != null;
+        }
+
+        ChunkSummary toSummary() {
+            boolean fullyGenerated;
+            if (this.status != null) {
+                // 1.13 called the final statuses by other names
+                fullyGenerated = this.status.equals("full") || this.status.equals("fullchunk") || this.status.equals("postprocessed");
+            } else {
+                fullyGenerated = this.terrainPopulated != 0;
+            }
+            return new ChunkSummary(this.dataVersion, this.inhabitedTime, this.status, fullyGenerated);
+        }
+    }
+
+    /**
+     * Read the fields out of a compound, skipping everything else. The rest of the compound is left unread once every
+     * field has been found.
+     *
+     * @param isRoot Whether this is the root compound, which holds the data version and may hold a {@code Level}
+     * @return Whether the compound was read to its end
+     */
+    private static boolean readCompound(DataInputStream in, Fields fields, boolean isRoot) throws IOException {
+        int type;
+        while ((type = in.readByte()) != TAG_END) {
+            String name = in.readUTF();
+            if (isRoot && type == TAG_INT && name.equals("DataVersion")) {
+                fields.dataVersion = in.readInt();
+                fields.foundDataVersion = true;
+            } else if (type == TAG_LONG && name.equals("InhabitedTime")) {
+                fields.inhabitedTime = in.readLong();
+                fields.foundInhabitedTime = true;
+            } else if (type == TAG_STRING && name.equals("Status")) {
+                String status = in.readUTF();
+                fields.status = status.startsWith("minecraft:") ? status.substring("minecraft:".length()) : status;
+            } else if (type == TAG_BYTE && name.equals("TerrainPopulated")) {
+                fields.terrainPopulated = in.readByte();
+            } else if (isRoot && type == TAG_COMPOUND && name.equals("Level")) {
+                if (!readCompound(in, fields, false)) {
+                    return false;
+                }
+            } else {
+                skipTag(in, type, 1);
+            }
+            if (fields.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipTag(DataInputStream in, int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Chunk NBT is nested too deeply");
+        }
+        switch (type) {
+            case TAG_BYTE -> skipFully(in, 1);
+            case TAG_SHORT -> skipFully(in, 2);
+            case TAG_INT, TAG_FLOAT -> skipFully(in, 4);
+            case TAG_LONG, TAG_DOUBLE -> skipFully(in, 8);
+            case TAG_BYTE_ARRAY -> skipFully(in, readLength(in));
+            case TAG_STRING -> skipFully(in, in.readUnsignedShort());
+            case TAG_INT_ARRAY -> skipFully(in, readLength(in) * 4L);
+            case TAG_LONG_ARRAY -> skipFully(in, readLength(in) * 8L);
+            case TAG_LIST -> {
+                int elementType = in.readByte();
+                int length = readLength(in);
+                int elementSize = fixedSize(elementType);
+                if (elementSize >= 0) {
+                    skipFully(in, (long) length * elementSize);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        skipTag(in, elementType, depth + 1);
+                    }
+                }
+            }
+            case TAG_COMPOUND -> {
+                int elementType;
+                while ((elementType = in.readByte()) != TAG_END) {
+                    skipFully(in, in.readUnsignedShort());
+                    skipTag(in, elementType, depth + 1);
+                }
+            }
+            default -> throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    /**
+     * @return The size of every tag of the type, or -1 if it varies
+     */
+    private static int fixedSize(int type) {
+        return switch (type) {
+            case TAG_END -> 0; // only in empty lists
+            case TAG_BYTE -> 1;
+            case TAG_SHORT -> 2;
+            case TAG_INT, TAG_FLOAT -> 4;
+            case TAG_LONG, TAG_DOUBLE -> 8;
+            default -> -1;
+        };
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative NBT length " + length);
+        }
+        return length;
+    }
+
+    private static void skipFully(DataInputStream in, long length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes((int) Math.min(length, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException("Chunk NBT ended early");
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -1,15 +1,20 @@
 package io.github.notstirred.chunkyeditor.state;
 
+import io.github.notstirred.chunkyeditor.state.vanilla.RegionFileMetadata;
+import se.llbit.util.annotation.Nullable;
+
 import java.io.IOException;
 import java.nio.file.Path;
 
 public interface State {
     /**
      * Tells the state to write itself to the specified region path.
+     * Anything already matching the file may be skipped, so writing a state the file already matches writes nothing.
      *
      * @param regionPath The path of the region file to write to
+     * @return The number of bytes written, counting any truncated or deleted. Only zero if the file already matched.
      */
-    void writeState(Path regionPath) throws IOException;
+    long writeState(Path regionPath) throws IOException;
 
     /**
      * @param other The other state to compare against
@@ -22,6 +27,14 @@ public interface State {
      */
     boolean isInternal();
 
+    /**
+     * @return The metadata of the region file when this state was taken, or null if it isn't known or can't be trusted
+     */
+    @Nullable
+    default RegionFileMetadata metadata() {
+        return null;
+    }
+
     /**
      * @return The size of the state in-memory
      */
@@ -0,0 +1,109 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.Accessor;
+import io.github.notstirred.chunkyeditor.ChunkSelection;
+import io.github.notstirred.chunkyeditor.Editor;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
+import javafx.application.Platform;
+import se.llbit.chunky.world.Chunk;
+import se.llbit.chunky.world.ChunkPosition;
+import se.llbit.chunky.world.EmptyChunk;
+import se.llbit.chunky.world.World;
+import se.llbit.chunky.world.region.MCRegion;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Queue;
+
+/**
+ * Updates Chunky's map view of the world on the JavaFX thread.
+ * <p>
+ * Updates are queued a region at a time and applied in slices of at most {@link #SLICE_NANOS}, yielding the thread
+ * between slices, so even an operation over hundreds of thousands of chunks never stalls the UI. Updates are applied in
+ * the order the operations completed, so a region restored by an undo is never overwritten by the deletion before it.
+ * </p>
+ */
+public class ChunkyWorldChangeListener implements WorldChangeListener {
+    /** Leaves most of a 60fps frame for the rest of the UI */
+    private static final long SLICE_NANOS = 8_000_000;
+
+    private final World world;
+
+    /** Only accessed on the JavaFX thread */
+    private final Queue<Runnable> pendingRegions = new ArrayDeque<>();
+    private boolean sliceScheduled = false;
+
+    public ChunkyWorldChangeListener(World world) {
+        this.world = world;
+    }
+
+    @Override
+    public void chunksDeleted(ChunkSelection deletedChunks) {
+        Platform.runLater(() -> {
+            for (VanillaRegionPos regionPos : deletedChunks.regions()) {
+                this.pendingRegions.add(() -> regionChunksDeleted(regionPos, deletedChunks));
+            }
+            scheduleSlice();
+        });
+    }
+
+    @Override
+    public void regionsRestored(Collection<VanillaRegionPos> regions) {
+        Platform.runLater(() -> {
+            for (VanillaRegionPos regionPos : regions) {
+                this.pendingRegions.add(() ->
+                        Editor.INSTANCE.mapLoader().regionUpdated(new ChunkPosition(regionPos.x(), regionPos.z())));
+            }
+            scheduleSlice();
+        });
+    }
+
+    /**
+     * Empty the region's deleted chunks in memory, then redraw the region once rather than every chunk
+     */
+    private void regionChunksDeleted(VanillaRegionPos regionPos, ChunkSelection deletedChunks) {
+        ChunkPosition regionChunkPos = new ChunkPosition(regionPos.x(), regionPos.z());
+        if (!(this.world.getRegion(regionChunkPos) instanceof MCRegion region)) {
+            return; // not loaded, so none of its chunks are either
+        }
+        boolean[] changed = {false};
+        deletedChunks.forEachChunk(regionPos, (chunkX, chunkZ) -> {
+            ChunkPosition chunkPos = new ChunkPosition(chunkX, chunkZ);
+            Chunk chunk = region.getChunk(chunkPos);
+            if (!chunk.isEmpty()) {
+                chunk.reset();
+                Accessor.invoke_MCRegion$setChunk(region, chunkPos, EmptyChunk.INSTANCE);
+                this.world.chunkDeleted(chunkPos);
+                changed[0] = true;
+            }
+        });
+        if (changed[0]) {
+            this.world.regionUpdated(regionChunkPos);
+        }
+    }
+
+    private void scheduleSlice() {
+        if (!this.sliceScheduled && !this.pendingRegions.isEmpty()) {
+            this.sliceScheduled = true;
+            Platform.runLater(this::runSlice);
+        }
+    }
+
+    /**
+     * Apply queued region updates until the slice runs out, always at least one so the queue keeps moving
+     */
+    private void runSlice() {
+        this.sliceScheduled = false;
+        long start = System.nanoTime();
+        Runnable update;
+        while ((update = this.pendingRegions.poll()) != null) {
+            update.run();
+            if (System.nanoTime() - start >= SLICE_NANOS) {
+                break;
+            }
+        }
+        EditorMetrics.INSTANCE.recordSince(EditorMetrics.Operation.MAP_REFRESH, start);
+        scheduleSlice();
+    }
+}
@@ -0,0 +1,172 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.util.ResourceClosedException;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A snapshot of an entire region file, stored as only the sectors which changed since a previous {@link ExternalState}
+ * of the same region.
+ * <p>
+ * Any sector not in the delta is read from the base state, which this state keeps alive until it is released.
+ * A delta is always based on a full external state, never on another delta, so a lookup is at most one level deep.
+ * </p>
+ */
+public class DeltaState extends ExternalState {
+    /**
+     * If more than this fraction of the sectors differ from the base, a full external state is kept instead
+     */
+    private static final double MAX_CHANGED_FRACTION = 0.5;
+
+    /** Null once released */
+    @Nullable private ExternalState base;
+    /** Sorted indices of the sectors which differ from the base */
+    private final int[] changedIndices;
+    /** Null once released */
+    @Nullable private SectorStore.Sector[] changedSectors;
+
+    private DeltaState(ExternalState base, int stateLength, @Nullable RegionFileMetadata metadata,
+                       int[] changedIndices, SectorStore.Sector[] changedSectors) {
+        super(stateLength, base.store, metadata);
+        this.base = base;
+        this.changedIndices = changedIndices;
+        this.changedSectors = changedSectors;
+    }
+
+    /**
+     * Create a delta holding the same content as {@code next}, based on {@code previous}.
+     * The caller still owns {@code next} and must release it if it's replaced by the delta.
+     *
+     * @return Null if too much of the state changed for a delta to be worthwhile
+     */
+    @Nullable
+    static DeltaState between(ExternalState previous, ExternalState next) throws IOException {
+        ExternalState base = previous instanceof DeltaState previousDelta ? previousDelta.base() : previous;
+        assert !(base instanceof DeltaState) : "A delta state was based on another delta";
+        if (base.store != next.store) {
+            return null;
+        }
+
+        int sectorCount = next.sectorCount();
+        if (sectorCount == 0) {
+            return null; // nothing to share, and an empty state may stand for a missing file
+        }
+        int baseSectorCount = base.sectorCount();
+        int[] changedIndices = new int[sectorCount];
+        int changedCount = 0;
+        for (int i = 0; i < sectorCount; i++) {
+            if (i >= baseSectorCount || base.sectorAt(i) != next.sectorAt(i)) {
+                changedIndices[changedCount++] = i;
+            }
+        }
+        if (changedCount > sectorCount * MAX_CHANGED_FRACTION) {
+            return null;
+        }
+
+        SectorStore.Sector[] changedSectors = new SectorStore.Sector[changedCount];
+        for (int i = 0; i < changedCount; i++) {
+            changedSectors[i] = next.sectorAt(changedIndices[i]);
+            next.store.retain(changedSectors[i]);
+        }
+        base.retain();
+        return new DeltaState(base, next.stateLength, next.metadata(), Arrays.copyOf(changedIndices, changedCount), changedSectors);
+    }
+
+    private synchronized ExternalState base() throws ResourceClosedException {
+        ExternalState base = this.base;
+        if (base == null) {
+            throw new ResourceClosedException("Attempted to access a released delta state object!");
+        }
+        return base;
+    }
+
+    private synchronized SectorStore.Sector[] changedSectors() throws ResourceClosedException {
+        SectorStore.Sector[] changedSectors = this.changedSectors;
+        if (changedSectors == null) {
+            throw new ResourceClosedException("Attempted to access a released delta state object!");
+        }
+        return changedSectors;
+    }
+
+    /**
+     * @return The number of sectors stored by this delta, rather than read from the base
+     */
+    public int changedSectorCount() {
+        return this.changedIndices.length;
+    }
+
+    @Override
+    SectorStore.Sector sectorAt(int sectorIdx) throws IOException {
+        int changedIdx = Arrays.binarySearch(this.changedIndices, sectorIdx);
+        if (changedIdx >= 0) {
+            return changedSectors()[changedIdx];
+        }
+        return base().sectorAt(sectorIdx);
+    }
+
+    /**
+     * Only the sectors held by the delta are counted, the base state reports its own.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        SectorStore.Sector[] changedSectors = this.changedSectors;
+        if (changedSectors != null) {
+            for (SectorStore.Sector sector : changedSectors) {
+                size += sector.isResident() ? sector.storedLength : 0;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Only the sectors held by the delta are counted, the base state reports its own.
+     */
+    @Override
+    public int onDiskSize() {
+        int size = 0;
+        SectorStore.Sector[] changedSectors = this.changedSectors;
+        if (changedSectors != null) {
+            for (SectorStore.Sector sector : changedSectors) {
+                size += sector.isOnDisk() ? sector.storedLength : 0;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void allowToDisk() {
+        if (this.changedSectors == null) {
+            throw new IllegalStateException("Attempted to access a released delta state object!");
+        }
+        for (SectorStore.Sector sector : this.changedSectors) {
+            this.store.markSpillable(sector);
+        }
+        this.store.enforceBudget();
+    }
+
+    /**
+     * Shared ownership is counted as for any external state, the delta's sectors and its base are only released by the
+     * last owner.
+     */
+    @Override
+    public synchronized void release() {
+        super.release();
+        if (!isReleased()) {
+            return;
+        }
+        SectorStore.Sector[] changedSectors = this.changedSectors;
+        ExternalState base = this.base;
+        this.changedSectors = null;
+        this.base = null;
+        if (changedSectors == null || base == null) {
+            return;
+        }
+        for (SectorStore.Sector sector : changedSectors) {
+            this.store.release(sector);
+        }
+        base.release();
+    }
+}
@@ -1,17 +1,19 @@
 package io.github.notstirred.chunkyeditor.state.vanilla;
 
-import io.github.notstirred.chunkyeditor.Editor;
 import io.github.notstirred.chunkyeditor.state.State;
 import io.github.notstirred.chunkyeditor.util.ResourceClosedException;
-import se.llbit.log.Log;
 import se.llbit.util.annotation.Nullable;
 
 import java.io.*;
-import java.lang.ref.Cleaner;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
 import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
 
 /**
@@ -20,59 +22,235 @@ import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.
  * "External" here specifies that some of the non-header data in the region file was changed, so we take the safe approach
  * and snapshot the whole thing for the user.
  * </p>
+ * <p>
+ * The content is held as sectors in the tracker's {@link SectorStore}, so sectors which are unchanged between snapshots
+ * are shared rather than copied.
+ * </p>
+ * <p>
+ * Taking a snapshot is not free: the whole file is read once, streamed through a pooled 256KiB buffer, and every sector
+ * of it is hashed to find those already in the store. The file is never held in a single array, but neither is it
+ * zero-copy, as every byte passes through the buffer and new sectors are copied out of it, or written from it to disk.
+ * </p>
  */
 public class ExternalState implements State {
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * SECTOR_SIZE_BYTES]);
+    private static final ThreadLocal<byte[]> COMPARE_BUFFER_A = ThreadLocal.withInitial(() -> new byte[SECTOR_SIZE_BYTES]);
+    private static final ThreadLocal<byte[]> COMPARE_BUFFER_B = ThreadLocal.withInitial(() -> new byte[SECTOR_SIZE_BYTES]);
+
     final int stateLength;
-    @Nullable private byte[] memState;
-    @Nullable private File diskState;
-    @Nullable private Cleaner.Cleanable diskCleaner;
+    final SectorStore store;
+    @Nullable private final RegionFileMetadata metadata;
+    /** Null once released, or for subclasses which provide their sectors differently or later */
+    @Nullable private SectorStore.Sector[] sectors;
+    /** The number of owners of this state, a {@link DeltaState} shares ownership of its base */
+    private int references = 1;
+
+    ExternalState(Path regionPath, SectorStore store) throws IOException {
+        this.metadata = RegionFileMetadata.read(regionPath);
+        this.store = store;
+        this.sectors = internFile(regionPath, store);
+        this.stateLength = length(this.sectors);
+    }
+
+    /**
+     * Stream a file through a pooled buffer into the store. Only sectors new to the store are kept, and those beyond its
+     * memory budget go straight from the buffer to disk.
+     *
+     * @return References to every sector of the file, owned by the caller
+     */
+    static SectorStore.Sector[] internFile(Path path, SectorStore store) throws IOException {
+        byte[] buffer = READ_BUFFER.get();
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (true) {
+                int read = readFully(channel, buffer);
+                store.internAll(buffer, read, sectors);
+                if (read < buffer.length) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            sectors.forEach(store::release);
+            throw e;
+        }
+        return sectors.toArray(new SectorStore.Sector[0]);
+    }
+
+    /**
+     * @return The length of the content of the sectors, only the last of which may be partial
+     */
+    static int length(SectorStore.Sector[] sectors) {
+        if (sectors.length == 0) {
+            return 0;
+        }
+        return (sectors.length - 1) * SECTOR_SIZE_BYTES + sectors[sectors.length - 1].length;
+    }
+
+    /**
+     * @return The number of bytes read, less than the buffer length only at the end of the file
+     */
+    private static int readFully(FileChannel channel, byte[] buffer) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer) < 0) {
+                break;
+            }
+        }
+        return byteBuffer.position();
+    }
+
+    ExternalState(int stateLength, SectorStore store, @Nullable RegionFileMetadata metadata) {
+        this(stateLength, store, metadata, null);
+    }
+
+    /**
+     * @param sectors References to the sectors of the state, now owned by this state
+     */
+    ExternalState(int stateLength, SectorStore store, @Nullable RegionFileMetadata metadata, @Nullable SectorStore.Sector[] sectors) {
+        this.stateLength = stateLength;
+        this.store = store;
+        this.metadata = metadata;
+        this.sectors = sectors;
+    }
+
+    /**
+     * @throws ResourceClosedException
+     *         If the state object was closed before this call
+     */
+    synchronized SectorStore.Sector[] sectors() throws IOException {
+        SectorStore.Sector[] sectors = this.sectors;
+        if (sectors == null) {
+            throw new ResourceClosedException("Attempted to access a released external state object!");
+        }
+        return sectors;
+    }
+
+    /**
+     * Provide the sectors of a state constructed without them
+     *
+     * @param sectors References to the sectors of the state, now owned by this state
+     */
+    synchronized void setSectors(SectorStore.Sector[] sectors) {
+        if (this.sectors != null || this.references <= 0) {
+            throw new IllegalStateException("Attempted to replace the sectors of an external state object!");
+        }
+        this.sectors = sectors;
+    }
+
+    int sectorCount() {
+        return (this.stateLength + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES;
+    }
+
+    /**
+     * @throws ResourceClosedException
+     *         If the state object was closed before this call
+     */
+    SectorStore.Sector sectorAt(int sectorIdx) throws IOException {
+        return sectors()[sectorIdx];
+    }
 
-    ExternalState(Path regionPath) throws IOException {
-        this.memState = Files.readAllBytes(regionPath);
-        this.stateLength = this.memState.length;
-        this.diskState = null;
+    /**
+     * Share ownership of this state, it is only released once every owner has released it.
+     */
+    synchronized void retain() {
+        if (this.references <= 0) {
+            throw new IllegalStateException("Attempted to retain a released external state object!");
+        }
+        this.references++;
     }
 
     /**
      * @param toIndex A value of -1 signifies to the end of the state
      * @throws IOException
      *         If a file read or seek fails or is incomplete
-     * @throws FileNotFoundException
-     *         If the state file is not found
      * @throws ResourceClosedException
      *         If the state object was closed before this call
      */
-    synchronized byte[] getStateRegion(int fromIndex, int toIndex) throws IOException {
+    byte[] getStateRegion(int fromIndex, int toIndex) throws IOException {
         if (toIndex == -1) {
             toIndex = stateLength;
         }
-        if (memState != null) {
-            return Arrays.copyOfRange(memState, fromIndex, toIndex);
-        }
-        if (diskState != null) {
-            byte[] out = new byte[toIndex - fromIndex];
-            try (var raf = new RandomAccessFile(diskState, "r")) {
-                raf.seek(fromIndex);
-                int data = raf.read(out);
-                if (data != out.length) {
-                    throw new IOException(String.format("Failed to read state region. Only read %d bytes, " +
-                            "expected to read from %d to %d.", data, fromIndex, toIndex));
-                }
-                return out;
+        int sectorCount = sectorCount();
+
+        byte[] out = new byte[toIndex - fromIndex];
+        int position = fromIndex;
+        while (position < toIndex) {
+            int sectorIdx = position / SECTOR_SIZE_BYTES;
+            int sectorOffset = position % SECTOR_SIZE_BYTES;
+            if (sectorIdx >= sectorCount) {
+                break; // past the end of the state, zero filled like Arrays.copyOfRange
+            }
+            SectorStore.Sector sector = sectorAt(sectorIdx);
+            if (sectorOffset >= sector.length) {
+                break;
             }
+            int length = Math.min(sector.length - sectorOffset, toIndex - position);
+            this.store.read(sector, sectorOffset, out, position - fromIndex, length);
+            position += length;
         }
-        throw new ResourceClosedException("Attempted to access a released external state object!");
+        return out;
     }
 
-    public void writeState(Path regionPath) throws IOException {
-        try (FileOutputStream file = new FileOutputStream(regionPath.toFile())) {
-            byte[] state = memState;
-            if (state != null) {
-                file.write(state);
-            } else {
-                file.write(getStateRegion(0, -1));
+    /**
+     * Write only the sectors which differ from the region file, then truncate anything past the end of the state.
+     * Undoing a deletion typically leaves only the header to be written.
+     *
+     * @return The bytes written, plus any truncated
+     */
+    public long writeState(Path regionPath) throws IOException {
+        byte[] buffer = READ_BUFFER.get();
+        int batchSectors = buffer.length / SECTOR_SIZE_BYTES;
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(regionPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            for (int batchStart = 0, sectorCount = sectorCount(); batchStart < sectorCount; batchStart += batchSectors) {
+                // reads are sequential, writes are positional so don't move the channel
+                int read = readFully(channel, buffer);
+                Arrays.fill(buffer, read, buffer.length, (byte) 0);
+
+                // adjacent differing sectors are copied over the file's data in the buffer, and written together
+                int runStart = -1;
+                int runEnd = 0;
+                for (int i = 0, batchEnd = Math.min(batchSectors, sectorCount - batchStart); i < batchEnd; i++) {
+                    int offset = i * SECTOR_SIZE_BYTES;
+                    SectorStore.Sector sector = sectorAt(batchStart + i);
+                    // a sector not entirely within the file must be written, even if it would read as zero
+                    if (offset + sector.length <= read && sectorEquals(batchStart + i, buffer, offset)) {
+                        if (runStart != -1) {
+                            written += writeFully(channel, buffer, runStart, runEnd, (long) batchStart * SECTOR_SIZE_BYTES);
+                            runStart = -1;
+                        }
+                        continue;
+                    }
+                    this.store.read(sector, 0, buffer, offset, sector.length);
+                    if (runStart == -1) {
+                        runStart = offset;
+                    }
+                    runEnd = offset + sector.length;
+                }
+                if (runStart != -1) {
+                    written += writeFully(channel, buffer, runStart, runEnd, (long) batchStart * SECTOR_SIZE_BYTES);
+                }
+            }
+            long size = channel.size();
+            if (size > this.stateLength) {
+                channel.truncate(this.stateLength);
+                // the file changed even if no sector differed, such as undoing a compaction
+                written += size - this.stateLength;
             }
         }
+        return written;
+    }
+
+    /**
+     * @param filePosition The position in the file of the start of the buffer
+     * @return The number of bytes written
+     */
+    private static int writeFully(FileChannel channel, byte[] buffer, int from, int to, long filePosition) throws IOException {
+        ByteBuffer write = ByteBuffer.wrap(buffer, from, to - from);
+        while (write.hasRemaining()) {
+            channel.write(write, filePosition + write.position());
+        }
+        return to - from;
     }
 
     @Override
@@ -84,10 +262,10 @@ public class ExternalState implements State {
     public boolean headerMatches(State other) throws IOException {
         if (other.isInternal()) {
             InternalState that = (InternalState) other;
-            return Arrays.equals(this.getStateRegion(0, HEADER_SIZE_BYTES), 0, HEADER_SIZE_BYTES, that.state, 0, HEADER_SIZE_BYTES);
+            return this.sectorEquals(0, that.header(), 0);
         } else {
             ExternalState that = (ExternalState) other;
-            return Arrays.equals(this.getStateRegion(0, HEADER_SIZE_BYTES), that.getStateRegion(0, HEADER_SIZE_BYTES));
+            return this.sectorEquals(0, that);
         }
     }
 
@@ -99,7 +277,105 @@ public class ExternalState implements State {
             return false;
         }
         ExternalState that = ((ExternalState) other);
-        return Arrays.equals(this.getStateRegion(HEADER_SIZE_BYTES, -1), that.getStateRegion(HEADER_SIZE_BYTES, -1));
+        if (this.stateLength != that.stateLength) {
+            return false;
+        }
+        for (int i = HEADER_SIZE_BYTES / SECTOR_SIZE_BYTES, sectorCount = sectorCount(); i < sectorCount; i++) {
+            if (!sectorEquals(i, that)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare every sector of the two states. A sector past the end of one state is considered to differ, unless it
+     * is past the end of both.
+     *
+     * @return The ranges of sectors which differ, in ascending order. Adjacent differing sectors are merged.
+     */
+    public List<SectorRange> differingSectors(ExternalState other) throws IOException {
+        List<SectorRange> ranges = new ArrayList<>();
+        int thisSectorCount = this.sectorCount();
+        int thatSectorCount = other.sectorCount();
+        int rangeStart = -1;
+        for (int i = 0, sectorCount = Math.max(thisSectorCount, thatSectorCount); i < sectorCount; i++) {
+            boolean differs = i >= thisSectorCount || i >= thatSectorCount || !sectorEquals(i, other);
+            if (differs && rangeStart == -1) {
+                rangeStart = i;
+            } else if (!differs && rangeStart != -1) {
+                ranges.add(new SectorRange(rangeStart, i));
+                rangeStart = -1;
+            }
+        }
+        if (rangeStart != -1) {
+            ranges.add(new SectorRange(rangeStart, Math.max(thisSectorCount, thatSectorCount)));
+        }
+        return ranges;
+    }
+
+    /**
+     * Compare a single sector of both states, without reading either if they share a store.
+     * Past the end of a state it is considered zero filled.
+     */
+    boolean sectorEquals(int sectorIdx, ExternalState other) throws IOException {
+        if (this.store == other.store && sectorIdx < this.sectorCount() && sectorIdx < other.sectorCount()) {
+            // sectors of the same store are equal only if they are the same object
+            return this.sectorAt(sectorIdx) == other.sectorAt(sectorIdx);
+        }
+        byte[] thatSector = COMPARE_BUFFER_B.get();
+        other.readSectorPadded(sectorIdx, thatSector);
+        return sectorEquals(sectorIdx, thatSector, 0);
+    }
+
+    /**
+     * Compare a single sector against {@link SectorStore#SECTOR_SIZE_BYTES} bytes of an array.
+     * Past the end of the state it is considered zero filled.
+     */
+    boolean sectorEquals(int sectorIdx, byte[] data, int offset) throws IOException {
+        byte[] thisSector = COMPARE_BUFFER_A.get();
+        readSectorPadded(sectorIdx, thisSector);
+        return Arrays.mismatch(thisSector, 0, SECTOR_SIZE_BYTES, data, offset, offset + SECTOR_SIZE_BYTES) == -1;
+    }
+
+    /**
+     * Read a whole sector, zero filling anything past the end of the state
+     */
+    private void readSectorPadded(int sectorIdx, byte[] out) throws IOException {
+        int length = 0;
+        if (sectorIdx < sectorCount()) {
+            SectorStore.Sector sector = sectorAt(sectorIdx);
+            this.store.read(sector, 0, out, 0, sector.length);
+            length = sector.length;
+        }
+        Arrays.fill(out, length, SECTOR_SIZE_BYTES, (byte) 0);
+    }
+
+    /**
+     * A state of the region with the header of {@code header}, and everything else as in this state. Only the header is
+     * interned, every other sector is shared with this state.
+     *
+     * @return A new state, owned by the caller
+     */
+    ExternalState withHeader(InternalState header) throws IOException {
+        SectorStore.Sector[] sectors = new SectorStore.Sector[sectorCount()];
+        if (sectors.length == 0 || sectorAt(0).length != HEADER_SIZE_BYTES) {
+            throw new IOException("External state is too short to have a header");
+        }
+        int held = 0;
+        try {
+            sectors[0] = this.store.intern(header.header(), 0, HEADER_SIZE_BYTES);
+            for (held = 1; held < sectors.length; held++) {
+                sectors[held] = sectorAt(held);
+                this.store.retain(sectors[held]);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < held; i++) {
+                this.store.release(sectors[i]);
+            }
+            throw e;
+        }
+        return new ExternalState(this.stateLength, this.store, header.metadata(), sectors);
     }
 
     /**
@@ -109,57 +385,87 @@ public class ExternalState implements State {
         return new InternalState(this);
     }
 
+    @Nullable
+    @Override
+    public RegionFileMetadata metadata() {
+        return this.metadata;
+    }
+
+    /**
+     * Sectors shared with other states are counted in full, see {@link SectorStore#residentBytes()} for the actual usage.
+     */
     @Override
     public int size() {
-        return memState != null ? stateLength : 0;
+        int size = 0;
+        SectorStore.Sector[] sectors = this.sectors;
+        if (sectors != null) {
+            for (SectorStore.Sector sector : sectors) {
+                size += sector.isResident() ? sector.storedLength : 0;
+            }
+        }
+        return size;
     }
 
+    /**
+     * Sectors shared with other states are counted in full, see {@link SectorStore#diskBytes()} for the actual usage.
+     */
     @Override
     public int onDiskSize() {
-        return diskState != null ? stateLength : 0;
+        int size = 0;
+        SectorStore.Sector[] sectors = this.sectors;
+        if (sectors != null) {
+            for (SectorStore.Sector sector : sectors) {
+                size += sector.isOnDisk() ? sector.storedLength : 0;
+            }
+        }
+        return size;
     }
 
     @Override
     public synchronized void allowToDisk() {
-        if (memState == null) {
-            if (diskState == null) {
-                throw new IllegalStateException("Attempted to access a released external state object!");
-            } else {
-                // Already on disk
-                return;
-            }
+        if (this.sectors == null) {
+            throw new IllegalStateException("Attempted to access a released external state object!");
         }
-
-        try {
-            File tempFile = File.createTempFile("chunky-editor-", ".bin");
-            tempFile.deleteOnExit();
-            diskCleaner = Editor.CLEANER.register(this, () -> {
-                if (!tempFile.delete()) {
-                    Log.info("Failed to delete temporary file: " + tempFile);
-                }
-            });
-
-            try (var os = Files.newOutputStream(tempFile.toPath())) {
-                os.write(memState);
-            }
-            diskState = tempFile;
-        } catch (IOException e) {
-            diskState = null;
-            Log.warn("Failed to commit external state to disk", e);
-            return;
+        for (SectorStore.Sector sector : this.sectors) {
+            this.store.markSpillable(sector);
         }
-        memState = null;
+        this.store.enforceBudget();
     }
 
     @Override
     public synchronized void release() {
-        var state = diskState;
-        memState = null;
-        diskState = null;
-        if (state == null) {
+        if (this.references <= 0 || --this.references > 0) {
             return;
         }
-        diskCleaner.clean();
+        SectorStore.Sector[] sectors = this.sectors;
+        this.sectors = null;
+        if (sectors != null) {
+            for (SectorStore.Sector sector : sectors) {
+                this.store.release(sector);
+            }
+        }
     }
-}
 
+    /**
+     * @return Whether every owner has released the state
+     */
+    synchronized boolean isReleased() {
+        return this.references <= 0;
+    }
+
+    /**
+     * A range of sectors within a state
+     *
+     * @param fromSector The first sector in the range, inclusive
+     * @param toSector The last sector in the range, exclusive
+     */
+    public record SectorRange(int fromSector, int toSector) {
+        public long fromByte() {
+            return (long) this.fromSector * SECTOR_SIZE_BYTES;
+        }
+
+        public long toByte() {
+            return (long) this.toSector * SECTOR_SIZE_BYTES;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
+import io.github.notstirred.chunkyeditor.state.State;
+import io.github.notstirred.chunkyeditor.util.MemoryPressure;
+import io.github.notstirred.chunkyeditor.util.TemporaryDirectories;
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the undo histories of every kind of region file in a world are kept. Every kind shares one sector store under
+ * one memory budget, one journal, and when persisted one index, so the histories are always saved together.
+ * <p>
+ * A persisted history is loaded when the storage is created. Each kind's {@link VanillaStateTracker} takes its part as
+ * it {@link #register registers}, and a kind with no part of its own, such as one the world didn't have when the
+ * history was saved, starts with a step for every step of the others, in which it has nothing to undo.
+ * </p>
+ */
+class HistoryStorage {
+    private final Path worldDirectory;
+    /** Where the history is persisted, null if it isn't */
+    @Nullable private final Path historyDirectory;
+    /** Every state spilled to disk is appended to this */
+    private final StateJournal journal;
+    /** The content of every external state is deduplicated through this */
+    private final SectorStore sectorStore;
+    /** The index of the persisted history, null if it isn't persisted */
+    @Nullable private final PersistentHistory index;
+    /** Running total of {@link InternalState} sizes, external state sizes are tracked by the sector store */
+    private final AtomicLong internalStatesBytes = new AtomicLong();
+    /** The spilled bytes of the sector store already added to the metrics */
+    private final AtomicLong reportedSpilledBytes = new AtomicLong();
+    /** Where region files moved out of the world are held, created when first needed */
+    @Nullable private Path movedRegionsDirectory;
+
+    private final Map<RegionKind, VanillaStateTracker> trackers = new EnumMap<>(RegionKind.class);
+    /** The loaded history of each kind, removed as each kind registers */
+    private final Map<RegionKind, List<VanillaStateTracker.StateGroup>> unclaimed = new EnumMap<>(RegionKind.class);
+    private int loadedStateCount = 0;
+    private int loadedCurrentStateIdx = -1;
+
+    /**
+     * @param worldDirectory The world the history is of. A history which isn't persisted holds regions moved out of
+     *                       the world beside it.
+     * @param stateCodec How state content is encoded in memory and on disk
+     * @param historyDirectory Where to persist the history, loading any history already there. If null, or the
+     *                         directory can't be opened, the history only lasts as long as the storage.
+     */
+    HistoryStorage(Path worldDirectory, SectorCodec stateCodec, @Nullable Path historyDirectory) {
+        this.worldDirectory = worldDirectory.toAbsolutePath().normalize();
+        // regions moved out in a session which crashed had no history to be undone with, so are deleted as they would
+        // have been on exit
+        TemporaryDirectories.deleteLeftovers(this.worldDirectory.getParent(), movedRegionsPrefix());
+
+        StateJournal journal = null;
+        if (historyDirectory != null) {
+            try {
+                journal = StateJournal.openPersistent(historyDirectory);
+            } catch (IOException e) {
+                Log.warn("Failed to open undo history, it won't be kept after closing the world", e);
+                historyDirectory = null;
+            }
+        }
+        this.journal = journal != null ? journal : new StateJournal();
+        this.historyDirectory = historyDirectory;
+        this.sectorStore = new SectorStore(stateCodec, this.journal, SectorStore.defaultResidentBudgetBytes());
+        MemoryPressure.addWeakListener(this.sectorStore, SectorStore::spillAll);
+
+        this.index = historyDirectory != null
+                ? new PersistentHistory(historyDirectory, this.worldDirectory, this.sectorStore, this.journal)
+                : null;
+        if (this.index != null) {
+            loadHistory(historyDirectory);
+        }
+    }
+
+    private void loadHistory(Path historyDirectory) {
+        long start = System.nanoTime();
+        try {
+            PersistentHistory.Loaded loaded = this.index.load(this.internalStatesBytes);
+            if (loaded != null) {
+                this.unclaimed.putAll(loaded.histories());
+                this.loadedStateCount = loaded.stateCount();
+                this.loadedCurrentStateIdx = loaded.currentStateIdx();
+                Log.info(String.format("Loaded %d undo states in %.1fms", loaded.stateCount(),
+                        (System.nanoTime() - start) / 1_000_000.0));
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to load undo history, starting a new one", e);
+        }
+        // anything not referenced by the loaded history is garbage from an interrupted save, or a failed load
+        this.journal.dropUnrestored();
+        deleteUnheldRegionFiles(PersistentHistory.movedRegionsDirectory(historyDirectory));
+    }
+
+    /**
+     * Delete every file in the directory which isn't held by a {@link MovedRegionState} of the loaded history
+     */
+    private void deleteUnheldRegionFiles(Path directory) {
+        Set<Path> heldPaths = new HashSet<>();
+        for (List<VanillaStateTracker.StateGroup> groups : this.unclaimed.values()) {
+            for (VanillaStateTracker.StateGroup group : groups) {
+                for (State state : group.getStates().values()) {
+                    if (state instanceof MovedRegionState moved && moved.heldPath() != null) {
+                        heldPaths.add(moved.heldPath());
+                    }
+                }
+            }
+        }
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+            for (Path path : paths) {
+                if (!heldPaths.contains(path)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            Log.info("Failed to delete unused region files in: " + directory);
+        }
+    }
+
+    /**
+     * Add the tracker of a kind, which is saved along with every other kind from now on
+     *
+     * @return The loaded history of the kind, to be taken by the tracker
+     */
+    synchronized List<VanillaStateTracker.StateGroup> register(RegionKind kind, VanillaStateTracker tracker) {
+        if (this.trackers.putIfAbsent(kind, tracker) != null) {
+            throw new IllegalStateException("A tracker of " + kind + " is already registered");
+        }
+        List<VanillaStateTracker.StateGroup> groups = this.unclaimed.remove(kind);
+        if (groups != null) {
+            return groups;
+        }
+        groups = new ArrayList<>(this.loadedStateCount);
+        for (int i = 0; i < this.loadedStateCount; i++) {
+            groups.add(new VanillaStateTracker.StateGroup(this.internalStatesBytes));
+        }
+        return groups;
+    }
+
+    /**
+     * @return The index of the current state of the loaded history, or -1 if there is none
+     */
+    int loadedCurrentStateIdx() {
+        return this.loadedCurrentStateIdx;
+    }
+
+    /**
+     * Release the loaded history of every kind which wasn't registered, such as one the world no longer has. Must be
+     * called once every kind is registered.
+     */
+    synchronized void finishLoading() {
+        this.unclaimed.forEach((kind, groups) -> {
+            Log.warn(String.format("The world no longer has %s, dropping its undo history", kind));
+            groups.forEach(VanillaStateTracker.StateGroup::release);
+        });
+        this.unclaimed.clear();
+    }
+
+    /**
+     * Persist what changed in the history of every kind at once, if it is persisted. Failures are logged, as the
+     * in-memory history is still intact, and the next save rewrites the index.
+     */
+    synchronized void saveHistory() {
+        if (this.index == null) {
+            return;
+        }
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        int currentStateIdx = -1;
+        for (Map.Entry<RegionKind, VanillaStateTracker> entry : this.trackers.entrySet()) {
+            histories.put(entry.getKey(), entry.getValue().stateGroups());
+            currentStateIdx = entry.getValue().currentStateIndex();
+        }
+        try {
+            this.index.save(histories, currentStateIdx);
+            // only now does nothing on disk refer to the records freed since the last save
+            this.journal.reclaimFreed();
+        } catch (IOException e) {
+            Log.warn("Failed to save undo history", e);
+        }
+    }
+
+    /**
+     * Move the few states still held in mostly freed journal segments, so the segments can be reclaimed. Must only be
+     * called between operations, as states must not be read meanwhile. Failures are logged, as nothing is lost.
+     */
+    void compactJournal() {
+        try {
+            long moved = this.sectorStore.compactJournal();
+            if (moved > 0 && this.index != null) {
+                // the index refers to the sectors where they were
+                this.index.requireRewrite();
+            }
+            if (moved > 0) {
+                Log.info(String.format("Compacted undo history on disk, moving %dKiB", moved / 1024));
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to compact undo history on disk", e);
+        }
+    }
+
+    /**
+     * Add everything spilled since the last report to the metrics, including spills under memory pressure
+     */
+    void reportSpilledBytes() {
+        long spilledBytes = this.sectorStore.spilledBytes();
+        long reported = this.reportedSpilledBytes.getAndAccumulate(spilledBytes, Math::max);
+        if (spilledBytes > reported) {
+            EditorMetrics.INSTANCE.addBytesSpilled(spilledBytes - reported);
+        }
+    }
+
+    /**
+     * @return The directory region files moved out of the world are held in. Within the persisted history, or else a
+     *         temporary directory beside the world, as a rename can't cross file systems but nothing reading the world
+     *         should see it.
+     */
+    synchronized Path movedRegionsDirectory() throws IOException {
+        if (this.movedRegionsDirectory == null) {
+            if (this.historyDirectory != null) {
+                this.movedRegionsDirectory = Files.createDirectories(PersistentHistory.movedRegionsDirectory(this.historyDirectory));
+            } else {
+                this.movedRegionsDirectory = TemporaryDirectories.create(this.worldDirectory.getParent(), movedRegionsPrefix());
+            }
+        }
+        return this.movedRegionsDirectory;
+    }
+
+    private String movedRegionsPrefix() {
+        return this.worldDirectory.getFileName() + "-chunky-editor-moved-";
+    }
+
+    boolean isPersistent() {
+        return this.historyDirectory != null;
+    }
+
+    SectorStore sectorStore() {
+        return this.sectorStore;
+    }
+
+    AtomicLong internalStatesBytes() {
+        return this.internalStatesBytes;
+    }
+
+    /**
+     * @param bytes The memory which may be used by state content of every kind before the least recently used is
+     *              spilled to disk
+     */
+    void setMemoryBudgetBytes(long bytes) {
+        this.sectorStore.setResidentBudgetBytes(bytes);
+    }
+
+    /**
+     * @return The memory used by the states of every kind, counting sectors shared between external states once
+     */
+    long statesSizeBytes() {
+        return this.internalStatesBytes.get() + this.sectorStore.residentBytes();
+    }
+
+    /**
+     * @return The disk space used by the states of every kind, including space in the journal not yet reclaimed
+     */
+    long statesDiskSizeBytes() {
+        return this.journal.diskBytes();
+    }
+
+    int statesDiskFileCount() {
+        return this.journal.segmentCount();
+    }
+
+    /**
+     * Close the journal, which must not be used after this. A persisted history is left on disk to be loaded again,
+     * otherwise every tracker must have released its states first.
+     */
+    void close() {
+        this.journal.close();
+        if (this.historyDirectory == null && this.movedRegionsDirectory != null) {
+            TemporaryDirectories.delete(this.movedRegionsDirectory);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package io.github.notstirred.chunkyeditor.state.vanilla;
 
 import io.github.notstirred.chunkyeditor.state.State;
+import io.github.notstirred.chunkyeditor.util.ResourceClosedException;
+import se.llbit.util.annotation.Nullable;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -17,10 +19,15 @@ import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.
  * </p>
  */
 public class InternalState implements State {
-    /** The entire header for this state */
-    final byte[] state;
+    /** The entire header for this state, null if it is only held by {@link #store} */
+    @Nullable private final byte[] state;
+    @Nullable private final RegionFileMetadata metadata;
+    /** The store holding the header once it has been persisted, or from which it was restored */
+    @Nullable private SectorStore store;
+    @Nullable private SectorStore.Sector sector;
 
     InternalState(Path regionPath) throws IOException {
+        this.metadata = RegionFileMetadata.read(regionPath);
         byte[] data = new byte[HEADER_SIZE_BYTES];
         try (RandomAccessFile file = new RandomAccessFile(regionPath.toFile(), "r")) {
             file.readFully(data);
@@ -30,11 +37,63 @@ public class InternalState implements State {
 
     InternalState(ExternalState externalState) throws IOException {
         this.state = externalState.getStateRegion(0, HEADER_SIZE_BYTES);
+        this.metadata = externalState.metadata();
     }
 
-    public void writeState(Path regionPath) throws IOException {
-        try (RandomAccessFile file = new RandomAccessFile(regionPath.toFile(), "rw")) {
-            file.write(this.state);
+    InternalState(byte[] header, @Nullable RegionFileMetadata metadata) {
+        this.state = header;
+        this.metadata = metadata;
+    }
+
+    /**
+     * A state restored from a persisted sector, only read when needed
+     *
+     * @param sector A reference to the sector, now owned by this state
+     */
+    InternalState(SectorStore store, SectorStore.Sector sector, @Nullable RegionFileMetadata metadata) {
+        this.state = null;
+        this.metadata = metadata;
+        this.store = store;
+        this.sector = sector;
+    }
+
+    /**
+     * @return The entire header, read from the store if this state was restored. Must not be modified.
+     */
+    byte[] header() throws IOException {
+        if (this.state != null) {
+            return this.state;
+        }
+        byte[] header = new byte[HEADER_SIZE_BYTES];
+        this.store.read(sector(), 0, header, 0, HEADER_SIZE_BYTES);
+        return header;
+    }
+
+    /**
+     * The header as a sector of the store, interning it on first use. Owned by this state.
+     */
+    synchronized SectorStore.Sector headerSector(SectorStore store) throws IOException {
+        if (this.sector == null) {
+            this.store = store;
+            this.sector = store.intern(header(), 0, HEADER_SIZE_BYTES);
+        } else if (this.store != store) {
+            throw new IllegalArgumentException("Internal state is already held by another store");
+        }
+        return this.sector;
+    }
+
+    private synchronized SectorStore.Sector sector() throws ResourceClosedException {
+        if (this.sector == null) {
+            throw new ResourceClosedException("Attempted to access a released internal state object!");
+        }
+        return this.sector;
+    }
+
+    public long writeState(Path regionPath) throws IOException {
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+            writer.setHeader(header());
+            writer.commit();
+            return writer.writtenBytes();
         }
     }
 
@@ -47,15 +106,35 @@ public class InternalState implements State {
     public boolean headerMatches(State other) throws IOException {
         if (other.isInternal()) {
             InternalState internal = (InternalState) other;
-            return Arrays.equals(this.state, internal.state);
+            if (this.store != null && this.store == internal.store && this.sector != null && internal.sector != null) {
+                return this.sector == internal.sector;
+            }
+            return Arrays.equals(header(), internal.header());
         } else {
             ExternalState that = (ExternalState) other;
-            return Arrays.equals(this.state, 0, HEADER_SIZE_BYTES, that.getStateRegion(0, HEADER_SIZE_BYTES), 0, HEADER_SIZE_BYTES);
+            return that.sectorEquals(0, header(), 0);
         }
     }
 
+    @Nullable
+    @Override
+    public RegionFileMetadata metadata() {
+        return this.metadata;
+    }
+
+    /**
+     * A header held only by the store is counted by the store
+     */
     @Override
     public int size() {
-        return this.state.length;
+        return this.state == null ? 0 : this.state.length;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (this.sector != null) {
+            this.store.release(this.sector);
+            this.sector = null;
+        }
     }
 }
\ No newline at end of file
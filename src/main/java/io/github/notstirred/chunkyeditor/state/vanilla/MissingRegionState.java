@@ -0,0 +1,31 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+/**
+ * A region without a region file, such as after every chunk in it was deleted. It has no content, and writing it
+ * deletes the file.
+ */
+public class MissingRegionState extends ExternalState {
+    MissingRegionState(SectorStore store) {
+        super(0, store, null, new SectorStore.Sector[0]);
+    }
+
+    /**
+     * @return The size of the file deleted, as all of it changed
+     */
+    @Override
+    public long writeState(Path regionPath) throws IOException {
+        long size;
+        try {
+            size = Files.size(regionPath);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        Files.deleteIfExists(regionPath);
+        return size;
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A snapshot of an entire region file which was moved out of the world whole, such as when every chunk in it was
+ * deleted. Taking it is a single rename, and the content is only read once something needs it.
+ * <p>
+ * The file is held outside the world for as long as the state is. Writing the state copies it back into place, leaving
+ * the held file untouched by anything done to the world afterwards, so the content still never has to be read. Releasing
+ * the state deletes the file.
+ * </p>
+ */
+public class MovedRegionState extends ExternalState {
+    /** Null once the file is deleted on release */
+    @Nullable private Path heldPath;
+    private boolean loaded = false;
+
+    /**
+     * @param heldPath The file holding the content of the state, now owned by this state
+     */
+    MovedRegionState(Path heldPath, int stateLength, SectorStore store, @Nullable RegionFileMetadata metadata) {
+        super(stateLength, store, metadata, null);
+        this.heldPath = heldPath;
+    }
+
+    /**
+     * Move the region file out of the world, replacing {@code heldPath}. Both must be on the same file system.
+     */
+    static MovedRegionState moveFrom(Path regionPath, Path heldPath, SectorStore store) throws IOException {
+        RegionFileMetadata metadata = RegionFileMetadata.read(regionPath);
+        long size = Files.size(regionPath);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Region file is too large to snapshot: " + regionPath);
+        }
+        Files.move(regionPath, heldPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new MovedRegionState(heldPath, (int) size, store, metadata);
+    }
+
+    /**
+     * @return The file holding the content of the state, or null if the state was released
+     */
+    @Nullable
+    synchronized Path heldPath() {
+        return this.heldPath;
+    }
+
+    @Override
+    synchronized SectorStore.Sector[] sectors() throws IOException {
+        if (!this.loaded && !isReleased()) {
+            SectorStore.Sector[] sectors = internFile(this.heldPath, this.store);
+            if (length(sectors) != this.stateLength) {
+                for (SectorStore.Sector sector : sectors) {
+                    this.store.release(sector);
+                }
+                throw new IOException("Region file changed while held outside the world: " + this.heldPath);
+            }
+            setSectors(sectors);
+            this.loaded = true;
+            super.allowToDisk();
+        }
+        return super.sectors();
+    }
+
+    /**
+     * Copy the held file back into place, counting as writing the whole state. The copy keeps the modification time of
+     * the held file, so it still matches the metadata the state was taken with.
+     */
+    @Override
+    public synchronized long writeState(Path regionPath) throws IOException {
+        Path heldPath = this.heldPath;
+        if (heldPath == null) {
+            return super.writeState(regionPath);
+        }
+        Path copyPath = regionPath.resolveSibling(regionPath.getFileName() + ".restoring");
+        try {
+            Files.copy(heldPath, copyPath, StandardCopyOption.REPLACE_EXISTING);
+            // set separately, as copying attributes may truncate the time to microseconds
+            Files.setLastModifiedTime(copyPath, Files.getLastModifiedTime(heldPath));
+            Files.move(copyPath, regionPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(copyPath);
+        }
+        return this.stateLength;
+    }
+
+    /**
+     * Only content which was read is allowed to disk, the held file is already on disk
+     */
+    @Override
+    public synchronized void allowToDisk() {
+        if (this.loaded) {
+            super.allowToDisk();
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        super.release();
+        Path heldPath = this.heldPath;
+        if (heldPath != null && isReleased()) {
+            this.heldPath = null;
+            try {
+                Files.deleteIfExists(heldPath);
+            } catch (IOException e) {
+                Log.info("Failed to delete held region file: " + heldPath);
+            }
+        }
+    }
+}
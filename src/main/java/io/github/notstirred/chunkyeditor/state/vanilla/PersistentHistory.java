@@ -0,0 +1,693 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.state.State;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+
+/**
+ * An undo history kept on disk next to the world, so that it survives restarts.
+ * <p>
+ * State content is held in a persistent {@link StateJournal}, and an index file records every state group of every
+ * {@link RegionKind} as references into it. Loading reads only the index, the content of each state is read from the journal when it is
+ * needed. Every state is indexed by its full list of sectors, so a {@link DeltaState} is restored as a plain
+ * {@link ExternalState} sharing the same sectors. A region file moved out of the world whole is kept as it is, in
+ * {@link #movedRegionsDirectory(Path)}, and indexed by its file name.
+ * </p>
+ * <p>
+ * The index is a log of batches, each saving only the sectors new to the index and the groups which changed, followed
+ * by the number of steps of every kind and the current one. So an operation costs what it changed, not the size of
+ * the whole history. A batch is appended only after every sector it refers to is forced to disk, and a batch cut short
+ * by a crash fails its checksum and is ignored, leaving the history as the batch before it saved it. As every kind is
+ * in the same batch, the kinds are always loaded at the same step.
+ * </p>
+ * <p>
+ * The index is rewritten whole, atomically, once what was appended outgrows the last rewrite, and after the journal is
+ * {@link #requireRewrite() compacted}, which moves sectors the batches refer to.
+ * </p>
+ * <p>
+ * The world may be played between sessions, so on load every region is checked against the state the history left it
+ * in. A region which changed loses its history, as undoing or redoing it would overwrite the changes with old data.
+ * </p>
+ */
+public class PersistentHistory {
+    private static final String INDEX_FILE_NAME = "index.bin";
+    private static final String MOVED_REGIONS_DIRECTORY_NAME = "moved-regions";
+    private static final int MAGIC = 0x43454849; // "CEHI"
+    private static final int VERSION = 1;
+
+    private static final byte KIND_NONE = 0;
+    private static final byte KIND_INTERNAL = 1;
+    private static final byte KIND_EXTERNAL = 2;
+    private static final byte KIND_MOVED = 3;
+    private static final byte KIND_MISSING = 4;
+
+    /** A sector added to the sector table, whose index is the number of sectors before it */
+    private static final byte RECORD_SECTOR = 1;
+    /** A group of a kind at a step, replacing any earlier record of that step */
+    private static final byte RECORD_GROUP = 2;
+    /** The step count, current step and kinds, ending every batch */
+    private static final byte RECORD_STEPS = 3;
+
+    /** The least appended to the index before it is rewritten, so that a small history isn't rewritten every save */
+    private static final long MIN_REWRITE_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final Path worldDirectory;
+    private final SectorStore store;
+    private final StateJournal journal;
+    private final RegionChangeDetector changeDetector = new RegionChangeDetector(RegionChangeDetector.defaultStrict());
+
+    /** The index in the sector table of every sector the index holds */
+    private final Map<SectorStore.Sector, Integer> sectorIndices = new IdentityHashMap<>();
+    private int sectorTableSize = 0;
+    /** The groups of each kind as the index holds them */
+    private final Map<RegionKind, List<SavedGroup>> savedGroups = new EnumMap<>(RegionKind.class);
+    private int savedCurrentStateIdx = -1;
+    /** The bytes of the index file holding complete batches, zero if there is none to append to */
+    private long length = 0;
+    /** The bytes of the index file after it was last rewritten */
+    private long rewrittenLength = 0;
+    /** Whether the index has to be rewritten, as it isn't known to match what is saved */
+    private boolean rewriteNeeded = false;
+
+    /**
+     * @param directory Where the history is persisted
+     * @param worldDirectory The world the history is of, whose regions are checked against it on load
+     * @param journal The persistent journal of the directory, which the store spills to
+     */
+    PersistentHistory(Path directory, Path worldDirectory, SectorStore store, StateJournal journal) {
+        this.directory = directory;
+        this.worldDirectory = worldDirectory;
+        this.store = store;
+        this.journal = journal;
+    }
+
+    /**
+     * Whether the history is persisted when not specified, overridable with {@code -Dchunky-editor.persistentHistory=true}
+     */
+    public static boolean enabledByDefault() {
+        return Boolean.getBoolean("chunky-editor.persistentHistory");
+    }
+
+    /**
+     * @return The directory holding the history of the world, a sibling of the world directory
+     */
+    public static Path directoryFor(Path worldDirectory) {
+        Path absolute = worldDirectory.toAbsolutePath().normalize();
+        return absolute.resolveSibling(absolute.getFileName() + "-chunky-editor-history");
+    }
+
+    /**
+     * @return The directory holding the region files moved out of the world, within the history directory
+     */
+    static Path movedRegionsDirectory(Path historyDirectory) {
+        return historyDirectory.resolve(MOVED_REGIONS_DIRECTORY_NAME);
+    }
+
+    /**
+     * The state groups of each kind and the current index as loaded, every kind having the same number of groups
+     */
+    record Loaded(Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories, int stateCount, int currentStateIdx) {
+    }
+
+    /**
+     * A group as the index holds it
+     *
+     * @param heldCount The moved regions of the group which were still held when it was saved, as a moved region put
+     *                  back in the world is saved by its content instead
+     */
+    private record SavedGroup(VanillaStateTracker.StateGroup group, int heldCount) {
+    }
+
+    /**
+     * The index is rewritten whole on the next save, such as after sectors were moved in the journal
+     */
+    void requireRewrite() {
+        this.rewriteNeeded = true;
+    }
+
+    /**
+     * Save what changed since the last save, persisting only the sectors the index doesn't hold yet. Nothing is written
+     * if nothing changed.
+     *
+     * @param histories The state groups of each kind, every kind having the same number of groups
+     */
+    void save(Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories, int currentStateIdx) throws IOException {
+        int stateCount = histories.isEmpty() ? 0 : histories.values().iterator().next().size();
+        for (List<VanillaStateTracker.StateGroup> groups : histories.values()) {
+            if (groups.size() != stateCount) {
+                // the index on disk is left as it was, rather than replaced by one which can't be undone
+                throw new IOException("The undo histories of each kind of region file are out of step");
+            }
+        }
+
+        boolean rewrite = this.rewriteNeeded || this.length == 0
+                || this.length - this.rewrittenLength > Math.max(this.rewrittenLength, MIN_REWRITE_BYTES);
+        try {
+            if (rewrite) {
+                this.sectorIndices.clear();
+                this.sectorTableSize = 0;
+                this.savedGroups.clear();
+            }
+            int firstNewSector = this.sectorTableSize;
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            DataOutputStream sectorsOut = new DataOutputStream(batch);
+            ByteArrayOutputStream groupsBytes = new ByteArrayOutputStream();
+            DataOutputStream groupsOut = new DataOutputStream(groupsBytes);
+
+            boolean changed = rewrite || currentStateIdx != this.savedCurrentStateIdx
+                    || !histories.keySet().equals(this.savedGroups.keySet());
+            this.savedGroups.keySet().retainAll(histories.keySet());
+            for (Map.Entry<RegionKind, List<VanillaStateTracker.StateGroup>> entry : histories.entrySet()) {
+                RegionKind kind = entry.getKey();
+                List<VanillaStateTracker.StateGroup> groups = entry.getValue();
+                List<SavedGroup> saved = this.savedGroups.computeIfAbsent(kind, k -> new ArrayList<>());
+                if (saved.size() != groups.size()) {
+                    changed = true;
+                    saved.subList(Math.min(saved.size(), groups.size()), saved.size()).clear();
+                }
+                for (int groupIdx = 0; groupIdx < groups.size(); groupIdx++) {
+                    VanillaStateTracker.StateGroup group = groups.get(groupIdx);
+                    boolean modified = group.takeModified();
+                    SavedGroup previous = groupIdx < saved.size() ? saved.get(groupIdx) : null;
+                    if (previous != null && previous.group() == group && !modified
+                            && (previous.heldCount() == 0 || heldCount(group) == previous.heldCount())) {
+                        continue;
+                    }
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    int heldCount = writeGroup(new DataOutputStream(body), group, sectorsOut);
+                    groupsOut.writeByte(RECORD_GROUP);
+                    groupsOut.writeUTF(kind.name());
+                    groupsOut.writeInt(groupIdx);
+                    groupsOut.writeInt(body.size());
+                    body.writeTo(groupsOut);
+                    if (previous == null) {
+                        saved.add(new SavedGroup(group, heldCount));
+                    } else {
+                        saved.set(groupIdx, new SavedGroup(group, heldCount));
+                    }
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return;
+            }
+            groupsOut.writeByte(RECORD_STEPS);
+            groupsOut.writeInt(stateCount);
+            groupsOut.writeInt(currentStateIdx);
+            groupsOut.writeByte(histories.size());
+            for (RegionKind kind : histories.keySet()) {
+                groupsOut.writeUTF(kind.name());
+            }
+            sectorsOut.flush();
+            groupsOut.flush();
+            groupsBytes.writeTo(batch);
+
+            // the sectors the index already held were forced before it was written
+            if (this.sectorTableSize > firstNewSector) {
+                this.journal.force();
+            }
+            if (rewrite) {
+                rewriteIndex(batch.toByteArray());
+            } else {
+                appendToIndex(batch.toByteArray());
+            }
+            this.savedCurrentStateIdx = currentStateIdx;
+            this.rewriteNeeded = false;
+        } catch (IOException | RuntimeException e) {
+            // what was recorded as saved may not be on disk
+            this.rewriteNeeded = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of moved regions the group still holds outside the world
+     */
+    private static int heldCount(VanillaStateTracker.StateGroup group) {
+        int heldCount = 0;
+        for (State state : group.getStates().values()) {
+            if (state instanceof MovedRegionState moved && moved.heldPath() != null) {
+                heldCount++;
+            }
+        }
+        return heldCount;
+    }
+
+    /**
+     * Replace the index with one holding only the batch, which must save everything
+     */
+    private void rewriteIndex(byte[] batch) throws IOException {
+        Path index = this.directory.resolve(INDEX_FILE_NAME);
+        Path temporaryIndex = this.directory.resolve(INDEX_FILE_NAME + ".tmp");
+        long length;
+        try (FileChannel channel = FileChannel.open(temporaryIndex, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(this.store.codec().name());
+            out.write(frame(batch));
+            out.flush();
+            channel.force(true);
+            length = channel.size();
+        }
+        Files.move(temporaryIndex, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.length = length;
+        this.rewrittenLength = length;
+    }
+
+    /**
+     * Append the batch after the last complete batch, overwriting any incomplete one left by a crash
+     */
+    private void appendToIndex(byte[] batch) throws IOException {
+        byte[] framed = frame(batch);
+        try (FileChannel channel = FileChannel.open(this.directory.resolve(INDEX_FILE_NAME), StandardOpenOption.WRITE)) {
+            channel.truncate(this.length);
+            ByteBuffer buffer = ByteBuffer.wrap(framed);
+            long position = this.length;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            channel.force(false);
+        }
+        this.length += framed.length;
+    }
+
+    /**
+     * @return The batch preceded by its length and followed by its checksum
+     */
+    private static byte[] frame(byte[] batch) {
+        return ByteBuffer.allocate(batch.length + 8)
+                .putInt(batch.length)
+                .put(batch)
+                .putInt(checksum(batch))
+                .array();
+    }
+
+    private static int checksum(byte[] batch) {
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param sectorsOut Where each sector new to the index is recorded
+     * @return The number of moved regions the group holds outside the world
+     */
+    private int writeGroup(DataOutputStream out, VanillaStateTracker.StateGroup group, DataOutputStream sectorsOut) throws IOException {
+        Map<VanillaRegionPos, State> states = group.getStates();
+        int heldCount = 0;
+        out.writeInt(states.size());
+        for (Map.Entry<VanillaRegionPos, State> entry : states.entrySet()) {
+            VanillaRegionPos regionPos = entry.getKey();
+            State state = entry.getValue();
+            out.writeInt(regionPos.x());
+            out.writeInt(regionPos.z());
+            if (state == null) {
+                out.writeByte(KIND_NONE);
+                continue;
+            }
+            if (state instanceof MissingRegionState) {
+                out.writeByte(KIND_MISSING);
+                continue;
+            }
+            Path heldPath = state instanceof MovedRegionState moved ? moved.heldPath() : null;
+            out.writeByte(state.isInternal() ? KIND_INTERNAL : heldPath != null ? KIND_MOVED : KIND_EXTERNAL);
+            writeMetadata(out, state.metadata());
+            if (heldPath != null) {
+                out.writeUTF(heldPath.getFileName().toString());
+                out.writeInt(((ExternalState) state).stateLength);
+                heldCount++;
+            } else if (state.isInternal()) {
+                SectorStore.Sector sector = ((InternalState) state).headerSector(this.store);
+                out.writeInt(persistedIndex(sector, sectorsOut));
+            } else {
+                ExternalState external = (ExternalState) state;
+                out.writeInt(external.stateLength);
+                for (int i = 0, sectorCount = external.sectorCount(); i < sectorCount; i++) {
+                    out.writeInt(persistedIndex(external.sectorAt(i), sectorsOut));
+                }
+            }
+        }
+        return heldCount;
+    }
+
+    /**
+     * Write the sector to the journal and record it in the batch if the index doesn't hold it already, and allow it
+     * out of memory as it can now be read back
+     *
+     * @return The index of the sector in the sector table
+     */
+    private int persistedIndex(SectorStore.Sector sector, DataOutputStream sectorsOut) throws IOException {
+        Integer idx = this.sectorIndices.get(sector);
+        if (idx != null) {
+            return idx;
+        }
+        long diskAddress = this.store.persist(sector);
+        this.store.markSpillable(sector);
+        sectorsOut.writeByte(RECORD_SECTOR);
+        sectorsOut.write(sector.digest());
+        sectorsOut.writeShort(sector.length);
+        sectorsOut.writeShort(sector.storedLength);
+        sectorsOut.writeBoolean(sector.isEncoded());
+        sectorsOut.writeLong(diskAddress);
+        this.sectorIndices.put(sector, this.sectorTableSize);
+        return this.sectorTableSize++;
+    }
+
+    /**
+     * Read the index, restoring every state without reading its content. If loading fails nothing is restored, and
+     * the next save rewrites the index.
+     *
+     * @return Null if there is no history in the directory
+     */
+    @Nullable
+    Loaded load(AtomicLong internalStatesBytes) throws IOException {
+        Path index = this.directory.resolve(INDEX_FILE_NAME);
+        if (!Files.exists(index)) {
+            return null;
+        }
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Unrecognised undo history index: " + index);
+            }
+            String codec = in.readUTF();
+            if (!codec.equals(this.store.codec().name())) {
+                throw new IOException(String.format("Undo history was stored with codec %s, but %s is in use", codec, this.store.codec()));
+            }
+            long headerLength = 10 + codec.getBytes(StandardCharsets.UTF_8).length;
+            return loadBatches(in, index, headerLength, histories, internalStatesBytes);
+        } catch (IOException | RuntimeException e) {
+            // anything already restored holds references to the sectors
+            histories.values().forEach(groups -> groups.forEach(VanillaStateTracker.StateGroup::release));
+            this.sectorIndices.clear();
+            this.sectorTableSize = 0;
+            this.savedGroups.clear();
+            this.length = 0;
+            throw e;
+        }
+    }
+
+    /**
+     * Replay every complete batch, then restore the groups the last one left
+     */
+    private Loaded loadBatches(DataInputStream in, Path index, long headerLength,
+                               Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories,
+                               AtomicLong internalStatesBytes) throws IOException {
+        long fileLength = Files.size(index);
+        long position = headerLength;
+        long firstBatchEnd = -1;
+        List<SectorEntry> sectorTable = new ArrayList<>();
+        Map<RegionKind, Map<Integer, byte[]>> groupRecords = new EnumMap<>(RegionKind.class);
+        Steps steps = null;
+        while (position + 8 <= fileLength) {
+            int batchLength = in.readInt();
+            if (batchLength < 0 || position + 8 + batchLength > fileLength) {
+                break;
+            }
+            byte[] batch = new byte[batchLength];
+            in.readFully(batch);
+            if (in.readInt() != checksum(batch)) {
+                break;
+            }
+            steps = readBatch(batch, sectorTable, groupRecords);
+            position += 8 + batchLength;
+            if (firstBatchEnd < 0) {
+                firstBatchEnd = position;
+            }
+        }
+        if (steps == null) {
+            throw new IOException("Undo history index holds no complete save: " + index);
+        }
+        if (position < fileLength) {
+            Log.info("Ignoring the end of the undo history index, left by an interrupted save");
+        }
+        if (steps.currentStateIdx() < -1 || steps.currentStateIdx() >= steps.stateCount()) {
+            throw new IOException("Invalid current state in undo history index: " + steps.currentStateIdx());
+        }
+
+        for (RegionKind kind : steps.kinds()) {
+            Map<Integer, byte[]> records = groupRecords.getOrDefault(kind, Map.of());
+            List<VanillaStateTracker.StateGroup> groups = new ArrayList<>(steps.stateCount());
+            List<SavedGroup> saved = new ArrayList<>(steps.stateCount());
+            histories.put(kind, groups);
+            this.savedGroups.put(kind, saved);
+            for (int groupIdx = 0; groupIdx < steps.stateCount(); groupIdx++) {
+                byte[] record = records.get(groupIdx);
+                if (record == null) {
+                    throw new IOException(String.format("Undo history index is missing step %d of %s", groupIdx, kind));
+                }
+                VanillaStateTracker.StateGroup group = readGroup(new DataInputStream(new ByteArrayInputStream(record)),
+                        sectorTable, internalStatesBytes);
+                groups.add(group);
+                // as loaded, the group is what the index holds
+                group.takeModified();
+                saved.add(new SavedGroup(group, heldCount(group)));
+            }
+        }
+        for (Map.Entry<RegionKind, List<VanillaStateTracker.StateGroup>> entry : histories.entrySet()) {
+            dropChangedRegions(entry.getKey(), entry.getValue(), steps.currentStateIdx());
+        }
+        this.sectorTableSize = sectorTable.size();
+        this.savedCurrentStateIdx = steps.currentStateIdx();
+        this.length = position;
+        this.rewrittenLength = firstBatchEnd;
+        return new Loaded(histories, steps.stateCount(), steps.currentStateIdx());
+    }
+
+    /**
+     * The state a region is expected to be in on disk
+     *
+     * @param external The most recent external state of the region up to {@code state}, null if there is none
+     */
+    private record Expected(State state, @Nullable ExternalState external) {
+    }
+
+    /**
+     * Remove every region of the kind which no longer matches the state the history left it in from every group,
+     * leaving the history of the other regions as it is. The groups are then saved again on the next save.
+     */
+    private void dropChangedRegions(RegionKind kind, List<VanillaStateTracker.StateGroup> groups, int currentStateIdx) {
+        // a region is left as its last state up to the current one. A region first snapshot in a step which was
+        // undone was last written by undoing that step, so is left as its state in that step.
+        Map<VanillaRegionPos, Expected> expected = new HashMap<>();
+        Map<VanillaRegionPos, ExternalState> lastExternal = new HashMap<>();
+        for (int groupIdx = 0; groupIdx < groups.size(); groupIdx++) {
+            for (Map.Entry<VanillaRegionPos, State> entry : groups.get(groupIdx).getStates().entrySet()) {
+                VanillaRegionPos regionPos = entry.getKey();
+                State state = entry.getValue();
+                if (state == null) {
+                    continue; // failed to snapshot, so there is nothing to expect
+                }
+                if (!state.isInternal()) {
+                    lastExternal.put(regionPos, (ExternalState) state);
+                }
+                if (groupIdx <= currentStateIdx || !expected.containsKey(regionPos)) {
+                    expected.put(regionPos, new Expected(state, lastExternal.get(regionPos)));
+                }
+            }
+        }
+
+        Path regionDirectory = kind.directoryIn(this.worldDirectory);
+        TaskProgress progress = new TaskProgress();
+        List<VanillaRegionPos> changed = new ArrayList<>();
+        for (Map.Entry<VanillaRegionPos, Expected> entry : expected.entrySet()) {
+            Path regionPath = regionDirectory.resolve(entry.getKey().fileName());
+            State state = entry.getValue().state();
+            ExternalState external = entry.getValue().external();
+            boolean matches;
+            try {
+                if (state instanceof MissingRegionState) {
+                    matches = !Files.exists(regionPath);
+                } else {
+                    matches = external != null && this.changeDetector.regionMatches(regionPath, state, external, this.store, progress);
+                }
+            } catch (IOException e) {
+                Log.info("Failed to check region file against the undo history: " + regionPath);
+                matches = false;
+            }
+            if (!matches) {
+                changed.add(entry.getKey());
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        Log.warn(String.format("%d region files in %s changed since the undo history was saved. Undo and redo won't " +
+                "touch them, so the changes aren't overwritten.", changed.size(), kind));
+        for (VanillaStateTracker.StateGroup group : groups) {
+            changed.forEach(group::remove);
+        }
+    }
+
+    /**
+     * The record ending a batch
+     */
+    private record Steps(int stateCount, int currentStateIdx, List<RegionKind> kinds) {
+    }
+
+    private static Steps readBatch(byte[] batch, List<SectorEntry> sectorTable,
+                                   Map<RegionKind, Map<Integer, byte[]>> groupRecords) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        while (true) {
+            byte record = in.readByte();
+            switch (record) {
+                case RECORD_SECTOR -> sectorTable.add(readSectorEntry(in));
+                case RECORD_GROUP -> {
+                    RegionKind kind = readKind(in);
+                    int groupIdx = in.readInt();
+                    byte[] group = new byte[in.readInt()];
+                    in.readFully(group);
+                    groupRecords.computeIfAbsent(kind, k -> new HashMap<>()).put(groupIdx, group);
+                }
+                case RECORD_STEPS -> {
+                    int stateCount = in.readInt();
+                    int currentStateIdx = in.readInt();
+                    List<RegionKind> kinds = new ArrayList<>();
+                    for (int i = 0, kindCount = in.readUnsignedByte(); i < kindCount; i++) {
+                        kinds.add(readKind(in));
+                    }
+                    if (in.available() > 0) {
+                        throw new IOException("Undo history index has records after the end of a save");
+                    }
+                    return new Steps(stateCount, currentStateIdx, kinds);
+                }
+                default -> throw new IOException("Invalid record in undo history index: " + record);
+            }
+        }
+    }
+
+    private static SectorEntry readSectorEntry(DataInputStream in) throws IOException {
+        byte[] digest = new byte[20];
+        in.readFully(digest);
+        return new SectorEntry(digest, in.readUnsignedShort(), in.readUnsignedShort(), in.readBoolean(), in.readLong());
+    }
+
+    private static RegionKind readKind(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        try {
+            return RegionKind.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown kind of region file in undo history index: " + name);
+        }
+    }
+
+    private VanillaStateTracker.StateGroup readGroup(DataInputStream in, List<SectorEntry> sectorTable,
+                                                     AtomicLong internalStatesBytes) throws IOException {
+        VanillaStateTracker.StateGroup group = new VanillaStateTracker.StateGroup(internalStatesBytes);
+        try {
+            int regionCount = in.readInt();
+            for (int i = 0; i < regionCount; i++) {
+                VanillaRegionPos regionPos = new VanillaRegionPos(in.readInt(), in.readInt());
+                group.put(regionPos, readState(in, sectorTable));
+            }
+        } catch (IOException | RuntimeException e) {
+            group.release();
+            throw e;
+        }
+        return group;
+    }
+
+    @Nullable
+    private State readState(DataInputStream in, List<SectorEntry> sectorTable) throws IOException {
+        byte kind = in.readByte();
+        if (kind == KIND_NONE) {
+            return null;
+        }
+        if (kind == KIND_MISSING) {
+            return new MissingRegionState(this.store);
+        }
+        RegionFileMetadata metadata = readMetadata(in);
+        if (kind == KIND_INTERNAL) {
+            return new InternalState(this.store, restore(sectorTable, in.readInt()), metadata);
+        }
+        if (kind == KIND_MOVED) {
+            Path heldPath = movedRegionsDirectory(this.directory).resolve(in.readUTF());
+            int stateLength = in.readInt();
+            if (!Files.exists(heldPath)) {
+                throw new IOException("Moved region file is missing: " + heldPath);
+            }
+            return new MovedRegionState(heldPath, stateLength, this.store, metadata);
+        }
+        if (kind != KIND_EXTERNAL) {
+            throw new IOException("Invalid state kind in undo history index: " + kind);
+        }
+        int stateLength = in.readInt();
+        SectorStore.Sector[] sectors = new SectorStore.Sector[(stateLength + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES];
+        try {
+            for (int i = 0; i < sectors.length; i++) {
+                sectors[i] = restore(sectorTable, in.readInt());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (SectorStore.Sector sector : sectors) {
+                if (sector != null) {
+                    this.store.release(sector);
+                }
+            }
+            throw e;
+        }
+        return new ExternalState(stateLength, this.store, metadata, sectors);
+    }
+
+    /**
+     * Restore a sector of the table, which the index then holds at that index
+     */
+    private SectorStore.Sector restore(List<SectorEntry> sectorTable, int idx) throws IOException {
+        if (idx < 0 || idx >= sectorTable.size()) {
+            throw new IOException("Invalid sector in undo history index: " + idx);
+        }
+        SectorStore.Sector sector = sectorTable.get(idx).restore(this.store);
+        this.sectorIndices.putIfAbsent(sector, idx);
+        return sector;
+    }
+
+    private static void writeMetadata(DataOutputStream out, @Nullable RegionFileMetadata metadata) throws IOException {
+        out.writeBoolean(metadata != null);
+        if (metadata != null) {
+            out.writeLong(metadata.size());
+            out.writeLong(metadata.lastModifiedNanos());
+        }
+    }
+
+    @Nullable
+    private static RegionFileMetadata readMetadata(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new RegionFileMetadata(in.readLong(), in.readLong());
+    }
+
+    /**
+     * Delete the index, leaving no history to load
+     */
+    static void delete(Path directory) throws IOException {
+        Files.deleteIfExists(directory.resolve(INDEX_FILE_NAME));
+    }
+
+    private record SectorEntry(byte[] digest, int length, int storedLength, boolean isEncoded, long diskAddress) {
+        SectorStore.Sector restore(SectorStore store) throws IOException {
+            return store.restore(this.digest, this.length, this.storedLength, this.isEncoded, this.diskAddress);
+        }
+    }
+}
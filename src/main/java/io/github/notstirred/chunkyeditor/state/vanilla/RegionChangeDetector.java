@@ -0,0 +1,127 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.state.State;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+
+/**
+ * Decides whether a region's chunk data still matches its previous external state, without reading the whole file.
+ * <ol>
+ *     <li>If the file size and modification time match the most recent state, nothing changed.</li>
+ *     <li>If the size matches the previous external state and so does the chunk timestamp table (the second sector),
+ *     no chunk was rewritten. Minecraft updates a chunk's timestamp every time it saves that chunk.</li>
+ *     <li>Otherwise, the caller must fall back to a full comparison.</li>
+ * </ol>
+ * In strict mode every region falls through to the full comparison, for tools which modify chunks while preserving
+ * their timestamps.
+ */
+public class RegionChangeDetector {
+    private static final int TIMESTAMPS_SECTOR = 1;
+    private static final int TIMESTAMPS_SIZE_BYTES = 4096;
+
+    private volatile boolean strict;
+
+    public RegionChangeDetector(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Whether strict mode is on when none is specified, overridable with {@code -Dchunky-editor.strictChangeDetection=true}
+     */
+    public static boolean defaultStrict() {
+        return Boolean.getBoolean("chunky-editor.strictChangeDetection");
+    }
+
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    public boolean isStrict() {
+        return this.strict;
+    }
+
+    /**
+     * @param previousAny The most recent state of the region
+     * @param previousExternal The most recent external state of the region
+     * @param progress Every byte read from the region is counted here
+     * @return A header only state of the region if its data provably matches {@code previousExternal}, otherwise null
+     *         and the caller must do a full comparison.
+     */
+    @Nullable
+    InternalState internalStateIfDataUnchanged(Path regionPath, State previousAny, ExternalState previousExternal,
+                                              TaskProgress progress) throws IOException {
+        if (this.strict) {
+            return null;
+        }
+
+        RegionFileMetadata metadata = RegionFileMetadata.read(regionPath);
+        if (metadata == null) {
+            return null; // modified too recently to trust
+        }
+        // a header only state would pad a file too short for a header, such as minecraft's empty entity files
+        if (metadata.size() < HEADER_SIZE_BYTES) {
+            return null;
+        }
+        if (metadata.equals(previousAny.metadata())) {
+            progress.addBytesRead(HEADER_SIZE_BYTES);
+            return new InternalState(readFully(regionPath, HEADER_SIZE_BYTES), metadata);
+        }
+
+        if (metadata.size() != previousExternal.stateLength || metadata.size() < HEADER_SIZE_BYTES + TIMESTAMPS_SIZE_BYTES) {
+            return null;
+        }
+        byte[] headerAndTimestamps = readFully(regionPath, HEADER_SIZE_BYTES + TIMESTAMPS_SIZE_BYTES);
+        progress.addBytesRead(HEADER_SIZE_BYTES + TIMESTAMPS_SIZE_BYTES);
+        if (!previousExternal.sectorEquals(TIMESTAMPS_SECTOR, headerAndTimestamps, HEADER_SIZE_BYTES)) {
+            return null;
+        }
+        return new InternalState(Arrays.copyOf(headerAndTimestamps, HEADER_SIZE_BYTES), metadata);
+    }
+
+    /**
+     * @param current The most recent state of the region
+     * @param external The most recent external state of the region, which {@code current} was taken against
+     * @param store Where the region is interned if it has to be compared in full
+     * @param progress Every byte read from the region is counted here
+     * @return True if the region is byte identical to {@code current}
+     */
+    boolean regionMatches(Path regionPath, State current, ExternalState external, SectorStore store,
+                          TaskProgress progress) throws IOException {
+        if (!Files.exists(regionPath)) {
+            return false;
+        }
+        InternalState unchanged = internalStateIfDataUnchanged(regionPath, current, external, progress);
+        if (unchanged != null) {
+            return current.headerMatches(unchanged);
+        }
+        ExternalState onDisk = new ExternalState(regionPath, store);
+        try {
+            progress.addBytesRead(onDisk.stateLength);
+            return external.dataMatches(onDisk) && current.headerMatches(onDisk);
+        } finally {
+            onDisk.release();
+        }
+    }
+
+    private static byte[] readFully(Path path, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break; // past the end of the file, zero filled
+                }
+            }
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.ChunkSelection;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.minecraft.ChunkSummary;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static io.github.notstirred.chunkyeditor.ChunkSelection.CHUNKS_PER_REGION;
+import static io.github.notstirred.chunkyeditor.state.vanilla.RegionHeaderWriter.LOCATION_ENTRY_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+
+/**
+ * Finds the chunks of a region file matching a predicate on their {@link ChunkSummary}.
+ * <p>
+ * Chunks are read one at a time in the order they are stored, and each is decompressed as a stream only as far as
+ * its summary needs. A scan holds at most one compressed chunk in memory, so any number of regions can be scanned in
+ * parallel with a fixed amount of memory per worker.
+ * </p>
+ * <p>
+ * A chunk which can't be read, whether corrupt or in a compression format we can't decompress, never matches.
+ * </p>
+ */
+public class RegionChunkScanner {
+    private static final int FIRST_DATA_SECTOR = 2 * HEADER_SIZE_BYTES / SECTOR_SIZE_BYTES;
+    /** The 4 byte length and 1 byte compression type before every chunk's data */
+    private static final int CHUNK_HEADER_BYTES = 5;
+    private static final int EXTERNAL_COMPRESSION_FLAG = 128;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    private static final int STREAM_BUFFER_BYTES = 8192;
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    /** Grown to the largest chunk read by the worker, at most 255 sectors */
+    private static final ThreadLocal<byte[]> CHUNK_BUFFER = ThreadLocal.withInitial(() -> new byte[16 * SECTOR_SIZE_BYTES]);
+
+    /**
+     * @param matches The chunks which matched
+     * @param chunksScanned Every present chunk, whether or not it could be read
+     * @param chunksUnreadable The chunks which couldn't be read, so didn't match
+     * @param bytesRead The compressed bytes read
+     */
+    public record Result(ChunkSelection matches, int chunksScanned, int chunksUnreadable, long bytesRead) {
+    }
+
+    private record Chunk(int index, int sectorOffset, int sectorCount) {
+    }
+
+    /**
+     * Scan every chunk of the region. A missing region has no chunks.
+     *
+     * @throws IOException If the region's location table can't be read
+     */
+    public static Result scan(Path regionDirectory, VanillaRegionPos regionPos, Predicate<ChunkSummary> filter) throws IOException {
+        ChunkSelection matches = new ChunkSelection();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(regionDirectory.resolve(regionPos.fileName()), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return new Result(matches, 0, 0, 0);
+        }
+        try (channel) {
+            long fileSize = channel.size();
+            ByteBuffer locations = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+            if (!readFully(channel, locations, 0)) {
+                return new Result(matches, 0, 0, fileSize);
+            }
+            long bytesRead = HEADER_SIZE_BYTES;
+
+            Chunk[] chunks = presentChunks(locations);
+            int unreadable = 0;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+            for (Chunk chunk : chunks) {
+                long position = (long) chunk.sectorOffset * SECTOR_SIZE_BYTES;
+                if (chunk.sectorOffset < FIRST_DATA_SECTOR || position >= fileSize) {
+                    unreadable++;
+                    continue;
+                }
+                try {
+                    chunkHeader.clear();
+                    if (!readFully(channel, chunkHeader, position)) {
+                        throw new EOFException("Chunk header past the end of the region file");
+                    }
+                    int length = chunkHeader.getInt(0) - 1; // the length includes the compression type
+                    int compression = chunkHeader.get(4) & 0xFF;
+                    if (length < 0 || length > chunk.sectorCount * SECTOR_SIZE_BYTES - CHUNK_HEADER_BYTES) {
+                        throw new IOException("Invalid chunk length " + length);
+                    }
+
+                    ChunkSummary summary;
+                    if ((compression & EXTERNAL_COMPRESSION_FLAG) != 0) {
+                        // too large for the region file, the data is in its own file next to it
+                        Path externalPath = regionDirectory.resolve(externalFileName(regionPos, chunk.index));
+                        bytesRead += Files.size(externalPath);
+                        try (InputStream external = Files.newInputStream(externalPath)) {
+                            summary = readSummary(external, compression & ~EXTERNAL_COMPRESSION_FLAG);
+                        }
+                    } else {
+                        byte[] buffer = chunkBuffer(length);
+                        if (!readFully(channel, ByteBuffer.wrap(buffer, 0, length), position + CHUNK_HEADER_BYTES)) {
+                            throw new EOFException("Chunk data past the end of the region file");
+                        }
+                        bytesRead += length;
+                        summary = readSummary(new ByteArrayInputStream(buffer, 0, length), compression);
+                    }
+
+                    if (filter.test(summary)) {
+                        matches.add((regionPos.x() << 5) + (chunk.index & 31), (regionPos.z() << 5) + (chunk.index >> 5));
+                    }
+                } catch (IOException e) {
+                    unreadable++;
+                }
+            }
+            return new Result(matches, chunks.length, unreadable, bytesRead);
+        }
+    }
+
+    private static ChunkSummary readSummary(InputStream compressed, int compression) throws IOException {
+        InputStream decompressed = switch (compression) {
+            case COMPRESSION_GZIP -> new GZIPInputStream(compressed, STREAM_BUFFER_BYTES);
+            case COMPRESSION_ZLIB -> {
+                Inflater inflater = INFLATER.get();
+                inflater.reset();
+                yield new InflaterInputStream(compressed, inflater, STREAM_BUFFER_BYTES);
+            }
+            case COMPRESSION_NONE -> compressed;
+            default -> throw new IOException("Unsupported chunk compression type " + compression);
+        };
+        return ChunkSummary.read(new DataInputStream(new BufferedInputStream(decompressed, STREAM_BUFFER_BYTES)));
+    }
+
+    /**
+     * @return Every present chunk, in order of its position in the file so the file is read sequentially
+     */
+    private static Chunk[] presentChunks(ByteBuffer locations) {
+        Chunk[] chunks = new Chunk[CHUNKS_PER_REGION];
+        int count = 0;
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            int location = locations.getInt(i * LOCATION_ENTRY_BYTES);
+            if (location != 0) {
+                chunks[count++] = new Chunk(i, location >>> 8, location & 0xFF);
+            }
+        }
+        chunks = Arrays.copyOf(chunks, count);
+        Arrays.sort(chunks, (a, b) -> Integer.compare(a.sectorOffset, b.sectorOffset));
+        return chunks;
+    }
+
+    private static String externalFileName(VanillaRegionPos regionPos, int index) {
+        return String.format("c.%d.%d.mcc", (regionPos.x() << 5) + (index & 31), (regionPos.z() << 5) + (index >> 5));
+    }
+
+    private static byte[] chunkBuffer(int length) {
+        byte[] buffer = CHUNK_BUFFER.get();
+        if (buffer.length < length) {
+            buffer = new byte[length];
+            CHUNK_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return False if the end of the file was reached first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static io.github.notstirred.chunkyeditor.ChunkSelection.CHUNKS_PER_REGION;
+import static io.github.notstirred.chunkyeditor.state.vanilla.RegionHeaderWriter.LOCATION_ENTRY_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+
+/**
+ * Reclaims the sectors of a region file which no chunk uses, such as those left behind by deleting chunks.
+ * <p>
+ * The live chunks are transferred channel to channel into a new file, packed one after another in their original
+ * order, and the new file then replaces the old one in a single atomic move. The timestamp table is kept as is.
+ * A region whose location table is invalid is left untouched.
+ * </p>
+ */
+public class RegionCompactor {
+    /** The location table and the timestamp table */
+    private static final int TABLES_SIZE_BYTES = 2 * HEADER_SIZE_BYTES;
+    private static final int FIRST_DATA_SECTOR = TABLES_SIZE_BYTES / SECTOR_SIZE_BYTES;
+
+    /**
+     * @param originalSize The size of the region file before compacting
+     * @param compactedSize The size after compacting, the same as the original if it was left untouched
+     */
+    public record Result(long originalSize, long compactedSize) {
+        public long reclaimedBytes() {
+            return this.originalSize - this.compactedSize;
+        }
+    }
+
+    private record Chunk(int index, int sectorOffset, int sectorCount) {
+    }
+
+    /**
+     * Compact the region file if it has any unused sectors
+     *
+     * @throws IOException If the region can't be read, its location table is invalid, or the new file can't be written.
+     *                     The original file is untouched.
+     */
+    public static Result compact(Path regionPath) throws IOException {
+        Path compactedPath = regionPath.resolveSibling(regionPath.getFileName() + ".compacting");
+        try {
+            Result result = writeCompacted(regionPath, compactedPath);
+            if (result.reclaimedBytes() > 0) {
+                // the original is closed first, as an open file can't be replaced on every platform
+                Files.move(compactedPath, regionPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(compactedPath);
+        }
+    }
+
+    /**
+     * Write the compacted region, unless nothing can be reclaimed
+     */
+    private static Result writeCompacted(Path regionPath, Path compactedPath) throws IOException {
+        try (FileChannel source = FileChannel.open(regionPath, StandardOpenOption.READ)) {
+            long originalSize = source.size();
+            if (originalSize < TABLES_SIZE_BYTES) {
+                return new Result(originalSize, originalSize); // nothing to compact
+            }
+            ByteBuffer tables = ByteBuffer.allocate(TABLES_SIZE_BYTES);
+            while (tables.hasRemaining()) {
+                if (source.read(tables, tables.position()) < 0) {
+                    throw new IOException("Region file shrank while compacting: " + regionPath);
+                }
+            }
+
+            List<Chunk> chunks = liveChunks(tables, originalSize, regionPath);
+            long liveSectors = FIRST_DATA_SECTOR;
+            for (Chunk chunk : chunks) {
+                liveSectors += chunk.sectorCount;
+            }
+            long compactedSize = liveSectors * SECTOR_SIZE_BYTES;
+            if (compactedSize >= originalSize) {
+                return new Result(originalSize, originalSize);
+            }
+
+            // packed in their original order, so chunks stay near their neighbours
+            int nextSector = FIRST_DATA_SECTOR;
+            for (Chunk chunk : chunks) {
+                tables.putInt(chunk.index * LOCATION_ENTRY_BYTES, nextSector << 8 | chunk.sectorCount);
+                nextSector += chunk.sectorCount;
+            }
+
+            try (FileChannel target = FileChannel.open(compactedPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                tables.clear();
+                while (tables.hasRemaining()) {
+                    target.write(tables);
+                }
+                for (Chunk chunk : chunks) {
+                    transferFully(source, (long) chunk.sectorOffset * SECTOR_SIZE_BYTES, (long) chunk.sectorCount * SECTOR_SIZE_BYTES, target);
+                }
+                // the last chunk may have been short, but every chunk must still be sector aligned
+                if (target.size() < compactedSize) {
+                    target.write(ByteBuffer.allocate(1), compactedSize - 1);
+                }
+                target.force(true);
+            }
+            return new Result(originalSize, compactedSize);
+        }
+    }
+
+    /**
+     * @return Every present chunk, in order of its position in the file
+     * @throws IOException If any chunk is outside the file, or overlaps the tables or another chunk
+     */
+    private static List<Chunk> liveChunks(ByteBuffer tables, long fileSize, Path regionPath) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long fileSectors = (fileSize + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES;
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            int location = tables.getInt(i * LOCATION_ENTRY_BYTES);
+            int sectorOffset = location >>> 8;
+            int sectorCount = location & 0xFF;
+            if (sectorOffset == 0 && sectorCount == 0) {
+                continue; // not present
+            }
+            if (sectorOffset < FIRST_DATA_SECTOR || sectorCount == 0 || sectorOffset >= fileSectors) {
+                throw new IOException(String.format("Invalid location for chunk %d in %s, refusing to compact", i, regionPath));
+            }
+            chunks.add(new Chunk(i, sectorOffset, sectorCount));
+        }
+        chunks.sort(Comparator.comparingInt(Chunk::sectorOffset));
+        for (int i = 1; i < chunks.size(); i++) {
+            Chunk previous = chunks.get(i - 1);
+            if (previous.sectorOffset + previous.sectorCount > chunks.get(i).sectorOffset) {
+                throw new IOException(String.format("Overlapping chunks %d and %d in %s, refusing to compact",
+                        previous.index, chunks.get(i).index, regionPath));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Transfer up to {@code length} bytes, stopping early only at the end of the source. Only the last chunk of a file
+     * can be cut short, as any chunk after it would start past the end.
+     */
+    private static void transferFully(FileChannel source, long position, long length, FileChannel target) throws IOException {
+        long end = Math.min(position + length, source.size());
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Failed to transfer chunk data while compacting");
+            }
+            position += transferred;
+        }
+    }
+}
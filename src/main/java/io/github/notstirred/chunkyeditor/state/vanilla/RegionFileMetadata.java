@@ -0,0 +1,40 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The size and modification time of a region file at the moment a state was taken.
+ *
+ * @param size The file size in bytes
+ * @param lastModifiedNanos The modification time, in nanoseconds since the epoch
+ */
+public record RegionFileMetadata(long size, long lastModifiedNanos) {
+    /**
+     * A modification time this close to the time it was read may be shared with a write that hasn't happened yet, given
+     * a coarse filesystem timestamp resolution.
+     */
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Read the metadata of a region file. Must be called BEFORE the file content is read, so that any write after it
+     * results in different metadata.
+     *
+     * @return Null if the metadata can't be trusted to identify the current content
+     */
+    @Nullable
+    public static RegionFileMetadata read(Path regionPath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(regionPath, BasicFileAttributes.class);
+        long lastModifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long nowNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (nowNanos - lastModifiedNanos < RACY_WINDOW_NANOS) {
+            return null;
+        }
+        return new RegionFileMetadata(attributes.size(), lastModifiedNanos);
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+
+/**
+ * Batches edits to the HEADER (first sector, the chunk location table) of a region file.
+ * <p>
+ * The header is read once when opened, every edit is applied in memory, and {@link #commit()} writes the changed part
+ * of the sector back in a single call.
+ * </p>
+ */
+public class RegionHeaderWriter implements Closeable {
+    public static final int LOCATION_ENTRY_BYTES = 4;
+
+    private final FileChannel channel;
+    private final long fileLength;
+    /** The header as it currently is on disk */
+    private final byte[] original = new byte[HEADER_SIZE_BYTES];
+    /** The header with all edits applied */
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+    /** The total bytes written by every commit */
+    private long writtenBytes = 0;
+
+    private RegionHeaderWriter(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.fileLength = channel.size();
+
+        // bytes past the end of a short file are treated as zero
+        ByteBuffer read = ByteBuffer.wrap(this.original);
+        while (read.hasRemaining()) {
+            if (channel.read(read, read.position()) < 0) {
+                break;
+            }
+        }
+        this.header.put(this.original).clear();
+    }
+
+    /**
+     * Open the region file for header edits, creating it if it doesn't exist.
+     */
+    public static RegionHeaderWriter open(Path regionPath) throws IOException {
+        FileChannel channel = FileChannel.open(regionPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            return new RegionHeaderWriter(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The length of the region file when it was opened
+     */
+    public long fileLength() {
+        return this.fileLength;
+    }
+
+    /**
+     * @param index The index of the chunk within the region, {@code x + z * 32}
+     * @param location The location entry, the sector offset in the upper 3 bytes and the sector count in the lowest byte
+     */
+    public void setLocation(int index, int location) {
+        this.header.putInt(index * LOCATION_ENTRY_BYTES, location);
+    }
+
+    public int getLocation(int index) {
+        return this.header.getInt(index * LOCATION_ENTRY_BYTES);
+    }
+
+    /**
+     * Mark the chunk as not present, the chunk data itself is left untouched
+     *
+     * @param chunkX The x position of the chunk, only the position within the region is used
+     * @param chunkZ The z position of the chunk, only the position within the region is used
+     */
+    public void clearChunk(int chunkX, int chunkZ) {
+        clearChunk(chunkIndex(chunkX, chunkZ));
+    }
+
+    /**
+     * Mark the chunk as not present, the chunk data itself is left untouched
+     *
+     * @param index The index of the chunk within the region, {@code x + z * 32}
+     */
+    public void clearChunk(int index) {
+        setLocation(index, 0);
+    }
+
+    /**
+     * Replace the entire header
+     */
+    public void setHeader(byte[] header) {
+        if (header.length != HEADER_SIZE_BYTES) {
+            throw new IllegalArgumentException(String.format("Expected a header of %d bytes, got %d", HEADER_SIZE_BYTES, header.length));
+        }
+        this.header.put(0, header);
+    }
+
+    /**
+     * @return A copy of the header with all edits applied
+     */
+    public byte[] header() {
+        return Arrays.copyOf(this.header.array(), HEADER_SIZE_BYTES);
+    }
+
+    /**
+     * @return The header as it was when opened (or last committed), and with all edits applied
+     */
+    public Edit pendingEdit() {
+        return new Edit(Arrays.copyOf(this.original, HEADER_SIZE_BYTES), header());
+    }
+
+    /**
+     * Write all edits to the file in a single call. Only the range from the first to the last changed byte is written.
+     *
+     * @return The number of bytes which differed from the file
+     */
+    public int commit() throws IOException {
+        byte[] edited = this.header.array();
+        int first = -1;
+        int last = -1;
+        int changedBytes = 0;
+        for (int i = 0; i < HEADER_SIZE_BYTES; i++) {
+            if (edited[i] != this.original[i]) {
+                if (first == -1) {
+                    first = i;
+                }
+                last = i;
+                changedBytes++;
+            }
+        }
+
+        if (this.fileLength < HEADER_SIZE_BYTES) {
+            // a short file must always get a complete header
+            first = 0;
+            last = HEADER_SIZE_BYTES - 1;
+        } else if (first == -1) {
+            return 0;
+        }
+
+        ByteBuffer write = ByteBuffer.wrap(edited, first, last - first + 1);
+        while (write.hasRemaining()) {
+            this.channel.write(write, write.position());
+        }
+        System.arraycopy(edited, first, this.original, first, last - first + 1);
+        this.writtenBytes += last - first + 1;
+        return changedBytes;
+    }
+
+    /**
+     * @return The total number of bytes written to the file by every commit
+     */
+    public long writtenBytes() {
+        return this.writtenBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    public static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    /**
+     * The headers either side of a set of edits
+     *
+     * @param before The header before the edits
+     * @param after The header with the edits applied
+     */
+    public record Edit(byte[] before, byte[] after) {
+    }
+}
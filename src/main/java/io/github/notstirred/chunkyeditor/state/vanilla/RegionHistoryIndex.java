@@ -0,0 +1,125 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.state.State;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * For every region, the indices of the state groups which hold a state for it, and which of those are external.
+ * Indices are kept in ascending order, so the most recent state at or before any index is a binary search away.
+ * <p>
+ * This is only modified on the thread which modifies the tracker, and may be read concurrently by region workers while
+ * the tracker isn't being modified.
+ * </p>
+ */
+class RegionHistoryIndex {
+    static final int NONE = -1;
+
+    private final Map<VanillaRegionPos, Entry> entries = new HashMap<>();
+
+    /**
+     * Record the state of a region in the group at {@code stateIdx}, which must be at or after every index recorded so far.
+     * Recording the same group again updates whether it is external.
+     */
+    void put(VanillaRegionPos regionPos, int stateIdx, State state) {
+        Entry entry = this.entries.computeIfAbsent(regionPos, pos -> new Entry());
+        addIfAbsent(entry.all, stateIdx);
+        if (state.isInternal()) {
+            if (last(entry.external) == stateIdx) {
+                entry.external.popInt();
+            }
+        } else {
+            addIfAbsent(entry.external, stateIdx);
+        }
+    }
+
+    void putGroup(int stateIdx, VanillaStateTracker.StateGroup group) {
+        group.getStates().forEach((regionPos, state) -> {
+            // failed snapshots are recorded as null, and were never considered a previous state
+            if (state != null) {
+                put(regionPos, stateIdx, state);
+            }
+        });
+    }
+
+    /**
+     * @return The most recent group index at or before {@code maxStateIdx} holding a state for the region, or {@link #NONE}
+     */
+    int findPrevious(VanillaRegionPos regionPos, int maxStateIdx) {
+        Entry entry = this.entries.get(regionPos);
+        return entry == null ? NONE : floor(entry.all, maxStateIdx);
+    }
+
+    /**
+     * @return The most recent group index at or before {@code maxStateIdx} holding an external state for the region, or {@link #NONE}
+     */
+    int findPreviousExternal(VanillaRegionPos regionPos, int maxStateIdx) {
+        Entry entry = this.entries.get(regionPos);
+        return entry == null ? NONE : floor(entry.external, maxStateIdx);
+    }
+
+    /**
+     * Forget every group at or after {@code stateIdx}
+     */
+    void removeFrom(int stateIdx) {
+        this.entries.values().removeIf(entry -> {
+            truncate(entry.all, stateIdx);
+            truncate(entry.external, stateIdx);
+            return entry.all.isEmpty();
+        });
+    }
+
+    void clear() {
+        this.entries.clear();
+    }
+
+    private static void addIfAbsent(IntArrayList indices, int stateIdx) {
+        int last = last(indices);
+        if (last > stateIdx) {
+            throw new IllegalStateException(String.format("Recorded state %d after state %d", stateIdx, last));
+        }
+        if (last != stateIdx) {
+            indices.add(stateIdx);
+        }
+    }
+
+    private static int last(IntArrayList indices) {
+        return indices.isEmpty() ? NONE : indices.getInt(indices.size() - 1);
+    }
+
+    /**
+     * @return The largest index which is at most {@code maxStateIdx}, or {@link #NONE}
+     */
+    private static int floor(IntArrayList indices, int maxStateIdx) {
+        int low = 0;
+        int high = indices.size() - 1;
+        int found = NONE;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = indices.getInt(mid);
+            if (value <= maxStateIdx) {
+                found = value;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static void truncate(IntArrayList indices, int stateIdx) {
+        int size = indices.size();
+        while (size > 0 && indices.getInt(size - 1) >= stateIdx) {
+            size--;
+        }
+        indices.size(size);
+    }
+
+    private static final class Entry {
+        private final IntArrayList all = new IntArrayList(4);
+        private final IntArrayList external = new IntArrayList(2);
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import java.nio.file.Path;
+
+/**
+ * The region files a world keeps for each region, each kind in its own directory. Every kind shares the same chunk
+ * layout, so a chunk is deleted by clearing the same location table entry in each.
+ */
+public enum RegionKind {
+    /** The chunks themselves, always present */
+    TERRAIN("region"),
+    /** Entities, split out of the terrain since 1.17 */
+    ENTITIES("entities"),
+    /** Points of interest such as beds and workstations, since 1.14 */
+    POI("poi");
+
+    private final String directoryName;
+
+    RegionKind(String directoryName) {
+        this.directoryName = directoryName;
+    }
+
+    public Path directoryIn(Path worldDirectory) {
+        return worldDirectory.resolve(this.directoryName);
+    }
+
+    @Override
+    public String toString() {
+        return this.directoryName;
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.util.ExceptionUtils;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of single threaded workers which region file I/O is partitioned across.
+ * <p>
+ * Every region is always assigned to the same worker, so two tasks for the same region file can never run at the same
+ * time, while tasks for disjoint regions run in parallel.
+ * </p>
+ */
+public class RegionWorkerPool {
+    private final ExecutorService[] workers;
+
+    public RegionWorkerPool(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Worker count must be at least 1, got " + workerCount);
+        }
+        this.workers = new ExecutorService[workerCount];
+        AtomicInteger threadIdx = new AtomicInteger();
+        for (int i = 0; i < workerCount; i++) {
+            this.workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "chunky-editor-region-worker-" + threadIdx.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * A pool with one worker per available processor
+     */
+    public static RegionWorkerPool withDefaultSize() {
+        return new RegionWorkerPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    public int workerCount() {
+        return this.workers.length;
+    }
+
+    private ExecutorService workerFor(VanillaRegionPos regionPos) {
+        return this.workers[Math.floorMod(regionPos.hashCode(), this.workers.length)];
+    }
+
+    /**
+     * Run the task for every region, blocking until all of them have completed.
+     * This method MUST attempt to run every region, even if some regions fail.
+     *
+     * @param regionPositions The regions to run the task for
+     * @param task The task to run for each region, may return null
+     * @return The results of every region that succeeded, and the errors of every region that failed
+     */
+    public <T> Result<T> run(Collection<VanillaRegionPos> regionPositions, RegionTask<T> task) {
+        return run(regionPositions, new TaskProgress(), task);
+    }
+
+    /**
+     * Run the task for every region, blocking until all of them have completed or were cancelled.
+     * This method MUST attempt to run every region, even if some regions fail, unless the progress is cancelled.
+     * Cancellation is checked before each region starts, a region which has started always runs to completion.
+     *
+     * @param regionPositions The regions to run the task for
+     * @param progress Counts every region as it completes
+     * @param task The task to run for each region, may return null
+     * @return The results of every region that succeeded, the errors of every region that failed, and every region
+     *         which was never started because of cancellation
+     */
+    public <T> Result<T> run(Collection<VanillaRegionPos> regionPositions, TaskProgress progress, RegionTask<T> task) {
+        progress.addRegions(regionPositions.size());
+        Map<VanillaRegionPos, Future<T>> futures = new HashMap<>();
+        for (VanillaRegionPos regionPos : regionPositions) {
+            futures.put(regionPos, workerFor(regionPos).submit(() -> {
+                if (progress.shouldStop()) {
+                    throw new CancellationException();
+                }
+                try {
+                    return task.run(regionPos);
+                } finally {
+                    progress.regionDone();
+                }
+            }));
+        }
+
+        Map<VanillaRegionPos, T> values = new HashMap<>();
+        Map<VanillaRegionPos, IOException> failures = new HashMap<>();
+        Set<VanillaRegionPos> cancelled = new HashSet<>();
+        boolean interrupted = false;
+        for (Map.Entry<VanillaRegionPos, Future<T>> entry : futures.entrySet()) {
+            VanillaRegionPos regionPos = entry.getKey();
+            while (true) {
+                try {
+                    values.put(regionPos, entry.getValue().get());
+                } catch (InterruptedException e) {
+                    // the other tasks are already submitted, so we must wait for them all to finish regardless
+                    interrupted = true;
+                    continue;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        cancelled.add(regionPos);
+                    } else {
+                        failures.put(regionPos, asIOException(regionPos, e.getCause()));
+                    }
+                }
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return new Result<>(values, failures, cancelled);
+    }
+
+    private static IOException asIOException(VanillaRegionPos regionPos, Throwable cause) {
+        if (cause instanceof IOException ioException) {
+            return ioException;
+        }
+        if (cause instanceof UncheckedIOException uncheckedIOException) {
+            return uncheckedIOException.getCause();
+        }
+        return new IOException("Unexpected error processing region " + regionPos.fileName(), cause);
+    }
+
+    public void shutdown() {
+        for (ExecutorService worker : this.workers) {
+            worker.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    public interface RegionTask<T> {
+        T run(VanillaRegionPos regionPos) throws IOException;
+    }
+
+    /**
+     * @param values The value returned for each region that succeeded
+     * @param failures The exception thrown by each region that failed
+     * @param cancelled Every region which was never started because of cancellation
+     */
+    public record Result<T>(Map<VanillaRegionPos, T> values, Map<VanillaRegionPos, IOException> failures,
+                            Set<VanillaRegionPos> cancelled) {
+        public boolean wasCancelled() {
+            return !this.cancelled.isEmpty();
+        }
+
+        /**
+         * @return Every region which the task was run for, whether it succeeded or failed
+         */
+        public Set<VanillaRegionPos> attempted() {
+            Set<VanillaRegionPos> attempted = new HashSet<>(this.values.keySet());
+            attempted.addAll(this.failures.keySet());
+            return attempted;
+        }
+
+        /**
+         * @return All failures chained together as suppressed exceptions, or null if every region succeeded
+         */
+        @Nullable
+        public IOException chainedFailures() {
+            return ExceptionUtils.chainSuppressedExceptions(this.failures.values());
+        }
+
+        /**
+         * Throw the chained failures if any region failed
+         */
+        public void rethrow() throws IOException {
+            IOException failure = chainedFailures();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
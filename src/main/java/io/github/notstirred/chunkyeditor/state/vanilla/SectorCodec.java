@@ -0,0 +1,113 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the {@link SectorStore} encodes sectors held in memory and spilled to disk.
+ */
+public enum SectorCodec {
+    /** Sectors are held as raw bytes */
+    NONE {
+        @Nullable
+        @Override
+        byte[] encode(byte[] data, int offset, int length) {
+            return null;
+        }
+
+        /**
+         * Nothing is ever encoded, so the content is copied as it is
+         */
+        @Override
+        void decode(byte[] encoded, int encodedLength, byte[] out, int outOffset, int length) throws IOException {
+            if (encodedLength != length) {
+                throw new IOException(String.format("Raw state sector is %d bytes, expected %d bytes.", encodedLength, length));
+            }
+            System.arraycopy(encoded, 0, out, outOffset, length);
+        }
+    },
+    /**
+     * Sectors are deflated at the fastest level. Region headers, timestamp tables and the zero padding after each
+     * chunk compress very well, while already compressed chunk data is quickly detected and left raw.
+     */
+    DEFLATE {
+        private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+        private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+        @Nullable
+        @Override
+        byte[] encode(byte[] data, int offset, int length) {
+            Deflater deflater = this.deflater.get();
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            // anything that doesn't fit in less than the raw size isn't worth keeping compressed
+            byte[] out = new byte[length];
+            int outLength = 0;
+            while (!deflater.finished() && outLength < out.length) {
+                outLength += deflater.deflate(out, outLength, out.length - outLength);
+            }
+            if (!deflater.finished() || outLength >= length) {
+                return null;
+            }
+            return Arrays.copyOf(out, outLength);
+        }
+
+        @Override
+        void decode(byte[] encoded, int encodedLength, byte[] out, int outOffset, int length) throws IOException {
+            Inflater inflater = this.inflater.get();
+            inflater.reset();
+            inflater.setInput(encoded, 0, encodedLength);
+            try {
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    int read = inflater.inflate(out, outOffset + inflated, length - inflated);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += read;
+                }
+                if (inflated != length) {
+                    throw new IOException(String.format("Failed to decompress state sector. Only got %d bytes, expected %d bytes.", inflated, length));
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Failed to decompress state sector", e);
+            }
+        }
+    };
+
+    /**
+     * The codec used when none is specified, overridable with {@code -Dchunky-editor.stateCodec=NONE}.
+     * An unknown codec falls back to {@link #DEFLATE}, so a typo can't stop the editor from opening.
+     */
+    public static SectorCodec defaultCodec() {
+        String name = System.getProperty("chunky-editor.stateCodec", DEFLATE.name());
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Log.warn(String.format("Unknown state codec \"%s\", expected one of %s. Using %s instead.",
+                    name, Arrays.toString(values()), DEFLATE));
+            return DEFLATE;
+        }
+    }
+
+    /**
+     * @return The encoded sector, or null if the sector should be kept raw
+     */
+    @Nullable
+    abstract byte[] encode(byte[] data, int offset, int length);
+
+    /**
+     * @param encodedLength The number of bytes at the start of {@code encoded} which hold the encoded sector
+     * @param length The raw length of the sector
+     */
+    abstract void decode(byte[] encoded, int encodedLength, byte[] out, int outOffset, int length) throws IOException;
+}
@@ -0,0 +1,675 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.util.HashUtil;
+import io.github.notstirred.chunkyeditor.util.ResourceClosedException;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A content addressed store of region file sectors, shared between every state of a {@link VanillaStateTracker}.
+ * <p>
+ * Sectors are keyed by their SHA-1 digest, so a sector which is identical across many snapshots (or many regions) is
+ * only ever held once, in memory or in the tracker's {@link StateJournal}. Sectors are reference counted, and are
+ * dropped once no state uses them.
+ * </p>
+ * <p>
+ * Sectors stay in memory until the resident budget is exceeded, at which point the least recently used sectors which
+ * have been {@link #markSpillable(Sector) allowed to disk} are spilled. Under JVM memory pressure all of them are.
+ * New sectors which don't fit in the budget at all are {@link #internAll written straight to disk} instead, rather than
+ * copied into memory only to be spilled right away.
+ * </p>
+ */
+public class SectorStore {
+    public static final int SECTOR_SIZE_BYTES = 4096;
+
+    private static final ThreadLocal<byte[]> DECODE_BUFFER = ThreadLocal.withInitial(() -> new byte[SECTOR_SIZE_BYTES]);
+    private static final ThreadLocal<byte[]> ENCODED_BUFFER = ThreadLocal.withInitial(() -> new byte[SECTOR_SIZE_BYTES]);
+    /** The most sectors moved by a single append when compacting the journal, about a region file's worth */
+    private static final int COMPACT_BATCH_BYTES = 4 * 1024 * 1024;
+    /** The most stored bytes spilled by a single append, so that a large spill publishes its progress as it goes */
+    private static final int SPILL_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * The budget used when none is specified, overridable with {@code -Dchunky-editor.stateMemoryBudgetMiB=N}
+     */
+    public static long defaultResidentBudgetBytes() {
+        long defaultMiB = Math.min(512, Runtime.getRuntime().maxMemory() / 8 / 1024 / 1024);
+        return Long.getLong("chunky-editor.stateMemoryBudgetMiB", defaultMiB) * 1024 * 1024;
+    }
+
+    private final SectorCodec codec;
+    private final Map<Digest, Sector> sectors = new HashMap<>();
+
+    /** Stored (possibly encoded) bytes */
+    private long residentBytes = 0;
+    private long diskBytes = 0;
+    /** Stored bytes ever written to the journal, never decreasing */
+    private long spilledBytes = 0;
+    /** Stored bytes of resident sectors being written to the journal by a spill, which are still resident until then */
+    private long spillingBytes = 0;
+
+    /** Spilled sectors are appended to this */
+    private final StateJournal journal;
+
+    private long residentBudgetBytes;
+    /** Resident spillable sectors, least recently used first */
+    @Nullable private Sector lruHead;
+    @Nullable private Sector lruTail;
+
+    public SectorStore(SectorCodec codec, StateJournal journal, long residentBudgetBytes) {
+        this.codec = codec;
+        this.journal = journal;
+        this.residentBudgetBytes = residentBudgetBytes;
+    }
+
+    /**
+     * Get the sector with the specified content, adding it to the store if it doesn't exist.
+     * The sector must be {@link #release(Sector) released} when the caller no longer uses it.
+     *
+     * @param data The array holding the sector content, it is copied if the sector is new
+     * @param length The length of the sector, at most {@link #SECTOR_SIZE_BYTES}. Only the last sector of a file may be shorter.
+     */
+    Sector intern(byte[] data, int offset, int length) {
+        // hashing and encoding are the expensive parts, so happen outside the lock
+        Digest digest = new Digest(HashUtil.sha1(data, offset, length));
+        synchronized (this) {
+            Sector sector = this.sectors.get(digest);
+            if (sector != null) {
+                sector.refCount++;
+                touch(sector);
+                return sector;
+            }
+        }
+
+        byte[] encoded = this.codec.encode(data, offset, length);
+        boolean isEncoded = encoded != null;
+        byte[] stored = isEncoded ? encoded : Arrays.copyOfRange(data, offset, offset + length);
+        synchronized (this) {
+            // another worker may have interned the same sector meanwhile
+            Sector sector = this.sectors.get(digest);
+            if (sector == null) {
+                sector = new Sector(digest, length, stored, isEncoded);
+                this.sectors.put(digest, sector);
+                this.residentBytes += sector.storedLength;
+            }
+            sector.refCount++;
+            return sector;
+        }
+    }
+
+    /**
+     * Get the sectors with the content of the buffer, as {@link #intern} does for each one. New sectors which would
+     * exceed the resident budget are written straight to the journal from the buffer, all in a single append, so are
+     * never copied in memory.
+     *
+     * @param length The length of the content, only the last sector may be shorter than {@link #SECTOR_SIZE_BYTES}
+     * @param out Where a reference to each sector is added, in order
+     */
+    void internAll(byte[] data, int length, List<Sector> out) {
+        int sectorCount = (length + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES;
+        // hashing and encoding are the expensive parts, so happen outside the lock
+        Digest[] digests = new Digest[sectorCount];
+        for (int i = 0; i < sectorCount; i++) {
+            int offset = i * SECTOR_SIZE_BYTES;
+            digests[i] = new Digest(HashUtil.sha1(data, offset, Math.min(SECTOR_SIZE_BYTES, length - offset)));
+        }
+        Sector[] sectors = new Sector[sectorCount];
+        boolean anyNew = false;
+        synchronized (this) {
+            for (int i = 0; i < sectorCount; i++) {
+                Sector sector = this.sectors.get(digests[i]);
+                if (sector != null) {
+                    sector.refCount++;
+                    touch(sector);
+                    sectors[i] = sector;
+                } else {
+                    anyNew = true;
+                }
+            }
+        }
+
+        if (anyNew) {
+            byte[][] encoded = new byte[sectorCount][];
+            for (int i = 0; i < sectorCount; i++) {
+                if (sectors[i] == null) {
+                    int offset = i * SECTOR_SIZE_BYTES;
+                    encoded[i] = this.codec.encode(data, offset, Math.min(SECTOR_SIZE_BYTES, length - offset));
+                }
+            }
+            synchronized (this) {
+                addNew(data, length, digests, encoded, sectors);
+            }
+        }
+        Collections.addAll(out, sectors);
+    }
+
+    /**
+     * Add every sector which wasn't found, including any another worker added meanwhile
+     *
+     * @param encoded The encoded content of each sector, or null for those kept raw
+     * @param sectors The sectors found so far, the rest are filled in
+     */
+    private void addNew(byte[] data, int length, Digest[] digests, byte[][] encoded, Sector[] sectors) {
+        List<Sector> toDisk = new ArrayList<>();
+        List<ByteBuffer> toDiskContent = new ArrayList<>();
+        for (int i = 0; i < sectors.length; i++) {
+            if (sectors[i] != null) {
+                continue;
+            }
+            // an identical sector may have been added meanwhile, or earlier in this same buffer
+            Sector sector = this.sectors.get(digests[i]);
+            if (sector == null) {
+                int offset = i * SECTOR_SIZE_BYTES;
+                int sectorLength = Math.min(SECTOR_SIZE_BYTES, length - offset);
+                boolean isEncoded = encoded[i] != null;
+                int storedLength = isEncoded ? encoded[i].length : sectorLength;
+                if (this.residentBytes + storedLength <= this.residentBudgetBytes) {
+                    byte[] stored = isEncoded ? encoded[i] : Arrays.copyOfRange(data, offset, offset + sectorLength);
+                    sector = new Sector(digests[i], sectorLength, stored, isEncoded);
+                    this.residentBytes += storedLength;
+                } else {
+                    sector = new Sector(digests[i], sectorLength, storedLength, isEncoded, -1);
+                    toDisk.add(sector);
+                    // sliced so that each buffer starts at its own sector, which the fallback below relies on
+                    toDiskContent.add(isEncoded ? ByteBuffer.wrap(encoded[i]) : ByteBuffer.wrap(data, offset, sectorLength).slice());
+                }
+                this.sectors.put(digests[i], sector);
+            } else {
+                touch(sector);
+            }
+            sector.refCount++;
+            sectors[i] = sector;
+        }
+        if (toDisk.isEmpty()) {
+            return;
+        }
+
+        try {
+            long diskAddress = this.journal.append(toDiskContent.toArray(new ByteBuffer[0]));
+            for (Sector sector : toDisk) {
+                sector.diskAddress = diskAddress;
+                diskAddress += sector.storedLength;
+                this.diskBytes += sector.storedLength;
+                this.spilledBytes += sector.storedLength;
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to write state sectors to disk, keeping them in memory", e);
+            for (int i = 0; i < toDisk.size(); i++) {
+                Sector sector = toDisk.get(i);
+                ByteBuffer content = toDiskContent.get(i);
+                content.rewind();
+                byte[] stored = new byte[sector.storedLength];
+                content.get(stored);
+                sector.data = stored;
+                this.residentBytes += sector.storedLength;
+                linkLast(sector);
+            }
+        }
+    }
+
+    /**
+     * Get a sector which was {@link #persist(Sector) persisted} by an earlier store to a journal this store's journal
+     * reopened, adding it to the store without reading it if it doesn't exist. Released like an interned sector.
+     *
+     * @param digest The {@link Sector#digest() digest} of the sector
+     * @param diskAddress The address of the sector in the journal
+     */
+    synchronized Sector restore(byte[] digest, int length, int storedLength, boolean isEncoded, long diskAddress) throws IOException {
+        Digest key = new Digest(digest);
+        Sector sector = this.sectors.get(key);
+        if (sector == null) {
+            this.journal.restore(diskAddress, storedLength);
+            sector = new Sector(key, length, storedLength, isEncoded, diskAddress);
+            this.sectors.put(key, sector);
+            this.diskBytes += storedLength;
+        }
+        sector.refCount++;
+        return sector;
+    }
+
+    /**
+     * Write the sector to the journal if it isn't already, keeping it in memory if it is.
+     *
+     * @return The address of the sector in the journal
+     */
+    synchronized long persist(Sector sector) throws IOException {
+        if (sector.diskAddress < 0) {
+            byte[] data = sector.data;
+            if (data == null) {
+                throw new ResourceClosedException("Attempted to persist a released state sector!");
+            }
+            sector.diskAddress = this.journal.append(data);
+            this.diskBytes += sector.storedLength;
+            this.spilledBytes += sector.storedLength;
+        }
+        return sector.diskAddress;
+    }
+
+    /**
+     * Move every sector held in a {@link StateJournal#sparseSegments() sparse} journal segment to the end of the journal,
+     * so the segment can be reclaimed rather than kept for a few long lived sectors. Sectors are moved in batches, each
+     * written in a single append.
+     * <p>
+     * Must not be called while sectors may be read, as they are read from their journal address without the lock.
+     * </p>
+     *
+     * @return The stored bytes moved
+     */
+    synchronized long compactJournal() throws IOException {
+        IntSet sparse = this.journal.sparseSegments();
+        if (sparse.isEmpty()) {
+            return 0;
+        }
+        List<Sector> moving = new ArrayList<>();
+        for (Sector sector : this.sectors.values()) {
+            if (sector.diskAddress >= 0 && sparse.contains(StateJournal.segmentIdx(sector.diskAddress))) {
+                moving.add(sector);
+            }
+        }
+
+        long moved = 0;
+        for (int batchStart = 0; batchStart < moving.size(); ) {
+            int batchEnd = batchStart;
+            int batchBytes = 0;
+            while (batchEnd < moving.size() && batchBytes < COMPACT_BATCH_BYTES) {
+                batchBytes += moving.get(batchEnd++).storedLength;
+            }
+            ByteBuffer[] contents = new ByteBuffer[batchEnd - batchStart];
+            for (int i = 0; i < contents.length; i++) {
+                Sector sector = moving.get(batchStart + i);
+                byte[] stored = sector.data;
+                if (stored == null) {
+                    stored = new byte[sector.storedLength];
+                    this.journal.read(sector.diskAddress, 0, stored, 0, sector.storedLength);
+                }
+                contents[i] = ByteBuffer.wrap(stored);
+            }
+
+            long diskAddress = this.journal.append(contents);
+            for (int i = 0; i < contents.length; i++) {
+                Sector sector = moving.get(batchStart + i);
+                this.journal.free(sector.diskAddress, sector.storedLength);
+                sector.diskAddress = diskAddress;
+                diskAddress += sector.storedLength;
+            }
+            moved += batchBytes;
+            batchStart = batchEnd;
+        }
+        return moved;
+    }
+
+    /**
+     * Add another reference to an already interned sector
+     */
+    synchronized void retain(Sector sector) {
+        if (sector.refCount <= 0) {
+            throw new IllegalStateException("Retained a sector which was already released");
+        }
+        sector.refCount++;
+    }
+
+    synchronized void release(Sector sector) {
+        if (sector.refCount <= 0) {
+            throw new IllegalStateException("Released a sector more times than it was interned");
+        }
+        if (--sector.refCount > 0) {
+            return;
+        }
+        this.sectors.remove(sector.digest);
+        unlink(sector);
+        if (sector.data != null) {
+            this.residentBytes -= sector.storedLength;
+            sector.data = null;
+        }
+        if (sector.diskAddress >= 0) {
+            this.diskBytes -= sector.storedLength;
+            this.journal.free(sector.diskAddress, sector.storedLength);
+        }
+    }
+
+    /**
+     * Allow the sector to be spilled to disk once it is among the least recently used.
+     * Call {@link #enforceBudget()} afterwards.
+     */
+    synchronized void markSpillable(Sector sector) {
+        if (sector.spillable) {
+            return;
+        }
+        sector.spillable = true;
+        if (sector.data != null) {
+            linkLast(sector);
+        }
+    }
+
+    /**
+     * Spill the least recently used spillable sectors until the resident budget is met
+     */
+    void enforceBudget() {
+        long residentBudgetBytes;
+        synchronized (this) {
+            residentBudgetBytes = this.residentBudgetBytes;
+        }
+        spillUntil(residentBudgetBytes);
+    }
+
+    public void setResidentBudgetBytes(long residentBudgetBytes) {
+        synchronized (this) {
+            this.residentBudgetBytes = residentBudgetBytes;
+        }
+        enforceBudget();
+    }
+
+    public SectorCodec codec() {
+        return this.codec;
+    }
+
+    public synchronized long residentBudgetBytes() {
+        return this.residentBudgetBytes;
+    }
+
+    /**
+     * Spill every spillable sector, regardless of budget. Used when the JVM is running out of memory.
+     */
+    public void spillAll() {
+        spillUntil(0);
+    }
+
+    /**
+     * Spill in batches, each written in a single append. The sectors of a batch are picked under the lock but written
+     * outside it, so interning and reading other sectors carry on meanwhile. Until written, they are still read from
+     * memory. If writing fails they are kept in memory.
+     */
+    private void spillUntil(long targetResidentBytes) {
+        while (true) {
+            List<Sector> spilling = new ArrayList<>();
+            List<ByteBuffer> contents = new ArrayList<>();
+            synchronized (this) {
+                int batchBytes = 0;
+                while (this.residentBytes - this.spillingBytes > targetResidentBytes && this.lruHead != null
+                        && batchBytes < SPILL_BATCH_BYTES) {
+                    Sector sector = this.lruHead;
+                    unlink(sector);
+                    if (sector.diskAddress >= 0) {
+                        // already persisted, so only the memory is dropped
+                        sector.data = null;
+                        this.residentBytes -= sector.storedLength;
+                        continue;
+                    }
+                    sector.spilling = true;
+                    this.spillingBytes += sector.storedLength;
+                    batchBytes += sector.storedLength;
+                    spilling.add(sector);
+                    contents.add(ByteBuffer.wrap(sector.data));
+                }
+            }
+            if (spilling.isEmpty()) {
+                return;
+            }
+
+            long diskAddress;
+            try {
+                diskAddress = this.journal.append(contents.toArray(new ByteBuffer[0]));
+            } catch (IOException e) {
+                Log.warn("Failed to commit state sectors to disk", e);
+                synchronized (this) {
+                    // still the least recently used, in the same order
+                    for (int i = spilling.size() - 1; i >= 0; i--) {
+                        Sector sector = spilling.get(i);
+                        finishSpilling(sector);
+                        if (sector.refCount > 0) {
+                            linkFirst(sector);
+                        }
+                    }
+                }
+                return; // writing fails, so there is no point in trying the rest
+            }
+
+            synchronized (this) {
+                for (Sector sector : spilling) {
+                    finishSpilling(sector);
+                    this.spilledBytes += sector.storedLength;
+                    if (sector.refCount == 0 || sector.diskAddress >= 0) {
+                        // released or persisted meanwhile, so this copy isn't needed
+                        this.journal.free(diskAddress, sector.storedLength);
+                    } else {
+                        sector.diskAddress = diskAddress;
+                        this.diskBytes += sector.storedLength;
+                    }
+                    if (sector.refCount > 0) {
+                        sector.data = null;
+                        this.residentBytes -= sector.storedLength;
+                    }
+                    diskAddress += sector.storedLength;
+                }
+            }
+        }
+    }
+
+    private void finishSpilling(Sector sector) {
+        sector.spilling = false;
+        this.spillingBytes -= sector.storedLength;
+    }
+
+    /**
+     * Mark the sector as the most recently used
+     */
+    private void touch(Sector sector) {
+        // a sector being spilled is no longer linked, and is dropped from memory once written anyway
+        if (sector.spillable && sector.data != null && !sector.spilling) {
+            unlink(sector);
+            linkLast(sector);
+        }
+    }
+
+    private void linkLast(Sector sector) {
+        sector.lruPrev = this.lruTail;
+        sector.lruNext = null;
+        if (this.lruTail != null) {
+            this.lruTail.lruNext = sector;
+        } else {
+            this.lruHead = sector;
+        }
+        this.lruTail = sector;
+    }
+
+    private void linkFirst(Sector sector) {
+        sector.lruPrev = null;
+        sector.lruNext = this.lruHead;
+        if (this.lruHead != null) {
+            this.lruHead.lruPrev = sector;
+        } else {
+            this.lruTail = sector;
+        }
+        this.lruHead = sector;
+    }
+
+    private void unlink(Sector sector) {
+        if (sector.lruPrev == null && this.lruHead != sector) {
+            return; // not linked
+        }
+        if (sector.lruPrev != null) {
+            sector.lruPrev.lruNext = sector.lruNext;
+        } else {
+            this.lruHead = sector.lruNext;
+        }
+        if (sector.lruNext != null) {
+            sector.lruNext.lruPrev = sector.lruPrev;
+        } else {
+            this.lruTail = sector.lruPrev;
+        }
+        sector.lruPrev = null;
+        sector.lruNext = null;
+    }
+
+    /**
+     * Copy the decoded content of the sector
+     *
+     * @param sectorOffset The offset within the sector to start reading from
+     * @param out The array to copy into
+     * @param outOffset The offset within the output array
+     * @param length The number of bytes to copy
+     */
+    void read(Sector sector, int sectorOffset, byte[] out, int outOffset, int length) throws IOException {
+        if (!sector.isEncoded) {
+            readStored(sector, sectorOffset, out, outOffset, length);
+            return;
+        }
+
+        byte[] encoded;
+        synchronized (this) {
+            encoded = sector.data;
+            if (encoded != null) {
+                touch(sector);
+            }
+        }
+        if (encoded == null) {
+            // an encoded sector is always smaller than a raw one
+            encoded = ENCODED_BUFFER.get();
+            readStored(sector, 0, encoded, 0, sector.storedLength);
+        }
+        if (sectorOffset == 0 && length == sector.length) {
+            this.codec.decode(encoded, sector.storedLength, out, outOffset, length);
+        } else {
+            byte[] decoded = DECODE_BUFFER.get();
+            this.codec.decode(encoded, sector.storedLength, decoded, 0, sector.length);
+            System.arraycopy(decoded, sectorOffset, out, outOffset, length);
+        }
+    }
+
+    /**
+     * Copy the stored (possibly encoded) content of the sector
+     */
+    private void readStored(Sector sector, int storedOffset, byte[] out, int outOffset, int length) throws IOException {
+        long diskAddress;
+        synchronized (this) {
+            byte[] data = sector.data;
+            if (data != null) {
+                touch(sector);
+                System.arraycopy(data, storedOffset, out, outOffset, length);
+                return;
+            }
+            if (sector.diskAddress < 0) {
+                throw new ResourceClosedException("Attempted to access a released state sector!");
+            }
+            diskAddress = sector.diskAddress;
+        }
+        this.journal.read(diskAddress, storedOffset, out, outOffset, length);
+    }
+
+    /**
+     * @return The stored bytes of unique sectors currently held in memory
+     */
+    public synchronized long residentBytes() {
+        return this.residentBytes;
+    }
+
+    /**
+     * @return The stored bytes of unique sectors currently held on disk
+     */
+    public synchronized long diskBytes() {
+        return this.diskBytes;
+    }
+
+    /**
+     * @return The stored bytes of every sector ever spilled to disk, including those since released
+     */
+    public synchronized long spilledBytes() {
+        return this.spilledBytes;
+    }
+
+    public synchronized int sectorCount() {
+        return this.sectors.size();
+    }
+
+    /**
+     * A single unique sector. Identity equality is content equality for sectors of the same store.
+     */
+    static final class Sector {
+        private final Digest digest;
+        /** The decoded length */
+        final int length;
+        /** The length as held in memory or on disk */
+        final int storedLength;
+        private final boolean isEncoded;
+        /** The stored content, null once the sector is on disk */
+        @Nullable private volatile byte[] data;
+        /** The journal address of the sector, -1 if the sector isn't on disk */
+        private long diskAddress = -1;
+        private int refCount = 0;
+
+        /** Whether any state holding this sector has been allowed to disk */
+        private boolean spillable = false;
+        /** Whether the sector is being written to the journal by a spill, outside the lock */
+        private boolean spilling = false;
+        @Nullable private Sector lruPrev;
+        @Nullable private Sector lruNext;
+
+        private Sector(Digest digest, int length, byte[] stored, boolean isEncoded) {
+            this.digest = digest;
+            this.length = length;
+            this.storedLength = stored.length;
+            this.data = stored;
+            this.isEncoded = isEncoded;
+        }
+
+        /**
+         * A sector only on disk, which is always spillable as it was already spilled
+         *
+         * @param diskAddress The address of the sector in the journal, or -1 if it is yet to be written
+         */
+        private Sector(Digest digest, int length, int storedLength, boolean isEncoded, long diskAddress) {
+            this.digest = digest;
+            this.length = length;
+            this.storedLength = storedLength;
+            this.data = null;
+            this.isEncoded = isEncoded;
+            this.diskAddress = diskAddress;
+            this.spillable = true;
+        }
+
+        /**
+         * @return The SHA-1 digest of the decoded content. Must not be modified.
+         */
+        byte[] digest() {
+            return this.digest.bytes;
+        }
+
+        boolean isEncoded() {
+            return this.isEncoded;
+        }
+
+        boolean isResident() {
+            return this.data != null;
+        }
+
+        boolean isOnDisk() {
+            return this.diskAddress >= 0;
+        }
+    }
+
+    private static final class Digest {
+        private final byte[] bytes;
+        private final int hash;
+
+        private Digest(byte[] bytes) {
+            this.bytes = bytes;
+            // the digest is already uniformly distributed
+            this.hash = (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest other && Arrays.equals(this.bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.Editor;
+import io.github.notstirred.chunkyeditor.util.ResourceClosedException;
+import io.github.notstirred.chunkyeditor.util.TemporaryDirectories;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only journal which spilled state data is written to, owned by a {@link HistoryStorage}.
+ * <p>
+ * Records are appended to the current segment file until it is full, after which a new segment is started.
+ * Every segment keeps one open channel which all reads share. Once every record in a segment has been freed,
+ * the segment file is deleted. For a persistent journal that waits until the index no longer refers to the records,
+ * see {@link #reclaimFreed()}.
+ * </p>
+ * <p>
+ * A record is addressed by a single long, the segment index in the upper bits and the offset within the segment in
+ * the lower {@link #OFFSET_BITS} bits. The caller is responsible for remembering the length of each record.
+ * </p>
+ * <p>
+ * Records which outlive most of their segment can be moved on by the owner of the addresses, see
+ * {@link #sparseSegments()}.
+ * </p>
+ * <p>
+ * A journal is temporary by default, deleted when the journal is collected or the JVM exits. A persistent journal is
+ * kept in a given directory, and reopened from it by a later journal which {@link #restore(long, int) restores} the
+ * records still in use.
+ * </p>
+ */
+public class StateJournal {
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    public static final long DEFAULT_SEGMENT_SIZE_BYTES = 64L * 1024 * 1024;
+    /** Full segments with less than this fraction of their records still in use are worth compacting */
+    private static final double SPARSE_LIVE_FRACTION = 0.25;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private final long segmentSizeBytes;
+    /** Holds every resource to be cleaned up, so that the cleaner doesn't reference the journal */
+    private final Segments segments;
+    @Nullable private Cleaner.Cleanable cleaner;
+
+    @Nullable private Segment appendSegment;
+    private int nextSegmentIdx = 0;
+    /** The total size of every segment file */
+    private long diskBytes = 0;
+
+    public StateJournal() {
+        this(DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * @param segmentSizeBytes The size after which a new segment is started. Records are never split, so a segment can
+     *                         exceed this by up to the size of one record.
+     */
+    public StateJournal(long segmentSizeBytes) {
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.segments = new Segments(null);
+    }
+
+    private StateJournal(Path directory, long segmentSizeBytes) {
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.segments = new Segments(directory);
+        // a persistent journal outlives us, so only its channels are cleaned up
+        this.cleaner = Editor.CLEANER.register(this, this.segments::closeAll);
+    }
+
+    /**
+     * Open a persistent journal in the directory, creating it if it doesn't exist. Every existing segment is reopened,
+     * and any which has no records {@link #restore(long, int) restored} by the time {@link #dropUnrestored()} is called
+     * is deleted.
+     */
+    public static StateJournal openPersistent(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        StateJournal journal = new StateJournal(directory, DEFAULT_SEGMENT_SIZE_BYTES);
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : paths) {
+                String fileName = path.getFileName().toString();
+                int idx;
+                try {
+                    idx = Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment = new Segment(idx, path, channel);
+                segment.end = channel.size();
+                journal.segments.byIdx.put(idx, segment);
+                journal.diskBytes += segment.end;
+                journal.nextSegmentIdx = Math.max(journal.nextSegmentIdx, idx + 1);
+            }
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Mark a record of a reopened persistent journal as still in use, to be {@link #free(long, int) freed} as usual
+     *
+     * @throws IOException If the record isn't within any segment
+     */
+    public synchronized void restore(long address, int length) throws IOException {
+        Segment segment = this.segments.byIdx.get(segmentIdx(address));
+        if (segment == null || offset(address) + length > segment.end) {
+            throw new IOException(String.format("Journal record %x of %d bytes is missing", address, length));
+        }
+        segment.liveBytes += length;
+    }
+
+    /**
+     * Delete every segment of a reopened persistent journal which has no restored records
+     */
+    public synchronized void dropUnrestored() {
+        this.segments.byIdx.values().removeIf(segment -> {
+            if (segment.liveBytes > 0 || segment == this.appendSegment) {
+                return false;
+            }
+            this.diskBytes -= segment.end;
+            segment.delete();
+            return true;
+        });
+    }
+
+    /**
+     * Force every appended record to the storage device, so that anything referring to them can safely be persisted
+     */
+    public synchronized void force() throws IOException {
+        if (this.appendSegment != null) {
+            this.appendSegment.channel.force(false);
+        }
+    }
+
+    public boolean isPersistent() {
+        return this.segments.persistentDirectory != null;
+    }
+
+    /**
+     * @return The address of the new record
+     */
+    public long append(byte[] data) throws IOException {
+        return append(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Append the remaining content of every buffer as a single record, in one gathering write
+     *
+     * @return The address of the new record
+     */
+    public synchronized long append(ByteBuffer... parts) throws IOException {
+        long length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        Segment segment = this.appendSegment;
+        if (segment == null || segment.end >= this.segmentSizeBytes) {
+            segment = newSegment();
+        }
+
+        long offset = segment.end;
+        // reads are positional, so moving the channel doesn't affect them
+        segment.channel.position(offset);
+        long written = 0;
+        while (written < length) {
+            written += segment.channel.write(parts);
+        }
+        segment.end += length;
+        segment.liveBytes += length;
+        this.diskBytes += length;
+        return ((long) segment.idx << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Copy part of a record
+     *
+     * @param address The address of the record, as returned by {@link #append(byte[])}
+     * @param recordOffset The offset within the record to start reading from
+     */
+    public void read(long address, int recordOffset, byte[] out, int outOffset, int length) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            Segment segment = this.segments.byIdx.get(segmentIdx(address));
+            if (segment == null) {
+                throw new ResourceClosedException("Attempted to read a record from a reclaimed journal segment!");
+            }
+            channel = segment.channel;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(out, outOffset, length);
+        long position = offset(address) + recordOffset - outOffset;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(String.format("Failed to read journal record. Only read %d bytes, expected to read %d bytes.",
+                        buffer.position() - outOffset, length));
+            }
+        }
+    }
+
+    /**
+     * Mark a record as no longer used. The record must not be read after this.
+     */
+    public synchronized void free(long address, int length) {
+        Segment segment = this.segments.byIdx.get(segmentIdx(address));
+        if (segment == null) {
+            throw new IllegalStateException("Freed a record from a reclaimed journal segment");
+        }
+        segment.liveBytes -= length;
+        if (segment.liveBytes > 0) {
+            return;
+        }
+        if (isPersistent()) {
+            // a persisted index may still refer to the records until it is next saved, so they mustn't be overwritten
+            // or deleted until then
+            return;
+        }
+
+        if (segment == this.appendSegment) {
+            // nothing is using the current segment, so we can start it from the beginning again
+            try {
+                segment.channel.truncate(0);
+                this.diskBytes -= segment.end;
+                segment.end = 0;
+                return;
+            } catch (IOException e) {
+                Log.info("Failed to truncate journal segment: " + segment.path);
+                this.appendSegment = null;
+            }
+        }
+        this.segments.byIdx.remove(segment.idx);
+        this.diskBytes -= segment.end;
+        segment.delete();
+    }
+
+    /**
+     * Reclaim every segment of a persistent journal whose records have all been freed, once nothing persisted refers
+     * to them. Must only be called after an index which no longer refers to freed records has been saved.
+     */
+    public synchronized void reclaimFreed() {
+        this.segments.byIdx.values().removeIf(segment -> {
+            if (segment.liveBytes > 0) {
+                return false;
+            }
+            if (segment == this.appendSegment) {
+                try {
+                    segment.channel.truncate(0);
+                    this.diskBytes -= segment.end;
+                    segment.end = 0;
+                    return false;
+                } catch (IOException e) {
+                    Log.info("Failed to truncate journal segment: " + segment.path);
+                    this.appendSegment = null;
+                }
+            }
+            this.diskBytes -= segment.end;
+            segment.delete();
+            return true;
+        });
+    }
+
+    /**
+     * A segment can't be reclaimed while any of its records are in use, so a few long lived records can keep a whole
+     * segment on disk. Moving those records to the end of the journal lets the segment be reclaimed.
+     *
+     * @return The index of every full segment with little of it still in use, never the segment being appended to
+     */
+    public synchronized IntSet sparseSegments() {
+        IntSet sparse = new IntOpenHashSet();
+        for (Segment segment : this.segments.byIdx.values()) {
+            if (segment != this.appendSegment && segment.liveBytes > 0
+                    && segment.liveBytes < segment.end * SPARSE_LIVE_FRACTION) {
+                sparse.add(segment.idx);
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * @return The total size of every segment file, including records which were freed but not yet reclaimed
+     */
+    public synchronized long diskBytes() {
+        return this.diskBytes;
+    }
+
+    public synchronized int segmentCount() {
+        return this.segments.byIdx.size();
+    }
+
+    private Segment newSegment() throws IOException {
+        if (this.segments.persistentDirectory != null) {
+            this.segments.directory = this.segments.persistentDirectory;
+        } else if (this.segments.directory == null) {
+            // deleted with every segment in it on exit, so segments needn't each be registered
+            this.segments.directory = TemporaryDirectories.create(null, "chunky-editor-journal-");
+            this.cleaner = Editor.CLEANER.register(this, this.segments::deleteAll);
+        }
+
+        int idx = this.nextSegmentIdx++;
+        Path path = this.segments.directory.resolve(SEGMENT_PREFIX + idx + SEGMENT_SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(idx, path, channel);
+        this.segments.byIdx.put(idx, segment);
+
+        // a full segment is deleted by the last free instead, or for a persistent journal once reclaimed
+        Segment previous = this.appendSegment;
+        if (previous != null && previous.liveBytes <= 0 && !isPersistent()) {
+            this.segments.byIdx.remove(previous.idx);
+            this.diskBytes -= previous.end;
+            previous.delete();
+        }
+        this.appendSegment = segment;
+        return segment;
+    }
+
+    /**
+     * Close every segment without deleting it, for a persistent journal to be reopened later.
+     * The journal must not be used after this.
+     */
+    public synchronized void close() {
+        this.appendSegment = null;
+        if (this.cleaner != null) {
+            this.cleaner.clean();
+            this.cleaner = null;
+        } else {
+            this.segments.closeAll();
+        }
+    }
+
+    /**
+     * Delete every segment, whether or not records in it are still in use.
+     */
+    public synchronized void clear() {
+        this.appendSegment = null;
+        this.diskBytes = 0;
+        if (isPersistent()) {
+            // the journal may still be used, and is closed by the cleaner as usual
+            this.segments.deleteAll();
+        } else if (this.cleaner != null) {
+            this.cleaner.clean();
+            this.cleaner = null;
+        }
+    }
+
+    static int segmentIdx(long address) {
+        return (int) (address >>> OFFSET_BITS);
+    }
+
+    private static long offset(long address) {
+        return address & OFFSET_MASK;
+    }
+
+    private static final class Segments {
+        private final Map<Integer, Segment> byIdx = new HashMap<>();
+        @Nullable private Path directory;
+        /** Null for a temporary journal */
+        @Nullable private final Path persistentDirectory;
+
+        private Segments(@Nullable Path persistentDirectory) {
+            this.persistentDirectory = persistentDirectory;
+        }
+
+        private synchronized void closeAll() {
+            this.byIdx.values().forEach(Segment::close);
+            this.byIdx.clear();
+        }
+
+        private synchronized void deleteAll() {
+            this.byIdx.values().forEach(Segment::delete);
+            this.byIdx.clear();
+            if (this.directory != null && this.persistentDirectory == null) {
+                TemporaryDirectories.delete(this.directory);
+                this.directory = null;
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final int idx;
+        private final Path path;
+        private final FileChannel channel;
+        /** The offset the next record is appended at */
+        private long end = 0;
+        /** Bytes of records which haven't been freed */
+        private long liveBytes = 0;
+
+        private Segment(int idx, Path path, FileChannel channel) {
+            this.idx = idx;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        private void close() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                Log.info("Failed to close journal segment: " + this.path);
+            }
+        }
+
+        private void delete() {
+            close();
+            try {
+                Files.deleteIfExists(this.path);
+            } catch (IOException e) {
+                Log.info("Failed to delete journal segment: " + this.path);
+            }
+        }
+    }
+}
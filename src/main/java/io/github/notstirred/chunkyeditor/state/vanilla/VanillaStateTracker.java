@@ -1,15 +1,24 @@
 package io.github.notstirred.chunkyeditor.state.vanilla;
 
 import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
 import io.github.notstirred.chunkyeditor.state.State;
 import io.github.notstirred.chunkyeditor.util.ExceptionUtils;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+import se.llbit.log.Log;
 import se.llbit.util.Pair;
 import se.llbit.util.annotation.NotNull;
 import se.llbit.util.annotation.Nullable;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
 
 /**
  * Before any changes are made to the world, it should be checked against the current state to verify nothing has changed
@@ -19,21 +28,125 @@ public class VanillaStateTracker {
     private static final int NO_STATE = -1;
 
     private final Path regionDirectory;
+    private final RegionWorkerPool workerPool;
+    /** Shared with the trackers of every other kind of region file in the world */
+    private final HistoryStorage storage;
+    /** Whether the storage is this tracker's alone, so is closed with it */
+    private final boolean ownsStorage;
+    /** The content of every external state is deduplicated through this */
+    private final SectorStore sectorStore;
+    private final RegionChangeDetector changeDetector = new RegionChangeDetector(RegionChangeDetector.defaultStrict());
+    private final EditorMetrics metrics = EditorMetrics.INSTANCE;
 
     private final List<StateGroup> states = new ArrayList<>();
     private int currentStateIdx = NO_STATE;
+    /** Which of the {@link #states} hold a state for each region, kept in sync with them */
+    private final RegionHistoryIndex historyIndex = new RegionHistoryIndex();
+
+    public VanillaStateTracker(Path regionDirectory, RegionWorkerPool workerPool) {
+        this(regionDirectory, workerPool, SectorCodec.defaultCodec());
+    }
+
+    /**
+     * @param stateCodec How state content is encoded in memory and on disk
+     */
+    public VanillaStateTracker(Path regionDirectory, RegionWorkerPool workerPool, SectorCodec stateCodec) {
+        this(regionDirectory, workerPool, stateCodec, null);
+    }
+
+    /**
+     * A tracker with storage of its own, tracking the terrain alone
+     *
+     * @param historyDirectory Where to persist the history, loading any history already there. If null, or the
+     *                         directory can't be opened, the history only lasts as long as the tracker.
+     */
+    public VanillaStateTracker(Path regionDirectory, RegionWorkerPool workerPool, SectorCodec stateCodec,
+                               @Nullable Path historyDirectory) {
+        this(regionDirectory, workerPool, new HistoryStorage(regionDirectory.toAbsolutePath().normalize().getParent(),
+                stateCodec, historyDirectory), RegionKind.TERRAIN, true);
+        this.storage.finishLoading();
+    }
+
+    /**
+     * A tracker of one kind of region file, sharing the storage with the trackers of the world's other kinds
+     */
+    VanillaStateTracker(Path regionDirectory, RegionWorkerPool workerPool, HistoryStorage storage, RegionKind kind) {
+        this(regionDirectory, workerPool, storage, kind, false);
+    }
 
-    public VanillaStateTracker(Path regionDirectory) {
+    private VanillaStateTracker(Path regionDirectory, RegionWorkerPool workerPool, HistoryStorage storage, RegionKind kind,
+                                boolean ownsStorage) {
         this.regionDirectory = regionDirectory;
+        this.workerPool = workerPool;
+        this.storage = storage;
+        this.ownsStorage = ownsStorage;
+        this.sectorStore = storage.sectorStore();
+
+        List<StateGroup> loaded = storage.register(kind, this);
+        if (!loaded.isEmpty()) {
+            this.states.addAll(loaded);
+            this.currentStateIdx = storage.loadedCurrentStateIdx();
+            for (int i = 0; i < this.states.size(); i++) {
+                this.historyIndex.putGroup(i, this.states.get(i));
+            }
+        }
     }
 
-    private InternalState internalStateForRegion(VanillaRegionPos regionPos) throws IOException {
-        Path regionPath = this.regionDirectory.resolve(regionPos.fileName());
-        return new InternalState(regionPath);
+    /**
+     * Move the few states still held in mostly freed journal segments, so the segments can be reclaimed. Must only be
+     * called between operations, as states must not be read meanwhile. Failures are logged, as nothing is lost.
+     */
+    public void compactJournal() {
+        this.storage.compactJournal();
     }
-    private ExternalState externalStateForRegion(VanillaRegionPos regionPos) throws IOException {
+
+    /**
+     * Persist the history of every kind sharing the storage, if it is persisted. Failures are logged, as the in-memory
+     * history is still intact.
+     */
+    public void saveHistory() {
+        this.storage.saveHistory();
+    }
+
+    public boolean isHistoryPersistent() {
+        return this.storage.isPersistent();
+    }
+
+    /**
+     * Release every resource of the tracker, which must not be used after this. A persisted history is left on disk
+     * to be loaded again.
+     */
+    public void close() {
+        if (!this.storage.isPersistent()) {
+            clearStates();
+        }
+        // releasing the states of a persisted history would free their records, so they are just closed with it
+        if (this.ownsStorage) {
+            this.storage.close();
+        }
+    }
+
+    /**
+     * @param strict If true, every snapshot compares the full region data, rather than trusting file metadata and
+     *               chunk timestamps. For worlds modified by tools which preserve timestamps.
+     */
+    public void setStrictChangeDetection(boolean strict) {
+        this.changeDetector.setStrict(strict);
+    }
+
+    /**
+     * @param bytes The memory which may be used by state content before the least recently used is spilled to disk,
+     *              shared with every kind sharing the storage
+     */
+    public void setMemoryBudgetBytes(long bytes) {
+        this.storage.setMemoryBudgetBytes(bytes);
+    }
+
+    private ExternalState externalStateForRegion(VanillaRegionPos regionPos, TaskProgress progress) throws IOException {
         Path regionPath = this.regionDirectory.resolve(regionPos.fileName());
-        return new ExternalState(regionPath);
+        ExternalState externalState = new ExternalState(regionPath, this.sectorStore);
+        progress.addBytesRead(externalState.stateLength);
+        return externalState;
     }
 
     /**
@@ -42,15 +155,8 @@ public class VanillaStateTracker {
      */
     @Nullable
     private ExternalState findPreviousExternalForRegion(VanillaRegionPos regionPos) {
-        for (int i = currentStateIdx; i >= 0; i--) {
-            State state = this.states.get(i).get(regionPos);
-            if (state != null) {
-                if (!state.isInternal()) {
-                    return (ExternalState) state;
-                }
-            }
-        }
-        return null;
+        int stateIdx = this.historyIndex.findPreviousExternal(regionPos, this.currentStateIdx);
+        return stateIdx == RegionHistoryIndex.NONE ? null : (ExternalState) this.states.get(stateIdx).get(regionPos);
     }
 
     /**
@@ -58,142 +164,252 @@ public class VanillaStateTracker {
      */
     @Nullable
     private State findPreviousForRegion(VanillaRegionPos regionPos) {
-        for (int i = currentStateIdx; i >= 0; i--) {
-            State state = this.states.get(i).get(regionPos);
-            if (state != null) {
-                return state;
-            }
-        }
-        return null;
+        int stateIdx = this.historyIndex.findPrevious(regionPos, this.currentStateIdx);
+        return stateIdx == RegionHistoryIndex.NONE ? null : this.states.get(stateIdx).get(regionPos);
     }
 
     /**
-     * Attempt to take a snapshot of the requested regions.
+     * Snapshot a single region, comparing it against the previous states for the region.
+     * Safe to call from multiple region workers at once, as long as the tracked states are not modified meanwhile.
      *
-     * @param regionPositions Positions to snapshot
-     * @return Null if no changes since the current snapshot
+     * @param forceInternalOnDataMatch If true, an internal state is returned whenever the data matches the previous
+     *                                 external state. Otherwise, only when the header differs from the current state.
+     * @param suppressedExceptions Comparison failures are added here rather than thrown, and the external state is
+     *                             returned instead. If null, comparison failures are thrown.
+     * @param progress Every byte read from the region is counted here
      */
-    @NotNull
-    private StateGroup snapshot(Collection<VanillaRegionPos> regionPositions) throws IOException {
-        StateGroup newStates = new StateGroup();
+    private State snapshotRegion(VanillaRegionPos regionPos, boolean forceInternalOnDataMatch,
+                                 @Nullable Collection<IOException> suppressedExceptions, TaskProgress progress) throws IOException {
+        if (!Files.exists(this.regionDirectory.resolve(regionPos.fileName()))) {
+            // nothing to compare, a missing region is the same as any other missing region
+            return new MissingRegionState(this.sectorStore);
+        }
         if (this.currentStateIdx == NO_STATE) {
             // snapshot can go ahead with no checks
-            for (VanillaRegionPos regionPos : regionPositions) {
-                newStates.put(regionPos, externalStateForRegion(regionPos));
+            return externalStateForRegion(regionPos, progress);
+        }
+        if (forceInternalOnDataMatch && this.historyIndex.findPreviousExternal(regionPos, this.currentStateIdx) == this.currentStateIdx) {
+            // the current state is about to be replaced, so nothing can be taken against it. It's kept if still valid.
+            ExternalState current = findPreviousExternalForRegion(regionPos);
+            if (this.changeDetector.regionMatches(this.regionDirectory.resolve(regionPos.fileName()), current, current, this.sectorStore, progress)) {
+                return current;
             }
-        } else {
-            // snapshot must check against current state to warn user
-
-            //TODO: could probably be timestamp based, but I've seen some external programs intentionally keep timestamps unchanged
-            //      and so went with the super safe approach for now.
-            for (VanillaRegionPos regionPos : regionPositions) {
-                State previousAny = findPreviousForRegion(regionPos);
-                ExternalState previousExternal = findPreviousExternalForRegion(regionPos);
-
-                State newState = externalStateForRegion(regionPos);
-
-                if (previousExternal != null && previousAny != null) {
-                    boolean dataMatchesPrevious = previousExternal.dataMatches(newState);
-                    if (dataMatchesPrevious) {
-                        boolean headerMatchesCurrent = previousAny.headerMatches(newState);
-                        if (!headerMatchesCurrent) { // only header differs? internal state
-                            newState = internalStateForRegion(regionPos);
-                        }
+            return deltaIfSmaller(current, externalStateForRegion(regionPos, progress));
+        }
+        // snapshot must check against current state to warn user
+        State previousAny = findPreviousForRegion(regionPos);
+        ExternalState previousExternal = findPreviousExternalForRegion(regionPos);
+
+        if (previousExternal != null && previousAny != null) {
+            InternalState unchanged = this.changeDetector.internalStateIfDataUnchanged(
+                    this.regionDirectory.resolve(regionPos.fileName()), previousAny, previousExternal, progress);
+            if (unchanged != null) {
+                if (forceInternalOnDataMatch || !previousAny.headerMatches(unchanged)) {
+                    return unchanged;
+                }
+                // nothing changed at all, so the region is kept in full as a full compare would keep it. It's built
+                // from the previous external state rather than reread, as only the header can differ from it.
+                ExternalState externalState;
+                try {
+                    externalState = previousExternal.withHeader(unchanged);
+                } finally {
+                    unchanged.release();
+                }
+                return deltaIfSmaller(previousExternal, externalState);
+            }
+        }
+
+        ExternalState externalState = externalStateForRegion(regionPos, progress);
+        if (previousExternal != null && previousAny != null) {
+            long compareStart = System.nanoTime();
+            try {
+                boolean dataMatchesPrevious = previousExternal.dataMatches(externalState);
+                if (dataMatchesPrevious) {
+                    // Region data matches, so we add an internal state instead
+                    if (forceInternalOnDataMatch || !previousAny.headerMatches(externalState)) { // only header differs? internal state
+                        InternalState internalState = externalState.asInternalState();
+                        externalState.release();
+                        return internalState;
                     }
                 }
-                newStates.put(regionPos, newState);
+            } catch (IOException e) {
+                if (suppressedExceptions == null) {
+                    externalState.release();
+                    throw e;
+                }
+                suppressedExceptions.add(e);
+            } finally {
+                this.metrics.recordSince(EditorMetrics.Operation.COMPARE, compareStart);
             }
         }
-        return newStates;
+        if (previousExternal != null) {
+            return deltaIfSmaller(previousExternal, externalState);
+        }
+        return externalState;
     }
 
     /**
-     * Take a snapshot of the requested regions.
-     * This method MUST attempt to snapshot every region, even if some regions fail.
+     * Snapshot a region whose header we just edited, from the edit itself rather than rereading the region.
+     * Only the header is read back, to check that nothing else wrote to the region around the edit.
      *
-     * @param regionPositions Positions to snapshot
-     * @return Null if no changes since the current snapshot
+     * @return Null if the edit can't be trusted to be the only change since the current state, in which case the region
+     *         must be snapshot in full
      */
-    @NotNull
-    private Pair<StateGroup, IOException> snapshotNoFail(Collection<VanillaRegionPos> regionPositions) {
-        Collection<IOException> suppressedExceptions = new ArrayList<>();
+    @Nullable
+    private InternalState snapshotHeaderEdit(VanillaRegionPos regionPos, RegionHeaderWriter.Edit edit,
+                                             TaskProgress progress) throws IOException {
+        // the data can only be assumed to match the current state if the edit started from its header
+        State previousAny = findPreviousForRegion(regionPos);
+        if (previousAny == null || !previousAny.headerMatches(new InternalState(edit.before(), null))) {
+            return null;
+        }
+        InternalState onDisk = new InternalState(this.regionDirectory.resolve(regionPos.fileName()));
+        progress.addBytesRead(HEADER_SIZE_BYTES);
+        if (!Arrays.equals(onDisk.header(), edit.after())) {
+            return null;
+        }
+        // identical to the edited header, but also carries the metadata read before it
+        return onDisk;
+    }
 
-        StateGroup states = new StateGroup();
-        if (this.currentStateIdx == NO_STATE) {
-            // snapshot can go ahead with no checks
-            for (VanillaRegionPos regionPos : regionPositions) {
-                try {
-                    states.put(regionPos, externalStateForRegion(regionPos));
-                } catch (IOException e) {
-                    suppressedExceptions.add(e);
-                    states.put(regionPos, null);
-                }
-            }
-        } else {
-            // snapshot must check against current state to warn user
+    /**
+     * @return A delta of the state against the previous external state if few enough sectors differ, otherwise the
+     *         state itself. Whichever is not returned is released.
+     */
+    private static ExternalState deltaIfSmaller(ExternalState previousExternal, ExternalState externalState) {
+        DeltaState delta;
+        try {
+            delta = DeltaState.between(previousExternal, externalState);
+        } catch (IOException e) {
+            // a delta is only an optimisation, the full state is still valid
+            Log.warn("Failed to create delta state, keeping the full state instead", e);
+            return externalState;
+        }
+        if (delta == null) {
+            return externalState;
+        }
+        externalState.release();
+        return delta;
+    }
 
-            //TODO: could probably be timestamp based, but I've seen some external programs intentionally keep timestamps unchanged
-            //      and so went with the super safe approach for now.
-            for (VanillaRegionPos regionPos : regionPositions) {
-                var previousAny = findPreviousForRegion(regionPos);
-                var previousExternal = findPreviousExternalForRegion(regionPos);
+    /**
+     * Snapshot every region on the region workers.
+     * The states are allowed to disk on the workers, so that writing them out also happens in parallel.
+     */
+    private RegionWorkerPool.Result<State> snapshotRegions(Collection<VanillaRegionPos> regionPositions, boolean forceInternalOnDataMatch,
+                                                           @Nullable Collection<IOException> suppressedExceptions,
+                                                           TaskProgress progress) {
+        return snapshotRegions(regionPositions, Map.of(), forceInternalOnDataMatch, suppressedExceptions, progress);
+    }
 
-                ExternalState externalState;
+    /**
+     * @param headerEdits Regions which only had their header edited by us since the current state
+     */
+    private RegionWorkerPool.Result<State> snapshotRegions(Collection<VanillaRegionPos> regionPositions,
+                                                           Map<VanillaRegionPos, RegionHeaderWriter.Edit> headerEdits,
+                                                           boolean forceInternalOnDataMatch,
+                                                           @Nullable Collection<IOException> suppressedExceptions,
+                                                           TaskProgress progress) {
+        long start = System.nanoTime();
+        RegionWorkerPool.Result<State> result = this.workerPool.run(regionPositions, progress, regionPos -> {
+            long regionStart = System.nanoTime();
+            State state = null;
+            RegionHeaderWriter.Edit edit = headerEdits.get(regionPos);
+            if (edit != null) {
                 try {
-                    externalState = externalStateForRegion(regionPos);
+                    state = snapshotHeaderEdit(regionPos, edit, progress);
                 } catch (IOException e) {
-                    suppressedExceptions.add(e);
-                    continue; // we failed to snapshot this region, continue to the next ones.
+                    // the full snapshot may still succeed
+                    Log.warn("Failed to snapshot header edit of region " + regionPos.fileName() + ", taking a full snapshot instead", e);
                 }
+            }
+            if (state == null) {
+                state = snapshotRegion(regionPos, forceInternalOnDataMatch, suppressedExceptions, progress);
+            }
+            this.metrics.stateTaken(state);
+
+            long spillStart = System.nanoTime();
+            state.allowToDisk();
+            this.metrics.recordSince(EditorMetrics.Operation.SPILL, spillStart);
+            this.metrics.recordSince(EditorMetrics.Operation.SNAPSHOT_REGION, regionStart);
+            return state;
+        });
+        this.metrics.recordSince(EditorMetrics.Operation.SNAPSHOT, start);
+        this.storage.reportSpilledBytes();
+        return result;
+    }
 
-                if (previousExternal != null && previousAny != null) {
-                    try {
-                        boolean dataMatchesPrevious = previousExternal.dataMatches(externalState);
-                        if (dataMatchesPrevious) {
-                            boolean headerMatchesCurrent = previousAny.headerMatches(externalState);
-                            if (!headerMatchesCurrent) { // only header differs? internal state
-                                states.put(regionPos, externalState.asInternalState());
-                                continue;
-                            }
-                        }
-                    } catch (IOException e) {
-                        suppressedExceptions.add(e);
-                    }
-                }
-                states.put(regionPos, externalState);
+    /**
+     * Attempt to take a snapshot of the requested regions.
+     *
+     * @param regionPositions Positions to snapshot
+     * @return Null if no changes since the current snapshot
+     * @throws CancellationException If the progress was cancelled, nothing is snapshot
+     */
+    @NotNull
+    private StateGroup snapshot(Collection<VanillaRegionPos> regionPositions, TaskProgress progress) throws IOException {
+        RegionWorkerPool.Result<State> result = snapshotRegions(regionPositions, false, null, progress);
+        IOException failure = result.chainedFailures();
+        if (failure != null || result.wasCancelled()) {
+            // the snapshot as a whole failed, so the states that did succeed are never used
+            result.values().values().forEach(State::release);
+            if (failure != null) {
+                throw failure;
             }
+            throw new CancellationException("Snapshot cancelled");
+        }
+
+        StateGroup newStates = new StateGroup(this.storage.internalStatesBytes());
+        result.values().forEach(newStates::put);
+        return newStates;
+    }
+
+    /**
+     * Take a snapshot of the requested regions.
+     * This method MUST attempt to snapshot every region, even if some regions fail, so must not be run during a
+     * cancellable phase.
+     *
+     * @param regionPositions Positions to snapshot
+     * @param headerEdits Regions which only had their header edited by us since the current state
+     * @return Null if no changes since the current snapshot
+     */
+    @NotNull
+    private Pair<StateGroup, IOException> snapshotNoFail(Collection<VanillaRegionPos> regionPositions,
+                                                         Map<VanillaRegionPos, RegionHeaderWriter.Edit> headerEdits,
+                                                         TaskProgress progress) {
+        Collection<IOException> suppressedExceptions = new ConcurrentLinkedQueue<>();
+
+        RegionWorkerPool.Result<State> result = snapshotRegions(regionPositions, headerEdits, false, suppressedExceptions, progress);
+        suppressedExceptions.addAll(result.failures().values());
+
+        StateGroup states = new StateGroup(this.storage.internalStatesBytes());
+        result.values().forEach(states::put);
+        if (this.currentStateIdx == NO_STATE) {
+            // we failed to snapshot these regions, but still record that they are part of this snapshot
+            result.failures().keySet().forEach(regionPos -> states.put(regionPos, null));
         }
         return new Pair<>(states, ExceptionUtils.chainSuppressedExceptions(suppressedExceptions));
     }
 
     /**
      * @param forcedRegions Positions to add to the snapshot, even if they don't differ
+     * @throws CancellationException If the progress was cancelled, the regions which were snapshot are still added
      */
-    private void addToSnapshot(Collection<VanillaRegionPos> forcedRegions) throws IOException {
+    private void addToSnapshot(Collection<VanillaRegionPos> forcedRegions, TaskProgress progress) throws IOException {
         if (this.currentStateIdx == NO_STATE) {
             throw new IllegalStateException("Trying to retake snapshot when none exists");
         }
         StateGroup states = this.states.get(this.currentStateIdx);
 
-        // snapshot must check against current state to warn user
-
-        //TODO: could probably be timestamp based, but I've seen some external programs intentionally keep timestamps unchanged
-        //      and so went with the super safe approach for now.
-        for (VanillaRegionPos regionPos : forcedRegions) {
-            var previousAny = findPreviousForRegion(regionPos);
-            var previousExternal = findPreviousExternalForRegion(regionPos);
-
-            var externalState = externalStateForRegion(regionPos);
-
-            if (previousExternal != null && previousAny != null) {
-                boolean dataMatchesPrevious = previousExternal.dataMatches(externalState);
-                // Region data matches, so we add an internal state instead
-                if (dataMatchesPrevious) {
-                    states.put(regionPos, externalState.asInternalState());
-                    continue;
-                }
-            }
-            states.put(regionPos, externalState);
+        // the current group must not be modified until every region is done, as the workers are reading it
+        RegionWorkerPool.Result<State> result = snapshotRegions(forcedRegions, true, null, progress);
+        result.values().forEach((regionPos, state) -> {
+            states.put(regionPos, state);
+            this.historyIndex.put(regionPos, this.currentStateIdx, state);
+        });
+        result.rethrow();
+        if (result.wasCancelled()) {
+            throw new CancellationException("Snapshot cancelled");
         }
     }
 
@@ -202,14 +418,14 @@ public class VanillaStateTracker {
      * @param additionalRegions Additional regions to include in the snapshot (if any)
      * @return True if a snapshot was taken (the current state differed from the new state)
      */
-    public boolean snapshotCurrentState(Collection<VanillaRegionPos> additionalRegions) throws IOException {
+    public boolean snapshotCurrentState(Collection<VanillaRegionPos> additionalRegions, TaskProgress progress) throws IOException {
         removeFutureStates();
 
         if (this.currentStateIdx == NO_STATE) {
             return false;
         }
 
-        addToSnapshot(additionalRegions);
+        addToSnapshot(additionalRegions, progress);
 
         return true;
     }
@@ -217,21 +433,32 @@ public class VanillaStateTracker {
     /**
      * @return True if a snapshot was taken (the current state differed from the new state)
      */
-    public boolean snapshotState(List<VanillaRegionPos> regionPositions) throws IOException {
+    public boolean snapshotState(List<VanillaRegionPos> regionPositions, TaskProgress progress) throws IOException {
         this.removeFutureStates();
-        this.states.add(snapshot(regionPositions));
-        this.currentStateIdx++;
+        this.addState(snapshot(regionPositions, progress));
         return true;
     }
 
     /**
      * @return True if a snapshot was taken (the current state differed from the new state)
      */
-    public boolean snapshotStateNoFail(List<VanillaRegionPos> regionPositions) throws IOException {
+    public boolean snapshotStateNoFail(List<VanillaRegionPos> regionPositions, TaskProgress progress) throws IOException {
+        return snapshotStateNoFail(regionPositions, Map.of(), progress);
+    }
+
+    /**
+     * Snapshot regions after editing their headers, such as deleting chunks. Regions with an edit are snapshot from the
+     * edit and a read of just their header, falling back to a full snapshot if anything else modified them.
+     *
+     * @param headerEdits The edit applied to each region since the current state, which must be the only change we made
+     * @return True if a snapshot was taken (the current state differed from the new state)
+     */
+    public boolean snapshotStateNoFail(List<VanillaRegionPos> regionPositions,
+                                       Map<VanillaRegionPos, RegionHeaderWriter.Edit> headerEdits,
+                                       TaskProgress progress) throws IOException {
         this.removeFutureStates();
-        Pair<StateGroup, IOException> snapshot = snapshotNoFail(regionPositions);
-        this.states.add(snapshot.thing1);
-        this.currentStateIdx++;
+        Pair<StateGroup, IOException> snapshot = snapshotNoFail(regionPositions, headerEdits, progress);
+        this.addState(snapshot.thing1);
 
         // rethrow any suppressed exceptions
         if (snapshot.thing2 != null)
@@ -240,6 +467,171 @@ public class VanillaStateTracker {
         return true;
     }
 
+    /**
+     * Add a new state after the current one, which must be the last
+     */
+    private void addState(StateGroup stateGroup) {
+        this.states.add(stateGroup);
+        this.currentStateIdx++;
+        this.historyIndex.putGroup(this.currentStateIdx, stateGroup);
+    }
+
+    /**
+     * @return Whether whole regions can be {@link #moveRegions moved} out of the world, which needs somewhere to hold
+     *         them on the same file system
+     */
+    public boolean canMoveRegions() {
+        try {
+            return Files.getFileStore(this.storage.movedRegionsDirectory()).equals(Files.getFileStore(this.regionDirectory));
+        } catch (IOException e) {
+            Log.warn("Failed to create a directory to hold regions moved out of the world", e);
+            return false;
+        }
+    }
+
+    /**
+     * Move whole region files out of the world into the current state, in place of snapshotting them. A region is
+     * snapshot by a single rename, without reading any of it, and undoing copies it straight back.
+     * Must only be called if {@link #canMoveRegions()}.
+     *
+     * @return The size of each region moved
+     * @throws CancellationException If the progress was cancelled, the regions which were moved are still added
+     */
+    public RegionWorkerPool.Result<Long> moveRegions(Collection<VanillaRegionPos> regionPositions, TaskProgress progress) throws IOException {
+        if (this.currentStateIdx == NO_STATE) {
+            throw new IllegalStateException("Trying to move regions into a snapshot when none exists");
+        }
+        if (regionPositions.isEmpty()) {
+            return new RegionWorkerPool.Result<>(Map.of(), Map.of(), Set.of());
+        }
+        Path directory = this.storage.movedRegionsDirectory();
+        StateGroup states = this.states.get(this.currentStateIdx);
+
+        RegionWorkerPool.Result<State> result = this.workerPool.run(regionPositions, progress, regionPos -> {
+            long start = System.nanoTime();
+            Path regionPath = this.regionDirectory.resolve(regionPos.fileName());
+            if (!Files.exists(regionPath)) {
+                // nothing to move, such as a region without any entities
+                State state = new MissingRegionState(this.sectorStore);
+                this.metrics.stateTaken(state);
+                this.metrics.recordSince(EditorMetrics.Operation.SNAPSHOT_REGION, start);
+                return state;
+            }
+            Path heldPath = Files.createTempFile(directory, regionPos.fileName() + "-", "");
+            try {
+                MovedRegionState state = MovedRegionState.moveFrom(regionPath, heldPath, this.sectorStore);
+                this.metrics.stateTaken(state);
+                return state;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(heldPath);
+                throw e;
+            } finally {
+                this.metrics.recordSince(EditorMetrics.Operation.SNAPSHOT_REGION, start);
+            }
+        });
+        Map<VanillaRegionPos, Long> sizes = new HashMap<>();
+        result.values().forEach((regionPos, state) -> {
+            states.put(regionPos, state);
+            this.historyIndex.put(regionPos, this.currentStateIdx, state);
+            sizes.put(regionPos, (long) ((ExternalState) state).stateLength);
+        });
+        return new RegionWorkerPool.Result<>(sizes, result.failures(), result.cancelled());
+    }
+
+    /**
+     * Write the current state of regions back to them, such as after an undo was cancelled part way through.
+     *
+     * @param regions Every region to restore, and whether only its header was overwritten since the current state
+     * @return The regions which were restored, and the errors of every region that failed
+     */
+    public RegionWorkerPool.Result<Void> restoreCurrentState(Map<VanillaRegionPos, Boolean> regions, TaskProgress progress) {
+        return this.workerPool.run(regions.keySet(), progress, regionPos -> {
+            State current = findPreviousForRegion(regionPos);
+            if (current == null) {
+                return null; // never tracked, so there is nothing to restore it to
+            }
+            Path regionPath = this.regionDirectory.resolve(regionPos.fileName());
+            if (current.isInternal() && !regions.get(regionPos)) {
+                // a header only state needs the data it was taken against to be restored first
+                ExternalState external = findPreviousExternalForRegion(regionPos);
+                if (external != null) {
+                    progress.addBytesWritten(external.writeState(regionPath));
+                }
+            }
+            progress.addBytesWritten(current.writeState(regionPath));
+            return null;
+        });
+    }
+
+    /**
+     * Write the previous state of every region in it, for undo. Nothing is moved to the previous state, the caller must
+     * do so once it has decided the undo completed.
+     *
+     * @return The number of bytes written to each region
+     * @see #writeState(int, TaskProgress)
+     */
+    public RegionWorkerPool.Result<Long> writePreviousState(TaskProgress progress) {
+        if (!hasPreviousState()) {
+            throw new IllegalStateException("Tried to write previous state when none exists");
+        }
+        return writeState(this.currentStateIdx - 1, progress);
+    }
+
+    /**
+     * Write the next state of every region in it, for redo. Nothing is moved to the next state, the caller must do so
+     * once it has decided the redo completed.
+     *
+     * @return The number of bytes written to each region
+     * @see #writeState(int, TaskProgress)
+     */
+    public RegionWorkerPool.Result<Long> writeNextState(TaskProgress progress) {
+        if (!hasNextState()) {
+            throw new IllegalStateException("Tried to write next state when none exists");
+        }
+        return writeState(this.currentStateIdx + 1, progress);
+    }
+
+    /**
+     * Write the state of every region in the group at {@code stateIdx}.
+     * <p>
+     * A header only state is only valid against the data it was taken against. If that is also the data of the current
+     * state, and the region still matches the current state, only the header is written, such as when undoing or
+     * redoing a deletion. Anything else, such as a region modified since, or a region whose data was rewritten by
+     * compaction, has the data written first.
+     * </p>
+     */
+    private RegionWorkerPool.Result<Long> writeState(int stateIdx, TaskProgress progress) {
+        Map<VanillaRegionPos, State> targetStates = this.states.get(stateIdx).getStates();
+        return this.workerPool.run(targetStates.keySet(), progress, regionPos -> {
+            State target = targetStates.get(regionPos);
+            if (target == null) {
+                return 0L; // failed to snapshot, so there is nothing to write
+            }
+            Path regionPath = this.regionDirectory.resolve(regionPos.fileName());
+            long start = System.nanoTime();
+            try {
+                long written = 0;
+                if (target.isInternal()) {
+                    int targetExternalIdx = this.historyIndex.findPreviousExternal(regionPos, stateIdx);
+                    if (targetExternalIdx == RegionHistoryIndex.NONE) {
+                        throw new IOException("No data to write the header of region " + regionPos.fileName() + " against");
+                    }
+                    ExternalState targetExternal = (ExternalState) this.states.get(targetExternalIdx).get(regionPos);
+                    State current = findPreviousForRegion(regionPos);
+                    ExternalState currentExternal = findPreviousExternalForRegion(regionPos);
+                    if (current == null || targetExternal != currentExternal || !this.changeDetector.regionMatches(regionPath, current, currentExternal, this.sectorStore, progress)) {
+                        written += targetExternal.writeState(regionPath);
+                    }
+                }
+                written += target.writeState(regionPath);
+                progress.addBytesWritten(written);
+                return written;
+            } finally {
+                this.metrics.recordSince(EditorMetrics.Operation.REGION_WRITE, start);
+            }
+        });
+    }
+
     public boolean hasState() {
         return this.currentStateIdx != NO_STATE;
     }
@@ -285,46 +677,128 @@ public class VanillaStateTracker {
         if(this.currentStateIdx == NO_STATE) {
             return;
         }
-        for (int i = 0; i < this.states.size() - this.currentStateIdx - 1; i++) {
-            this.states.remove(currentStateIdx + 1);
-        }
+        List<StateGroup> futureStates = this.states.subList(this.currentStateIdx + 1, this.states.size());
+        // future states hold references to shared sectors, so must be released
+        futureStates.forEach(StateGroup::release);
+        futureStates.clear();
+        this.historyIndex.removeFrom(this.currentStateIdx + 1);
     }
 
     public int stateCount() {
         return this.states.size();
     }
 
+    /**
+     * @return The index of the current state, or -1 if there is none
+     */
+    public int currentStateIndex() {
+        return this.currentStateIdx;
+    }
+
+    /**
+     * Remove the current state, which must be the last, such as when a snapshot taken alongside it failed
+     */
+    public void removeCurrentState() {
+        if (this.currentStateIdx == NO_STATE || hasNextState()) {
+            throw new IllegalStateException("Tried to remove the current state when it isn't the last");
+        }
+        this.states.remove(this.currentStateIdx).release();
+        this.historyIndex.removeFrom(this.currentStateIdx);
+        this.currentStateIdx--;
+    }
+
     /**
      * Remove all header backups stored
      */
     public void removeAllStates() {
+        clearStates();
+        saveHistory();
+    }
+
+    /**
+     * Remove all states without saving, for the caller to save once every kind sharing the storage is cleared
+     */
+    void clearStates() {
         this.states.forEach(StateGroup::release);
         this.states.clear();
+        this.historyIndex.clear();
         this.currentStateIdx = NO_STATE;
     }
 
+    /**
+     * @return Every state group, oldest first, not to be modified
+     */
+    List<StateGroup> stateGroups() {
+        return Collections.unmodifiableList(this.states);
+    }
+
+    /**
+     * @return The memory used by the states of every kind sharing the storage, counting sectors shared between
+     *         external states once
+     */
     public long statesSizeBytes() {
-        long[] bytes = new long[] { 0 }; //java is annoying
-        for (StateGroup stateGroups : this.states) {
-            stateGroups.getStates().forEach((regionPos, state) -> bytes[0] += state.size());
-        }
-        return bytes[0];
+        return this.storage.statesSizeBytes();
     }
 
+    /**
+     * @return The disk space used by the states of every kind sharing the storage, including space in the journal not
+     *         yet reclaimed
+     */
     public long statesDiskSizeBytes() {
-        long[] bytes = new long[] { 0 };
-        for (StateGroup stateGroups : this.states) {
-            stateGroups.getStates().forEach((regionPos, state) -> bytes[0] += state.onDiskSize());
-        }
-        return bytes[0];
+        return this.storage.statesDiskSizeBytes();
+    }
+
+    /**
+     * @return The number of files states are currently spilled to
+     */
+    public int statesDiskFileCount() {
+        return this.storage.statesDiskFileCount();
     }
 
     public static class StateGroup {
         private final Map<VanillaRegionPos, State> states = new HashMap<>();
+        private final AtomicLong internalStatesBytes;
+        /** Whether the group changed since it was last persisted */
+        private volatile boolean modified = true;
 
-        private void put(VanillaRegionPos pos, State state) {
-            this.states.put(pos, state);
-            if (state != null) state.allowToDisk();
+        StateGroup(AtomicLong internalStatesBytes) {
+            this.internalStatesBytes = internalStatesBytes;
+        }
+
+        void put(VanillaRegionPos pos, State state) {
+            this.modified = true;
+            State previous = this.states.put(pos, state);
+            if (previous != null && previous != state) {
+                onRemoved(previous);
+                previous.release();
+            }
+            if (state != null && previous != state) {
+                if (state.isInternal()) {
+                    this.internalStatesBytes.addAndGet(state.size());
+                }
+                state.allowToDisk();
+            }
+        }
+
+        private void onRemoved(State state) {
+            if (state.isInternal()) {
+                this.internalStatesBytes.addAndGet(-state.size());
+            }
+        }
+
+        /**
+         * Remove the state of the region, if the group has one
+         */
+        void remove(VanillaRegionPos pos) {
+            if (!this.states.containsKey(pos)) {
+                return;
+            }
+            this.modified = true;
+            State previous = this.states.remove(pos);
+            if (previous != null) {
+                onRemoved(previous);
+                previous.release();
+            }
         }
 
         public State get(VanillaRegionPos pos) {
@@ -346,8 +820,23 @@ public class VanillaStateTracker {
             return Collections.unmodifiableMap(this.states);
         }
 
+        /**
+         * @return Whether the group changed since this was last called, or since it was created
+         */
+        boolean takeModified() {
+            boolean modified = this.modified;
+            this.modified = false;
+            return modified;
+        }
+
         public void release() {
-            states.values().forEach(State::release);
+            this.modified = true;
+            states.values().forEach(state -> {
+                if (state != null) {
+                    onRemoved(state);
+                    state.release();
+                }
+            });
             states.clear();
         }
     }
@@ -1,194 +1,692 @@
 package io.github.notstirred.chunkyeditor.state.vanilla;
 
-import io.github.notstirred.chunkyeditor.Accessor;
-import io.github.notstirred.chunkyeditor.Editor;
+import io.github.notstirred.chunkyeditor.ChunkSelection;
 import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.metrics.EditorMetrics;
+import io.github.notstirred.chunkyeditor.minecraft.ChunkSummary;
 import io.github.notstirred.chunkyeditor.minecraft.WorldLock;
-import io.github.notstirred.chunkyeditor.state.State;
-import javafx.application.Platform;
-import se.llbit.chunky.world.Chunk;
-import se.llbit.chunky.world.ChunkPosition;
-import se.llbit.chunky.world.EmptyChunk;
+import io.github.notstirred.chunkyeditor.util.ExceptionUtils;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
 import se.llbit.chunky.world.World;
-import se.llbit.chunky.world.region.MCRegion;
-import se.llbit.chunky.world.region.Region;
 import se.llbit.log.Log;
 import se.llbit.util.annotation.Nullable;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class VanillaWorldState {
     public static final int HEADER_SIZE_BYTES = 4096;
 
+    private final Path worldDirectory;
     private final Path regionDirectory;
-    private final World world;
+    private final WorldChangeListener changeListener;
     private final WorldLock worldLock;
+    private final RegionWorkerPool workerPool;
 
+    /**
+     * The history of every kind of region file the world has. Every operation takes exactly one step in each, so an
+     * undo always covers a region's entities and POI along with its terrain.
+     */
+    private final Map<RegionKind, VanillaStateTracker> stateTrackers = new EnumMap<>(RegionKind.class);
+    /** The terrain history, which every other kind follows */
     private final VanillaStateTracker stateTracker;
+    /** The states of every kind, under one memory budget and saved as one history */
+    private final HistoryStorage historyStorage;
+
+    public VanillaWorldState(World world, WorldLock worldLock, RegionWorkerPool workerPool) throws FileNotFoundException {
+        this(world.getWorldDirectory().toPath(), worldLock, workerPool, new ChunkyWorldChangeListener(world));
+    }
 
-    public VanillaWorldState(World world, WorldLock worldLock) throws FileNotFoundException {
-        this.regionDirectory = world.getWorldDirectory().toPath().resolve("region");
-        this.world = world;
+    /**
+     * The undo history is kept next to the world directory if {@link PersistentHistory#enabledByDefault() enabled},
+     * and any history already there is loaded.
+     *
+     * @param worldDirectory The directory containing the world's region directory, and its entities and POI
+     *                       directories if it has them
+     * @param changeListener Notified of every region file written, such as to update a view of the world
+     */
+    public VanillaWorldState(Path worldDirectory, WorldLock worldLock, RegionWorkerPool workerPool, WorldChangeListener changeListener) {
+        this.worldDirectory = worldDirectory;
+        this.regionDirectory = RegionKind.TERRAIN.directoryIn(worldDirectory);
+        this.changeListener = changeListener;
         this.worldLock = worldLock;
+        this.workerPool = workerPool;
 
-        this.stateTracker = new VanillaStateTracker(regionDirectory);
+        Path historyDirectory = PersistentHistory.enabledByDefault() ? PersistentHistory.directoryFor(worldDirectory) : null;
+        this.historyStorage = new HistoryStorage(worldDirectory, SectorCodec.defaultCodec(), historyDirectory);
+        for (RegionKind kind : RegionKind.values()) {
+            Path directory = kind.directoryIn(worldDirectory);
+            // worlds from before a kind was split out of the terrain don't have its directory
+            if (kind != RegionKind.TERRAIN && !Files.isDirectory(directory)) {
+                continue;
+            }
+            this.stateTrackers.put(kind, new VanillaStateTracker(directory, workerPool, this.historyStorage, kind));
+        }
+        this.historyStorage.finishLoading();
+        this.stateTracker = this.stateTrackers.get(RegionKind.TERRAIN);
     }
 
     /**
+     * Delete the chunks on the task executor. If cancelled, the regions which were already deleted stay deleted and can
+     * be undone as usual, the rest are left untouched.
+     * <p>
+     * A region losing every chunk is moved out of the world whole, so costs a rename rather than a snapshot and a
+     * header write, and undoing it moves it back.
+     * </p>
+     * <p>
+     * The chunks' entities and POI are deleted along with them, in the same step of the undo history.
+     * </p>
+     *
+     * @param progress Reports the progress of the deletion, and may be used to cancel it
      * @return Null if the future failed to start because of user input or other error.
+     *         Completes with a {@link CancellationException} if cancelled.
      */
     @Nullable
-    public CompletableFuture<Void> deleteChunks(Executor taskExecutor, Collection<ChunkPosition> chunks) {
+    public CompletableFuture<Void> deleteChunks(Executor taskExecutor, ChunkSelection chunks, TaskProgress progress) {
         if (!worldLock.tryLock()) {
             return null;
         }
 
-        Map<VanillaRegionPos, List<ChunkPosition>> regionSelection = new HashMap<>();
-        for (ChunkPosition chunkPosition : chunks) {
-            ChunkPosition asRegionPos = chunkPosition.getRegionPosition();
+        // the caller is free to keep editing its selection while we run
+        ChunkSelection selection = chunks.copy();
+
+        return runOperation(taskExecutor, EditorMetrics.Operation.DELETE, progress, () -> deleteSelection(selection, progress));
+    }
 
-            regionSelection.computeIfAbsent(new VanillaRegionPos(asRegionPos.x, asRegionPos.z), pos -> new ArrayList<>())
-                    .add(chunkPosition);
+    /**
+     * Prune the chunks matching the filter from the regions on the task executor. Every chunk is scanned first, and the
+     * matches are then deleted exactly as {@link #deleteChunks} would, so can be undone as usual. If cancelled while
+     * scanning, nothing is deleted.
+     * <p>
+     * Chunks which can't be read are never pruned. A region which can't be scanned at all is left untouched, and
+     * the operation completes exceptionally once the other regions have been pruned.
+     * </p>
+     * <p>
+     * Only the scan runs in a fixed amount of memory per worker, plus a 128 byte mask for each region with a match.
+     * The deletion snapshots every region with a match like any other deletion. Regions losing every chunk are moved
+     * whole, but for the rest the undo history keeps around 150 bytes of heap for each unique 4KiB sector, even once
+     * the sector itself is spilled to disk. Pruning scattered chunks across a large world so needs a few percent of
+     * the size of the regions touched in heap, until the history is cleared.
+     * </p>
+     *
+     * @param filter Tested against every chunk from any worker, so must be thread safe
+     * @param progress Reports the progress of the pruning, and may be used to cancel it
+     * @return Null if the future failed to start because of user input or other error.
+     *         Completes with a {@link CancellationException} if cancelled.
+     */
+    @Nullable
+    public CompletableFuture<Void> pruneChunks(Executor taskExecutor, Collection<VanillaRegionPos> regions,
+                                               Predicate<ChunkSummary> filter, TaskProgress progress) {
+        if (!worldLock.tryLock()) {
+            return null;
         }
-        List<VanillaRegionPos> regions = new ArrayList<>(regionSelection.keySet());
+        List<VanillaRegionPos> regionList = new ArrayList<>(regions);
 
-        try {
-            // we first overwrite the current snapshot if it exists, ready to be undone
-            if (stateTracker.hasState()) {
-                stateTracker.snapshotCurrentState(regions);
+        return runOperation(taskExecutor, EditorMetrics.Operation.PRUNE, progress, () -> {
+            progress.beginPhase("Scanning chunks", true);
+            RegionWorkerPool.Result<RegionChunkScanner.Result> scanned = this.workerPool.run(regionList, progress, regionPos -> {
+                long start = System.nanoTime();
+                try {
+                    RegionChunkScanner.Result result = RegionChunkScanner.scan(this.regionDirectory, regionPos, filter);
+                    progress.addBytesRead(result.bytesRead());
+                    return result;
+                } finally {
+                    EditorMetrics.INSTANCE.recordSince(EditorMetrics.Operation.SCAN_REGION, start);
+                }
+            });
+            if (scanned.wasCancelled()) {
+                throw new CancellationException(String.format("Pruning cancelled while scanning, after %d of %d regions",
+                        scanned.attempted().size(), regionList.size()));
+            }
+
+            ChunkSelection matches = new ChunkSelection();
+            long chunksScanned = 0;
+            long chunksUnreadable = 0;
+            for (RegionChunkScanner.Result result : scanned.values().values()) {
+                matches.addAll(result.matches());
+                chunksScanned += result.chunksScanned();
+                chunksUnreadable += result.chunksUnreadable();
+            }
+            Log.info(String.format("Scanned %d chunks in %d regions, pruning %d. %d chunks couldn't be read and were kept.",
+                    chunksScanned, regionList.size(), matches.chunkCount(), chunksUnreadable));
+
+            IOException scanFailure = scanned.chainedFailures();
+            if (!matches.isEmpty()) {
+                try {
+                    deleteSelection(matches, progress);
+                } catch (RuntimeException e) {
+                    if (scanFailure != null) {
+                        e.addSuppressed(scanFailure);
+                    }
+                    throw e;
+                }
+            }
+            if (scanFailure != null) {
+                throw new RuntimeException(new IOException("Failed to scan some regions, none of their chunks were pruned", scanFailure));
+            }
+        });
+    }
+
+    /**
+     * The body of a deletion, run on the task executor
+     */
+    private void deleteSelection(ChunkSelection selection, TaskProgress progress) {
+        List<VanillaRegionPos> regions = selection.regions();
+
+        // regions losing every chunk are moved out of the world whole, rather than snapshot and edited
+        List<VanillaRegionPos> wholeRegions = new ArrayList<>();
+        List<VanillaRegionPos> partialRegions = new ArrayList<>();
+        boolean canMoveRegions = this.stateTrackers.values().stream().allMatch(VanillaStateTracker::canMoveRegions);
+        for (VanillaRegionPos regionPos : regions) {
+            if (canMoveRegions && selection.isWholeRegion(regionPos)) {
+                wholeRegions.add(regionPos);
             } else {
-                // otherwise we just take a normal snapshot instead
-                stateTracker.snapshotState(regions);
+                partialRegions.add(regionPos);
             }
-        } catch (IOException e) {
-            Log.warn("Could not take snapshot of regions, aborting.", e);
-            return null; // We haven't started yet, so can safely cancel
         }
 
-        CompletableFuture<Void> deletionFuture = this.deleteChunks(taskExecutor, regionSelection);
+        progress.beginPhase("Snapshotting regions", true);
+        snapshotBeforeEdit(partialRegions, progress);
+
+        progress.beginPhase("Deleting chunks", true);
+        RegionWorkerPool.Result<Long> moved;
+        try {
+            moved = stateTracker.moveRegions(wholeRegions, progress);
+        } catch (IOException e) {
+            // nothing was moved, so can safely cancel
+            throw new UncheckedIOException("Could not move regions out of the world, aborting.", e);
+        }
+        IOException moveFollowingFailure = null;
+        if (!moved.values().isEmpty() && this.stateTrackers.size() > 1) {
+            // the rest of each region goes wherever its terrain went, even if cancelled
+            progress.beginPhase("Moving entities and POI", false);
+            moveFollowingFailure = moveFollowingKinds(moved.values().keySet(), progress);
+            progress.beginPhase("Deleting chunks", true);
+        }
+        RegionWorkerPool.Result<Map<RegionKind, RegionHeaderWriter.Edit>> result = this.deleteChunks(partialRegions, selection, progress);
         // deletion is now complete, we MUST NOT fail to snapshot and exit or risk an invalid state for the user
 
-        return deletionFuture.whenComplete((v, throwable) -> {
-            // take snapshot of new state to warn user if anything changed when they press undo
+        // regions which were never started because of cancellation are untouched
+        Set<VanillaRegionPos> attemptedRegions = result.attempted();
+        attemptedRegions.addAll(moved.attempted());
+        EditorMetrics.INSTANCE.addRegionsProcessed(attemptedRegions.size());
+        ChunkSelection deletedChunks = selection.copy();
+        deletedChunks.retainRegions(attemptedRegions);
+        this.changeListener.chunksDeleted(deletedChunks);
+
+        Map<RegionKind, Map<VanillaRegionPos, RegionHeaderWriter.Edit>> headerEdits = new EnumMap<>(RegionKind.class);
+        // regions missing a header weren't edited, and are snapshot in full
+        result.values().forEach((regionPos, edits) -> edits.forEach((kind, edit) ->
+                headerEdits.computeIfAbsent(kind, k -> new HashMap<>()).put(regionPos, edit)));
+        Throwable throwable = ExceptionUtils.chainSuppressedExceptions(Stream.of(moved.chainedFailures(), moveFollowingFailure,
+                result.chainedFailures()).filter(Objects::nonNull).toList());
+
+        // take snapshot of new state to warn user if anything changed when they press undo
+        progress.beginPhase("Snapshotting deleted regions", false);
+        IOException snapshotFailure = snapshotAfterEdit(new ArrayList<>(attemptedRegions), headerEdits, progress);
+        if (snapshotFailure != null) {
+            // failed to snapshot some regions? add the exception and continue.
+            if (throwable != null) {
+                snapshotFailure.addSuppressed(throwable);
+            }
+            throwable = new IOException("Failed to take a complete snapshot after deleting chunks.\nThe chunks HAVE been deleted.", snapshotFailure);
+        }
+        if (throwable != null) {
+            throw new RuntimeException(throwable);
+        }
+        if (result.wasCancelled() || moved.wasCancelled()) {
+            throw new CancellationException(String.format("Deletion cancelled after %d of %d regions", attemptedRegions.size(), regions.size()));
+        }
+    }
+
+    /**
+     * Actually "delete" the chunks, suppressing all errors and returning them together at the end.
+     * Every kind of a region is edited by the same task, terrain first, so no region is left with only some kinds
+     * edited by cancellation.
+     *
+     * @return The header edit made to each kind of each region, without the kinds which couldn't be edited
+     */
+    private RegionWorkerPool.Result<Map<RegionKind, RegionHeaderWriter.Edit>> deleteChunks(Collection<VanillaRegionPos> regions,
+                                                                                          ChunkSelection selection,
+                                                                                          TaskProgress progress) {
+        return this.workerPool.run(regions, progress, regionPos -> {
+            Map<RegionKind, RegionHeaderWriter.Edit> edits = new EnumMap<>(RegionKind.class);
+            for (RegionKind kind : this.stateTrackers.keySet()) {
+                Path regionPath = kind.directoryIn(this.worldDirectory).resolve(regionPos.fileName());
+                if (kind != RegionKind.TERRAIN && !Files.exists(regionPath)) {
+                    continue; // nothing to delete, such as a region without any entities
+                }
+
+                long start = System.nanoTime();
+                try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+                    progress.addBytesRead(HEADER_SIZE_BYTES);
+                    if (writer.fileLength() < 2 * HEADER_SIZE_BYTES) {
+                        // minecraft leaves empty entity and POI files behind, but never empty terrain
+                        if (kind == RegionKind.TERRAIN) {
+                            Log.warn("Missing header in region file, despite trying to delete chunks from it?!\nThis is really bad");
+                        }
+                        continue;
+                    }
+
+                    selection.forEachChunkIndex(regionPos, writer::clearChunk);
+                    edits.put(kind, writer.pendingEdit());
+                    writer.commit();
+                    progress.addBytesWritten(writer.writtenBytes());
+                } finally {
+                    EditorMetrics.INSTANCE.recordSince(EditorMetrics.Operation.HEADER_WRITE, start);
+                }
+            }
+            return edits;
+        });
+    }
+
+    /**
+     * Snapshot the regions of every kind ahead of editing them, adding to the current state if there is one. Only the
+     * terrain may be cancelled, so a region is snapshot for either every kind or none.
+     *
+     * @throws CancellationException If cancelled, the regions are snapshot for no kind
+     */
+    private void snapshotBeforeEdit(List<VanillaRegionPos> regions, TaskProgress progress) {
+        // dropped up front for every kind, so they stay in step even if a snapshot fails
+        this.stateTrackers.values().forEach(VanillaStateTracker::removeFutureStates);
+        boolean hasState = this.stateTracker.hasState();
+        List<VanillaStateTracker> newlySnapshot = new ArrayList<>();
+        try {
+            for (Map.Entry<RegionKind, VanillaStateTracker> entry : this.stateTrackers.entrySet()) {
+                if (entry.getKey() != RegionKind.TERRAIN) {
+                    progress.beginPhase("Snapshotting " + entry.getKey(), false);
+                }
+                VanillaStateTracker tracker = entry.getValue();
+                // we first overwrite the current snapshot if it exists, ready to be undone
+                if (hasState) {
+                    tracker.snapshotCurrentState(regions, progress);
+                } else {
+                    // otherwise we just take a normal snapshot instead
+                    tracker.snapshotState(regions, progress);
+                    newlySnapshot.add(tracker);
+                }
+            }
+        } catch (IOException e) {
+            newlySnapshot.forEach(VanillaStateTracker::removeCurrentState);
+            // we haven't started yet, so can safely cancel
+            throw new UncheckedIOException("Could not take snapshot of regions, aborting.", e);
+        } catch (RuntimeException e) {
+            newlySnapshot.forEach(VanillaStateTracker::removeCurrentState);
+            throw e;
+        }
+    }
+
+    /**
+     * Snapshot the edited regions of every kind as a new state. Every region of every kind is attempted, whatever fails.
+     *
+     * @param headerEdits The header edits of each kind, kinds without any may be absent
+     * @return The failures of every kind chained together, or null if every region was snapshot
+     */
+    @Nullable
+    private IOException snapshotAfterEdit(List<VanillaRegionPos> regions,
+                                          Map<RegionKind, Map<VanillaRegionPos, RegionHeaderWriter.Edit>> headerEdits,
+                                          TaskProgress progress) {
+        List<IOException> failures = new ArrayList<>();
+        this.stateTrackers.forEach((kind, tracker) -> {
             try {
-                stateTracker.snapshotStateNoFail(regions);
+                tracker.snapshotStateNoFail(regions, headerEdits.getOrDefault(kind, Map.of()), progress);
             } catch (IOException e) {
-                // failed to snapshot some regions? add the exception and continue.
+                failures.add(e);
+            }
+        });
+        return ExceptionUtils.chainSuppressedExceptions(failures);
+    }
+
+    /**
+     * Move every kind other than the terrain out of the world, for the regions whose terrain was moved. Must be run in
+     * a phase which can't be cancelled, so each region is moved whole.
+     *
+     * @return The failures of every kind chained together, or null if every region was moved
+     */
+    @Nullable
+    private IOException moveFollowingKinds(Collection<VanillaRegionPos> regions, TaskProgress progress) {
+        List<IOException> failures = new ArrayList<>();
+        this.stateTrackers.forEach((kind, tracker) -> {
+            if (kind == RegionKind.TERRAIN) {
+                return;
+            }
+            try {
+                failures.addAll(tracker.moveRegions(regions, progress).failures().values());
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        });
+        return ExceptionUtils.chainSuppressedExceptions(failures);
+    }
+
+    /**
+     * Write every kind other than the terrain, once the terrain has been written for an undo or redo. Not cancellable,
+     * so every region's files end up at the same step as its terrain.
+     *
+     * @param write Writes the target state of a kind
+     * @return The failures of every kind chained together, or null if every region was written
+     */
+    @Nullable
+    private IOException writeFollowingKinds(String phase, BiFunction<VanillaStateTracker, TaskProgress, RegionWorkerPool.Result<Long>> write,
+                                            TaskProgress progress) {
+        List<IOException> failures = new ArrayList<>();
+        this.stateTrackers.forEach((kind, tracker) -> {
+            if (kind == RegionKind.TERRAIN) {
+                return;
+            }
+            progress.beginPhase(phase + " " + kind, false);
+            IOException failure = write.apply(tracker, progress).chainedFailures();
+            if (failure != null) {
+                failures.add(failure);
+            }
+        });
+        return ExceptionUtils.chainSuppressedExceptions(failures);
+    }
+
+    /**
+     * Compact the region files on the task executor, reclaiming the space of deleted chunks. Compaction is a step in the
+     * undo history like any other, so can be undone. If cancelled, the regions which were already compacted stay
+     * compacted, the rest are left untouched.
+     *
+     * @param progress Reports the progress of the compaction, and may be used to cancel it
+     * @return Null if the future failed to start because of user input or other error.
+     *         Completes with a {@link CancellationException} if cancelled.
+     */
+    @Nullable
+    public CompletableFuture<Void> compactRegions(Executor taskExecutor, Collection<VanillaRegionPos> regions, TaskProgress progress) {
+        if (!worldLock.tryLock()) {
+            return null;
+        }
+        List<VanillaRegionPos> regionList = new ArrayList<>(regions);
+
+        return runOperation(taskExecutor, EditorMetrics.Operation.COMPACT, progress, () -> {
+            progress.beginPhase("Snapshotting regions", true);
+            snapshotBeforeEdit(regionList, progress);
+
+            progress.beginPhase("Compacting regions", true);
+            RegionWorkerPool.Result<RegionCompactor.Result> result = this.workerPool.run(regionList, progress, regionPos -> {
+                // every kind of the region together, as the total of them all
+                long originalSize = 0;
+                long compactedSize = 0;
+                for (RegionKind kind : this.stateTrackers.keySet()) {
+                    Path regionPath = kind.directoryIn(this.worldDirectory).resolve(regionPos.fileName());
+                    if (kind != RegionKind.TERRAIN && !Files.exists(regionPath)) {
+                        continue;
+                    }
+                    RegionCompactor.Result compacted = RegionCompactor.compact(regionPath);
+                    progress.addBytesRead(compacted.compactedSize());
+                    if (compacted.reclaimedBytes() > 0) {
+                        progress.addBytesWritten(compacted.compactedSize());
+                    }
+                    originalSize += compacted.originalSize();
+                    compactedSize += compacted.compactedSize();
+                }
+                return new RegionCompactor.Result(originalSize, compactedSize);
+            });
+            // compaction is now complete, we MUST NOT fail to snapshot and exit or risk an invalid state for the user
+            // the chunks themselves are unchanged, so there is nothing for the listener to update
+
+            Set<VanillaRegionPos> attemptedRegions = result.attempted();
+            EditorMetrics.INSTANCE.addRegionsProcessed(attemptedRegions.size());
+            long reclaimedBytes = result.values().values().stream().mapToLong(RegionCompactor.Result::reclaimedBytes).sum();
+            Log.info(String.format("Compacted %d regions, reclaiming %dMiB", attemptedRegions.size(), reclaimedBytes / 1024 / 1024));
+            Throwable throwable = result.chainedFailures();
+
+            progress.beginPhase("Snapshotting compacted regions", false);
+            IOException snapshotFailure = snapshotAfterEdit(new ArrayList<>(attemptedRegions), Map.of(), progress);
+            if (snapshotFailure != null) {
                 if (throwable != null) {
-                    e.addSuppressed(throwable);
+                    snapshotFailure.addSuppressed(throwable);
                 }
-                throwable = new IOException("Failed to take a complete snapshot after deleting chunks.\nThe chunks HAVE been deleted.", e);
+                throwable = new IOException("Failed to take a complete snapshot after compacting regions.\nThe regions HAVE been compacted.", snapshotFailure);
             }
             if (throwable != null) {
                 throw new RuntimeException(throwable);
             }
+            if (result.wasCancelled()) {
+                throw new CancellationException(String.format("Compaction cancelled after %d of %d regions", attemptedRegions.size(), regionList.size()));
+            }
         });
     }
 
-    private CompletableFuture<Void> deleteChunks(Executor taskExecutor, Map<VanillaRegionPos, List<ChunkPosition>> regionSelection) {
-        // actually "delete" the chunks, suppressing all errors and outputting them together at the end.
-        CompletableFuture<Void> deletionFuture = CompletableFuture.runAsync(() -> {
-            IOException suppressed = null;
-            for (Map.Entry<VanillaRegionPos, List<ChunkPosition>> entry : regionSelection.entrySet()) {
-                VanillaRegionPos regionPos = entry.getKey();
-                List<ChunkPosition> chunkPositions = entry.getValue();
-                File regionFile = this.regionDirectory.resolve(regionPos.fileName()).toFile();
+    /**
+     * @return Every region file of the world
+     */
+    public List<VanillaRegionPos> regionPositions() throws IOException {
+        List<VanillaRegionPos> regions = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(this.regionDirectory, "r.*.*.mca")) {
+            for (Path path : paths) {
+                String[] parts = path.getFileName().toString().split("\\.");
+                try {
+                    regions.add(new VanillaRegionPos(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+                } catch (NumberFormatException e) {
+                    // not a region file
+                }
+            }
+        }
+        return regions;
+    }
 
-                try (RandomAccessFile file = new RandomAccessFile(regionFile, "rw")) {
-                    long length = file.length();
-                    if (length < 2 * HEADER_SIZE_BYTES) {
-                        Log.warn("Missing header in region file, despite trying to delete chunks from it?!\nThis is really bad");
-                        continue;
-                    }
+    /**
+     * Undo on the task executor. If cancelled, every region which was already undone is restored, so the world is left
+     * as it was before the undo.
+     *
+     * @param progress Reports the progress of the undo, and may be used to cancel it
+     * @return Null if the future failed to start because of user input or other error.
+     *         Completes with a {@link CancellationException} if cancelled.
+     */
+    @Nullable
+    public CompletableFuture<Void> undo(Executor taskExecutor, TaskProgress progress) {
+        if (!this.stateTracker.hasPreviousState())
+            return null;
+        if (!worldLock.tryLock())
+            return null;
 
-                    for (ChunkPosition chunkPos : chunkPositions) {
-                        int x = chunkPos.x & 31;
-                        int z = chunkPos.z & 31;
-                        int index = x + z * 32;
+        return runOperation(taskExecutor, EditorMetrics.Operation.UNDO, progress, () -> {
+            progress.beginPhase("Undoing", true);
+            RegionWorkerPool.Result<Long> result = this.stateTracker.writePreviousState(progress);
+            // only what differs from the region file is written, so regions already matching the state are untouched,
+            // but a failed region may have been partially written
+            Set<VanillaRegionPos> writtenRegions = new HashSet<>(result.failures().keySet());
+            result.values().forEach((regionPos, written) -> {
+                if (written > 0) {
+                    writtenRegions.add(regionPos);
+                }
+            });
+            EditorMetrics.INSTANCE.addRegionsProcessed(result.attempted().size());
+            IOException suppressed = result.chainedFailures();
 
-                        file.seek(4 * index);
-                        file.writeInt(0);
+            if (result.wasCancelled()) {
+                // nothing may be left half undone, so the regions already written are put back
+                progress.beginPhase("Cancelling undo", false);
+                Map<VanillaRegionPos, Boolean> headerOnly = new HashMap<>();
+                writtenRegions.forEach(regionPos -> headerOnly.put(regionPos, false));
+                IOException restoreFailure = this.stateTracker.restoreCurrentState(headerOnly, progress).chainedFailures();
+                if (restoreFailure != null) {
+                    if (suppressed != null) {
+                        restoreFailure.addSuppressed(suppressed);
                     }
-                } catch (IOException e) {
-                    if (suppressed == null) {
-                        suppressed = e;
-                    } else {
-                        suppressed.addSuppressed(e);
+                    suppressed = new IOException("Failed to restore regions after cancelling undo.\nThe undo HAS been partially applied.", restoreFailure);
+                }
+            } else {
+                IOException followingFailure = writeFollowingKinds("Undoing", VanillaStateTracker::writePreviousState, progress);
+                if (followingFailure != null) {
+                    if (suppressed != null) {
+                        followingFailure.addSuppressed(suppressed);
                     }
+                    suppressed = followingFailure;
                 }
+                this.stateTrackers.values().forEach(VanillaStateTracker::previousState);
             }
 
+            this.changeListener.regionsRestored(writtenRegions);
+
             // rethrow suppressed exceptions
             if (suppressed != null) {
                 throw new UncheckedIOException(suppressed);
             }
-        }, taskExecutor);
-
-        // update the map view with the newly deleted chunks
-        deletionFuture.whenCompleteAsync((v, throwable) ->
-                regionSelection.forEach((regionPos, chunkPositions) -> {
-                    Region region = world.getRegion(new ChunkPosition(regionPos.x(), regionPos.z()));
-                    for (ChunkPosition chunkPos : chunkPositions) {
-                        Chunk chunk = world.getChunk(chunkPos);
-                        if (!chunk.isEmpty()) {
-                            chunk.reset();
-                            Accessor.invoke_MCRegion$setChunk((MCRegion) region, chunkPos, EmptyChunk.INSTANCE);
-                            world.chunkUpdated(chunkPos);
-                            world.chunkDeleted(chunkPos);
-                        }
-                    }
-                }), Platform::runLater
-        );
-
-        return deletionFuture;
+            if (result.wasCancelled()) {
+                throw new CancellationException("Undo cancelled");
+            }
+        });
     }
 
     /**
+     * Redo the last undo on the task executor. Regions which still match the undo result only have their header edit
+     * reapplied, so redoing a deletion writes just the location tables. If cancelled, every region which was already
+     * redone is restored, so the world is left as it was before the redo.
+     *
+     * @param progress Reports the progress of the redo, and may be used to cancel it
      * @return Null if the future failed to start because of user input or other error.
+     *         Completes with a {@link CancellationException} if cancelled.
      */
     @Nullable
-    public CompletableFuture<Void> undo(Executor taskExecutor) {
-        if (!this.stateTracker.hasPreviousState())
+    public CompletableFuture<Void> redo(Executor taskExecutor, TaskProgress progress) {
+        if (!this.stateTracker.hasNextState())
             return null;
         if (!worldLock.tryLock())
             return null;
 
-        List<VanillaRegionPos> writtenRegions = new ArrayList<>();
+        return runOperation(taskExecutor, EditorMetrics.Operation.REDO, progress, () -> {
+            progress.beginPhase("Redoing", true);
+            RegionWorkerPool.Result<Long> result = this.stateTracker.writeNextState(progress);
+            // a failed region may have been partially written
+            Set<VanillaRegionPos> writtenRegions = new HashSet<>(result.failures().keySet());
+            result.values().forEach((regionPos, written) -> {
+                if (written > 0) {
+                    writtenRegions.add(regionPos);
+                }
+            });
+            EditorMetrics.INSTANCE.addRegionsProcessed(result.attempted().size());
+            IOException suppressed = result.chainedFailures();
 
-        CompletableFuture<Void> undoFuture = CompletableFuture.runAsync(() -> {
-            IOException suppressed = null;
-            for (Map.Entry<VanillaRegionPos, State> entry : this.stateTracker.previousState().getStates().entrySet()) {
-                VanillaRegionPos position = entry.getKey();
-                State state = entry.getValue();
-                try {
-                    //TODO: only write to regions modified since the snapshot was taken
-                    Path regionPath = this.regionDirectory.resolve(position.fileName());
-                    state.writeState(regionPath);
-                    writtenRegions.add(position);
-                } catch (IOException e) {
-                    if (suppressed == null) {
-                        suppressed = e;
-                    } else {
-                        suppressed.addSuppressed(e);
+            if (result.wasCancelled()) {
+                // nothing may be left half redone, so the regions already written are put back
+                progress.beginPhase("Cancelling redo", false);
+                Map<VanillaRegionPos, Boolean> headerOnly = new HashMap<>();
+                writtenRegions.forEach(regionPos -> headerOnly.put(regionPos, false));
+                IOException restoreFailure = this.stateTracker.restoreCurrentState(headerOnly, progress).chainedFailures();
+                if (restoreFailure != null) {
+                    if (suppressed != null) {
+                        restoreFailure.addSuppressed(suppressed);
+                    }
+                    suppressed = new IOException("Failed to restore regions after cancelling redo.\nThe redo HAS been partially applied.", restoreFailure);
+                }
+            } else {
+                IOException followingFailure = writeFollowingKinds("Redoing", VanillaStateTracker::writeNextState, progress);
+                if (followingFailure != null) {
+                    if (suppressed != null) {
+                        followingFailure.addSuppressed(suppressed);
                     }
+                    suppressed = followingFailure;
                 }
+                this.stateTrackers.values().forEach(VanillaStateTracker::nextState);
             }
+
+            this.changeListener.regionsRestored(writtenRegions);
+
             // rethrow suppressed exceptions
             if (suppressed != null) {
                 throw new UncheckedIOException(suppressed);
             }
+            if (result.wasCancelled()) {
+                throw new CancellationException("Redo cancelled");
+            }
+        });
+    }
+
+    /**
+     * Run a whole operation on the task executor, persisting the history once it completes, whether or not it succeeded
+     */
+    private CompletableFuture<Void> runOperation(Executor taskExecutor, EditorMetrics.Operation operation, TaskProgress progress,
+                                                 Runnable body) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                measure(operation, progress, body);
+            } finally {
+                // nothing reads the states between operations, so they can be moved around on disk
+                this.historyStorage.compactJournal();
+                this.historyStorage.saveHistory();
+            }
         }, taskExecutor);
+    }
+
+    /**
+     * Run a whole operation, recording its duration and I/O once it completes, whether or not it succeeded
+     */
+    private static void measure(EditorMetrics.Operation operation, TaskProgress progress, Runnable body) {
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } finally {
+            EditorMetrics metrics = EditorMetrics.INSTANCE;
+            metrics.recordSince(operation, start);
+            metrics.addBytesRead(progress.bytesRead());
+            metrics.addBytesWritten(progress.bytesWritten());
+        }
+    }
 
-        undoFuture.whenCompleteAsync((v, throwable) ->
-                writtenRegions.forEach(regionPos ->
-                        Editor.INSTANCE.mapLoader().regionUpdated(new ChunkPosition(regionPos.x(), regionPos.z()))), Platform::runLater);
-        return undoFuture;
+    /**
+     * Release the undo history, leaving it on disk if it is persisted. Must not be called while an operation is running.
+     */
+    public void close() {
+        this.stateTrackers.values().forEach(VanillaStateTracker::close);
+        this.historyStorage.close();
     }
 
+    /**
+     * Remove the undo history of every kind of region file
+     */
+    public void removeAllStates() {
+        this.stateTrackers.values().forEach(VanillaStateTracker::clearStates);
+        this.historyStorage.saveHistory();
+    }
+
+    /**
+     * Remove the undo history of every kind of region file on the task executor, as releasing the states and saving the
+     * history may take a while when they are on disk
+     */
+    public CompletableFuture<Void> removeAllStates(Executor taskExecutor, TaskProgress progress) {
+        return runOperation(taskExecutor, EditorMetrics.Operation.CLEAR, progress, () -> {
+            progress.beginPhase("Clearing undo states", false);
+            this.stateTrackers.values().forEach(VanillaStateTracker::clearStates);
+        });
+    }
+
+    /**
+     * @param bytes The memory which may be used by the undo history of every kind of region file together before the
+     *              least recently used is spilled to disk
+     */
+    public void setMemoryBudgetBytes(long bytes) {
+        this.historyStorage.setMemoryBudgetBytes(bytes);
+    }
+
+    /**
+     * @return The memory used by the undo history of every kind of region file
+     */
+    public long statesSizeBytes() {
+        return this.historyStorage.statesSizeBytes();
+    }
+
+    /**
+     * @return The disk space used by the undo history of every kind of region file
+     */
+    public long statesDiskSizeBytes() {
+        return this.historyStorage.statesDiskSizeBytes();
+    }
+
+    /**
+     * @return The terrain history, which every other kind of region file follows step for step
+     */
     public VanillaStateTracker getStateTracker() {
         return this.stateTracker;
     }
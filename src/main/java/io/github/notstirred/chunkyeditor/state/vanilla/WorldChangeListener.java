@@ -0,0 +1,33 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.ChunkSelection;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+
+import java.util.Collection;
+
+/**
+ * Notified once an operation has written to region files, so that any view of the world can be updated.
+ * Called on the task executor which ran the operation.
+ */
+public interface WorldChangeListener {
+    /** For worlds which nothing is viewing */
+    WorldChangeListener NONE = new WorldChangeListener() {
+        @Override
+        public void chunksDeleted(ChunkSelection deletedChunks) {
+        }
+
+        @Override
+        public void regionsRestored(Collection<VanillaRegionPos> regions) {
+        }
+    };
+
+    /**
+     * @param deletedChunks The chunks deleted, no longer modified once passed
+     */
+    void chunksDeleted(ChunkSelection deletedChunks);
+
+    /**
+     * @param regions Regions which may have been changed in any way
+     */
+    void regionsRestored(Collection<VanillaRegionPos> regions);
+}
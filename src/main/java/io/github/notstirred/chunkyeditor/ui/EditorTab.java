@@ -1,26 +1,37 @@
 package io.github.notstirred.chunkyeditor.ui;
 
+import io.github.notstirred.chunkyeditor.ChunkSelection;
 import io.github.notstirred.chunkyeditor.Editor;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.minecraft.ChunkSummary;
 import io.github.notstirred.chunkyeditor.state.vanilla.VanillaStateTracker;
 import io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState;
+import io.github.notstirred.chunkyeditor.util.TaskProgress;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.chunky.ui.controller.ChunkyFxController;
 import se.llbit.chunky.ui.controller.RenderControlsFxController;
 import se.llbit.chunky.ui.render.RenderControlsTab;
-import se.llbit.chunky.world.ChunkPosition;
 import se.llbit.chunky.world.World;
 import se.llbit.fxutil.Dialogs;
 import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class EditorTab implements RenderControlsTab {
     protected final VBox box;
@@ -30,7 +41,24 @@ public class EditorTab implements RenderControlsTab {
 
     private Button deleteSelectedChunks;
     private Button undoPreviousAction;
+    private Button redoNextAction;
     private Button clearUndoStates = null;
+    private Button compactRegions;
+    private Button pruneChunks;
+
+    private final CheckBox pruneByInhabitedTime;
+    private final TextField pruneInhabitedTicks;
+    private final CheckBox pruneNotFullyGenerated;
+    private final CheckBox pruneByDataVersion;
+    private final TextField pruneMinDataVersion;
+    private final TextField pruneMaxDataVersion;
+
+    private final ProgressBar taskProgressBar;
+    private final Label taskProgressText;
+    private final Button cancelTask;
+    private final HBox taskProgressBox;
+    /** Null when no task is running */
+    @Nullable private TaskProgress runningTaskProgress = null;
 
     private static final String CLEAR_UNDO_STATES_TEXT = "Clear Undo States";
 
@@ -48,40 +76,19 @@ public class EditorTab implements RenderControlsTab {
             if (worldState == null) // user said no to confirmation
                 return;
 
-            VanillaStateTracker stateTracker = worldState.getStateTracker();
-
-            Collection<ChunkPosition> chunkSelection = this.chunkyFxController.getChunkSelection().getSelection();
+            ChunkSelection chunkSelection = ChunkSelection.of(this.chunkyFxController.getChunkSelection().getSelection());
 
             Dialog<ButtonType> confirmationDialog = Dialogs.createSpecialApprovalConfirmation(
                     "Confirm chunk deletion",
-                    String.format("Do you want to delete %d chunks?", chunkSelection.size()),
+                    String.format("Do you want to delete %d chunks?", chunkSelection.chunkCount()),
                     "These chunks will be removed from your actual Minecraft world\nIf the world is open in Minecraft, Chunky WILL break your world.\nBe sure to have a backup!",
-                    String.format("I do want to delete %d chunks", chunkSelection.size())
+                    String.format("I do want to delete %d chunks", chunkSelection.chunkCount())
             );
             if(confirmationDialog.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK)
                 return;
 
-            CompletableFuture<Void> deletionFuture = worldState.deleteChunks(this.editor::submitTask, chunkSelection);
-            // null when failed to start
-            if (deletionFuture == null) {
-                return;
-            }
-            // set memory usage info on clear states button
-            deletionFuture.whenCompleteAsync((result, throwable) -> {
-                clearUndoStates.setText(String.format("%s (%dMiB Memory, %dMiB Disk)",
-                        CLEAR_UNDO_STATES_TEXT,
-                        (int) (stateTracker.statesSizeBytes() / 1024 / 1024),
-                        (int) (stateTracker.statesDiskSizeBytes() / 1024 / 1024)));
-            }, Platform::runLater);
-
-            try {
-                //TODO: don't immediately wait for the future
-                deletionFuture.get();
-            } catch (ExecutionException e) {
-                Log.warn("Error when deleting chunks", e.getCause());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            runTask("Error when deleting chunks", worldState,
+                    progress -> worldState.deleteChunks(this.editor::submitTask, chunkSelection, progress));
         });
 
         undoPreviousAction = new Button("Undo");
@@ -92,26 +99,45 @@ public class EditorTab implements RenderControlsTab {
             if (worldState == null) // user said no to confirmation
                 return;
 
-            try {
-                CompletableFuture<Void> undoFuture = worldState.undo(this.editor::submitTask);
-                // null when failed to start
-                if (undoFuture != null) {
-                    undoFuture.get();
-                }
-            } catch (ExecutionException e) {
-                Log.warn("Undo completed exceptionally", e);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            runTask("Undo completed exceptionally", worldState,
+                    progress -> worldState.undo(this.editor::submitTask, progress));
+        });
+
+        redoNextAction = new Button("Redo");
+        redoNextAction.setTooltip(new Tooltip("Redoes the last undone delete"));
+        redoNextAction.setOnMouseClicked(event -> {
+            VanillaWorldState worldState = editor.getWorldState();
+
+            if (worldState == null) // user said no to confirmation
+                return;
+
+            runTask("Redo completed exceptionally", worldState,
+                    progress -> worldState.redo(this.editor::submitTask, progress));
         });
 
         GridPane optionsGrid = new GridPane();
         optionsGrid.setHgap(6);
         optionsGrid.add(deleteSelectedChunks, 0, 0);
         optionsGrid.add(undoPreviousAction, 1, 0);
+        optionsGrid.add(redoNextAction, 2, 0);
+
+        taskProgressBar = new ProgressBar(0);
+        taskProgressBar.setPrefWidth(150);
+        taskProgressText = new Label();
+        cancelTask = new Button("Cancel");
+        cancelTask.setTooltip(new Tooltip("Stops after the regions currently being processed, leaving every region either fully done or untouched"));
+        cancelTask.setOnMouseClicked(event -> {
+            if (this.runningTaskProgress != null) {
+                this.runningTaskProgress.cancel();
+                cancelTask.setDisable(true);
+            }
+        });
+        taskProgressBox = new HBox(6, taskProgressBar, cancelTask, taskProgressText);
+        setTaskProgressVisible(false);
 
         GridPane advancedOptionsGrid = new GridPane();
         advancedOptionsGrid.setHgap(6);
+        advancedOptionsGrid.setVgap(6);
 
         clearUndoStates = new Button(CLEAR_UNDO_STATES_TEXT);
         clearUndoStates.setTooltip(new Tooltip("Clears the deletion undo states, and saves some memory"));
@@ -130,28 +156,234 @@ public class EditorTab implements RenderControlsTab {
             Dialog<ButtonType> confirmationDialog = Dialogs.createSpecialApprovalConfirmation(
                     "Confirm state clear",
                     String.format("Do you want to clear %d undo states?", stateCount),
-                    String.format("This will save approximately %dMiB.\nYou won't be able to get the previous undo states back!", (int) (stateTracker.statesSizeBytes() / 1024 / 1024)),
+                    String.format("This will save approximately %dMiB.\nYou won't be able to get the previous undo states back!", (int) (worldState.statesSizeBytes() / 1024 / 1024)),
                     String.format("I do want to clear %d undo states", stateCount));
 
             if (confirmationDialog.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK) {
                 return;
             }
 
-            clearUndoStates.setText(CLEAR_UNDO_STATES_TEXT);
-            stateTracker.removeAllStates();
-            System.gc();
+            runTask("Error when clearing undo states", worldState,
+                    progress -> worldState.removeAllStates(this.editor::submitTask, progress).thenRun(System::gc));
         });
         advancedOptionsGrid.add(clearUndoStates, 0, 0);
 
+        compactRegions = new Button("Compact Region Files");
+        compactRegions.setTooltip(new Tooltip("Reclaims the disk space left behind by deleted chunks, in every region file of the world"));
+        compactRegions.setOnMouseClicked(event -> {
+            VanillaWorldState worldState = editor.getWorldState();
+
+            if (worldState == null) // user said no to confirmation
+                return;
+
+            List<VanillaRegionPos> regions;
+            try {
+                regions = worldState.regionPositions();
+            } catch (IOException e) {
+                Log.warn("Failed to list region files", e);
+                return;
+            }
+
+            Dialog<ButtonType> confirmationDialog = Dialogs.createSpecialApprovalConfirmation(
+                    "Confirm region compaction",
+                    String.format("Do you want to compact %d region files?", regions.size()),
+                    "Every region file will be rewritten without the space left behind by deleted chunks.\nIf the world is open in Minecraft, Chunky WILL break your world.\nBe sure to have a backup!",
+                    String.format("I do want to compact %d region files", regions.size())
+            );
+            if (confirmationDialog.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK)
+                return;
+
+            runTask("Error when compacting regions", worldState,
+                    progress -> worldState.compactRegions(this.editor::submitTask, regions, progress));
+        });
+        advancedOptionsGrid.add(compactRegions, 0, 1);
+
+        pruneByInhabitedTime = new CheckBox("Inhabited for less than");
+        pruneInhabitedTicks = new TextField("1200");
+        pruneInhabitedTicks.setPrefColumnCount(6);
+        pruneNotFullyGenerated = new CheckBox("Not fully generated");
+        pruneByDataVersion = new CheckBox("Data version from");
+        pruneMinDataVersion = new TextField("0");
+        pruneMinDataVersion.setPrefColumnCount(5);
+        pruneMaxDataVersion = new TextField("0");
+        pruneMaxDataVersion.setPrefColumnCount(5);
+
+        pruneChunks = new Button("Prune Chunks");
+        pruneChunks.setTooltip(new Tooltip("Deletes every chunk of the world matching all of the checked conditions"));
+        pruneChunks.setOnMouseClicked(event -> {
+            VanillaWorldState worldState = editor.getWorldState();
+
+            if (worldState == null) // user said no to confirmation
+                return;
+
+            StringJoiner conditions = new StringJoiner("\n");
+            Predicate<ChunkSummary> filter = pruneFilter(conditions);
+            if (filter == null)
+                return;
+
+            List<VanillaRegionPos> regions;
+            try {
+                regions = worldState.regionPositions();
+            } catch (IOException e) {
+                Log.warn("Failed to list region files", e);
+                return;
+            }
+
+            Dialog<ButtonType> confirmationDialog = Dialogs.createSpecialApprovalConfirmation(
+                    "Confirm chunk pruning",
+                    String.format("Do you want to prune chunks from %d region files?", regions.size()),
+                    "Every chunk matching all of these will be removed from your actual Minecraft world:\n" + conditions
+                            + "\nIf the world is open in Minecraft, Chunky WILL break your world.\nBe sure to have a backup!",
+                    String.format("I do want to prune chunks from %d region files", regions.size())
+            );
+            if (confirmationDialog.showAndWait().orElse(ButtonType.CANCEL) != ButtonType.OK)
+                return;
+
+            runTask("Error when pruning chunks", worldState,
+                    progress -> worldState.pruneChunks(this.editor::submitTask, regions, filter, progress));
+        });
+
+        VBox pruneBox = new VBox(6,
+                new HBox(6, pruneByInhabitedTime, pruneInhabitedTicks, new Label("ticks")),
+                pruneNotFullyGenerated,
+                new HBox(6, pruneByDataVersion, pruneMinDataVersion, new Label("to"), pruneMaxDataVersion),
+                pruneChunks);
+        advancedOptionsGrid.add(pruneBox, 0, 2);
+
         TitledPane advancedOptionsPane = new TitledPane("Advanced Options", advancedOptionsGrid);
         advancedOptionsPane.setExpanded(false);
         advancedOptionsPane.setAnimated(false);
         advancedOptionsPane.setMaxWidth(400);
 
         box.getChildren().add(optionsGrid);
+        box.getChildren().add(taskProgressBox);
         box.getChildren().add(advancedOptionsPane);
     }
 
+    /**
+     * Run an editor task without blocking the UI, showing its progress and disabling every action until it completes.
+     *
+     * @param errorMessage Logged if the task fails
+     * @param startTask Starts the task, returning null if it failed to start
+     */
+    private void runTask(String errorMessage, VanillaWorldState worldState,
+                         Function<TaskProgress, CompletableFuture<Void>> startTask) {
+        if (this.runningTaskProgress != null) {
+            return;
+        }
+        TaskProgress progress = new TaskProgress();
+        CompletableFuture<Void> future = startTask.apply(progress);
+        // null when failed to start
+        if (future == null) {
+            return;
+        }
+
+        this.runningTaskProgress = progress;
+        setActionsDisabled(true);
+        setTaskProgressVisible(true);
+        AnimationTimer progressUpdater = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                updateTaskProgress(progress);
+            }
+        };
+        progressUpdater.start();
+
+        future.whenCompleteAsync((result, throwable) -> {
+            progressUpdater.stop();
+            this.runningTaskProgress = null;
+            setActionsDisabled(false);
+            setTaskProgressVisible(false);
+            updateClearUndoStatesText(worldState);
+
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                if (cause instanceof CancellationException) {
+                    Log.info(cause.getMessage());
+                } else {
+                    Log.warn(errorMessage, cause);
+                }
+            }
+        }, Platform::runLater);
+    }
+
+    /**
+     * Build the pruning filter from the checked conditions, describing each one
+     *
+     * @return Null if no condition is checked, or a condition is invalid
+     */
+    @Nullable
+    private Predicate<ChunkSummary> pruneFilter(StringJoiner conditions) {
+        Predicate<ChunkSummary> filter = chunk -> true;
+        boolean anyChecked = false;
+        try {
+            if (this.pruneByInhabitedTime.isSelected()) {
+                long ticks = Long.parseLong(this.pruneInhabitedTicks.getText().trim());
+                filter = filter.and(ChunkSummary.inhabitedTimeBelow(ticks));
+                conditions.add(String.format("Inhabited for less than %d ticks", ticks));
+                anyChecked = true;
+            }
+            if (this.pruneNotFullyGenerated.isSelected()) {
+                filter = filter.and(ChunkSummary.notFullyGenerated());
+                conditions.add("Not fully generated");
+                anyChecked = true;
+            }
+            if (this.pruneByDataVersion.isSelected()) {
+                int min = Integer.parseInt(this.pruneMinDataVersion.getText().trim());
+                int max = Integer.parseInt(this.pruneMaxDataVersion.getText().trim());
+                filter = filter.and(ChunkSummary.dataVersionBetween(min, max));
+                conditions.add(String.format("Data version from %d to %d", min, max));
+                anyChecked = true;
+            }
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid number in pruning conditions", e);
+            return null;
+        }
+        if (!anyChecked) {
+            Log.warn("Check at least one condition to prune chunks by");
+            return null;
+        }
+        return filter;
+    }
+
+    private void updateTaskProgress(TaskProgress progress) {
+        int regionsTotal = progress.regionsTotal();
+        this.taskProgressBar.setProgress(regionsTotal == 0 ? 0 : (double) progress.regionsDone() / regionsTotal);
+        this.taskProgressText.setText(String.format("%s: %d/%d regions, %dMiB read, %dMiB written",
+                progress.phase(),
+                progress.regionsDone(),
+                regionsTotal,
+                progress.bytesRead() / 1024 / 1024,
+                progress.bytesWritten() / 1024 / 1024));
+    }
+
+    private void setActionsDisabled(boolean disabled) {
+        this.deleteSelectedChunks.setDisable(disabled);
+        this.undoPreviousAction.setDisable(disabled);
+        this.redoNextAction.setDisable(disabled);
+        this.clearUndoStates.setDisable(disabled);
+        this.compactRegions.setDisable(disabled);
+        this.pruneChunks.setDisable(disabled);
+    }
+
+    private void setTaskProgressVisible(boolean visible) {
+        this.taskProgressBar.setProgress(0);
+        this.taskProgressText.setText("");
+        this.cancelTask.setDisable(false);
+        this.taskProgressBox.setVisible(visible);
+        this.taskProgressBox.setManaged(visible);
+    }
+
+    /**
+     * Set memory usage info on clear states button
+     */
+    private void updateClearUndoStatesText(VanillaWorldState worldState) {
+        this.clearUndoStates.setText(String.format("%s (%dMiB Memory, %dMiB Disk)",
+                CLEAR_UNDO_STATES_TEXT,
+                (int) (worldState.statesSizeBytes() / 1024 / 1024),
+                (int) (worldState.statesDiskSizeBytes() / 1024 / 1024)));
+    }
+
     public void setController(RenderControlsFxController controller) {
         this.chunkyFxController = controller.getChunkyController();
         this.chunkyFxController.getMapLoader().addWorldLoadListener(this.editor::worldLoaded);
@@ -4,17 +4,22 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class HashUtil {
-    private static final MessageDigest sha1;
-
-    static {
+    /** MessageDigest isn't thread safe, so each thread gets its own */
+    private static final ThreadLocal<MessageDigest> sha1 = ThreadLocal.withInitial(() -> {
         try {
-            sha1 = MessageDigest.getInstance("SHA-1");
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    });
+
+    public static byte[] sha1(byte[] data) {
+        return sha1.get().digest(data);
     }
 
-    public byte[] sha1(byte[] data) {
-        return sha1.digest(data);
+    public static byte[] sha1(byte[] data, int offset, int length) {
+        MessageDigest digest = sha1.get();
+        digest.update(data, offset, length);
+        return digest.digest();
     }
 }
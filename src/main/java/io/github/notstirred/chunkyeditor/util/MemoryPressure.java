@@ -0,0 +1,62 @@
+package io.github.notstirred.chunkyeditor.util;
+
+import se.llbit.log.Log;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.util.function.Consumer;
+
+/**
+ * Notifies listeners when a heap memory pool crosses its usage threshold, after a collection.
+ */
+public class MemoryPressure {
+    /** The fraction of a heap pool's maximum size at which listeners are notified */
+    private static final double USAGE_THRESHOLD = 0.8;
+
+    static {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * USAGE_THRESHOLD));
+            }
+        }
+    }
+
+    /**
+     * Register a listener, which is automatically removed once its target is garbage collected.
+     * The listener is called on a JMX notification thread.
+     *
+     * @param target The object to notify, only weakly referenced
+     * @param listener Called with the target whenever memory is under pressure
+     */
+    public static <T> void addWeakListener(T target, Consumer<T> listener) {
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        WeakReference<T> targetRef = new WeakReference<>(target);
+
+        NotificationListener notificationListener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    return;
+                }
+                T target = targetRef.get();
+                if (target == null) {
+                    try {
+                        emitter.removeNotificationListener(this);
+                    } catch (Exception e) {
+                        Log.info("Failed to remove memory pressure listener");
+                    }
+                    return;
+                }
+                listener.accept(target);
+            }
+        };
+        emitter.addNotificationListener(notificationListener, null, null);
+    }
+}
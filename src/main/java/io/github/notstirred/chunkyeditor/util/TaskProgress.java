@@ -0,0 +1,90 @@
+package io.github.notstirred.chunkyeditor.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a long-running editor task, such as deleting chunks or undoing.
+ * <p>
+ * Updated by the region workers and polled by the UI, so every method may be called from any thread.
+ * A task is made up of phases, each processing some number of regions. Cancellation is only ever acted on between
+ * regions, and only during phases which can safely stop part way through.
+ * </p>
+ */
+public class TaskProgress {
+    private volatile String phase = "";
+    private volatile boolean cancellable = true;
+    private volatile boolean cancelRequested = false;
+
+    private final AtomicInteger regionsDone = new AtomicInteger();
+    private final AtomicInteger regionsTotal = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Start a new phase, resetting the region counts. Byte counts are kept for the whole task.
+     *
+     * @param phase A short description of the phase, shown to the user
+     * @param cancellable Whether the phase may stop before every region is processed
+     */
+    public void beginPhase(String phase, boolean cancellable) {
+        this.phase = phase;
+        this.cancellable = cancellable;
+        this.regionsDone.set(0);
+        this.regionsTotal.set(0);
+    }
+
+    public void addRegions(int count) {
+        this.regionsTotal.addAndGet(count);
+    }
+
+    public void regionDone() {
+        this.regionsDone.incrementAndGet();
+    }
+
+    public void addBytesRead(long bytes) {
+        this.bytesRead.addAndGet(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        this.bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Request the task to stop at the next region boundary of a cancellable phase
+     */
+    public void cancel() {
+        this.cancelRequested = true;
+    }
+
+    public boolean isCancelRequested() {
+        return this.cancelRequested;
+    }
+
+    /**
+     * @return True if no more regions should be started in the current phase
+     */
+    public boolean shouldStop() {
+        return this.cancelRequested && this.cancellable;
+    }
+
+    public String phase() {
+        return this.phase;
+    }
+
+    public int regionsDone() {
+        return this.regionsDone.get();
+    }
+
+    public int regionsTotal() {
+        return this.regionsTotal.get();
+    }
+
+    public long bytesRead() {
+        return this.bytesRead.get();
+    }
+
+    public long bytesWritten() {
+        return this.bytesWritten.get();
+    }
+}
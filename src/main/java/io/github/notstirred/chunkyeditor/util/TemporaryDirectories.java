@@ -0,0 +1,137 @@
+package io.github.notstirred.chunkyeditor.util;
+
+import se.llbit.log.Log;
+import se.llbit.util.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Temporary directories deleted with everything in them when the JVM exits, unless they were already deleted.
+ * <p>
+ * Unlike {@link java.io.File#deleteOnExit()}, which keeps every path it is given until exit, only the directories
+ * which still exist are held, and files within them needn't be registered at all. A long session creating and deleting
+ * many temporary files doesn't grow anything.
+ * </p>
+ * <p>
+ * Nothing is deleted if the JVM is killed, so a directory created in a known place can be swept up later with
+ * {@link #deleteLeftovers}. Each directory holds a lock on a file within it while live, so one still used by another
+ * process isn't swept.
+ * </p>
+ */
+public class TemporaryDirectories {
+    private static final String LOCK_FILE_NAME = ".lock";
+
+    /** Every live directory, with the channel holding its lock */
+    private static final Map<Path, FileChannel> LIVE = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> LIVE.forEach(TemporaryDirectories::unlockAndDelete),
+                "chunky-editor-temporary-cleanup"));
+    }
+
+    /**
+     * Create a temporary directory which is deleted on exit, unless {@link #delete deleted} first
+     *
+     * @param parent The directory to create it in, or null for the default temporary directory
+     */
+    public static Path create(@Nullable Path parent, String prefix) throws IOException {
+        Path directory = parent == null ? Files.createTempDirectory(prefix) : Files.createTempDirectory(parent, prefix);
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lockChannel.lock();
+        } catch (IOException e) {
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+            deleteRecursively(directory);
+            throw e;
+        }
+        LIVE.put(directory, lockChannel);
+        return directory;
+    }
+
+    /**
+     * Delete every directory with the prefix in the parent which was left behind by a process that didn't exit cleanly.
+     * Directories live in this JVM, or locked by another process, are kept.
+     *
+     * @param parent The directory the directories were {@link #create created} in, or null for the default temporary
+     *               directory
+     */
+    public static void deleteLeftovers(@Nullable Path parent, String prefix) {
+        Path directory = parent != null ? parent : Path.of(System.getProperty("java.io.tmpdir"));
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory,
+                path -> path.getFileName().toString().startsWith(prefix) && Files.isDirectory(path))) {
+            for (Path path : paths) {
+                if (LIVE.containsKey(path) || isLockedElsewhere(path)) {
+                    continue;
+                }
+                Log.info("Deleting temporary directory left behind by an earlier session: " + path);
+                deleteRecursively(path);
+            }
+        } catch (IOException e) {
+            Log.info("Failed to look for temporary directories left behind in: " + directory);
+        }
+    }
+
+    private static boolean isLockedElsewhere(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException | IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Delete a directory created by {@link #create}, with everything still in it
+     */
+    public static void delete(Path directory) {
+        FileChannel lockChannel = LIVE.remove(directory);
+        if (lockChannel != null) {
+            unlockAndDelete(directory, lockChannel);
+        }
+    }
+
+    private static void unlockAndDelete(Path directory, FileChannel lockChannel) {
+        // the lock file can't be deleted while open on every platform
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            Log.info("Failed to unlock temporary directory: " + directory);
+        }
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+            for (Path path : paths) {
+                if (Files.isDirectory(path)) {
+                    deleteRecursively(path);
+                } else {
+                    Files.deleteIfExists(path);
+                }
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            Log.info("Failed to delete temporary directory: " + directory);
+        }
+    }
+}
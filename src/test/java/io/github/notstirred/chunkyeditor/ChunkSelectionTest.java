@@ -0,0 +1,241 @@
+package io.github.notstirred.chunkyeditor;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.junit.jupiter.api.Test;
+import se.llbit.chunky.world.ChunkPosition;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static io.github.notstirred.chunkyeditor.ChunkSelection.CHUNKS_PER_REGION;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkSelectionTest {
+    private static final VanillaRegionPos ORIGIN = new VanillaRegionPos(0, 0);
+    private static final VanillaRegionPos NEGATIVE = new VanillaRegionPos(-1, -1);
+
+    private static ChunkSelection wholeRegion(VanillaRegionPos regionPos) {
+        ChunkSelection selection = new ChunkSelection();
+        selection.addRegion(regionPos);
+        return selection;
+    }
+
+    private static Set<List<Integer>> chunks(ChunkSelection selection) {
+        Set<List<Integer>> chunks = new HashSet<>();
+        for (VanillaRegionPos regionPos : selection.regions()) {
+            selection.forEachChunk(regionPos, (x, z) -> chunks.add(List.of(x, z)));
+        }
+        return chunks;
+    }
+
+    @Test
+    void ofCountsDuplicatesOnce() {
+        ChunkSelection selection = ChunkSelection.of(List.of(
+                ChunkPosition.get(0, 0), ChunkPosition.get(0, 0), ChunkPosition.get(31, 31), ChunkPosition.get(-1, -1)));
+
+        assertEquals(3, selection.chunkCount());
+        assertEquals(2, selection.regionCount());
+        assertTrue(selection.contains(0, 0));
+        assertTrue(selection.contains(31, 31));
+        assertTrue(selection.contains(-1, -1));
+        assertFalse(selection.contains(32, 0));
+        assertEquals(Set.of(List.of(0, 0), List.of(31, 31), List.of(-1, -1)), chunks(selection));
+    }
+
+    @Test
+    void negativeChunksAreInTheirOwnRegion() {
+        ChunkSelection selection = new ChunkSelection();
+        selection.add(-32, -1);
+
+        assertEquals(1, selection.chunkCount(new VanillaRegionPos(-1, -1)));
+        assertEquals(0, selection.chunkCount(new VanillaRegionPos(-2, -1)));
+        assertFalse(selection.contains(-33, -1));
+        assertFalse(selection.contains(0, -1));
+        assertEquals(List.of(new VanillaRegionPos(-1, -1)), selection.regions());
+    }
+
+    @Test
+    void forEachChunkIndexIsAscendingInLocationTableOrder() {
+        ChunkSelection selection = new ChunkSelection();
+        selection.add(31, 31);
+        selection.add(1, 0);
+        selection.add(0, 1);
+        selection.add(-32, -32); // the first chunk of another region
+        selection.add(63, 2); // in the next region along x
+        // either side of the boundary between the first two words of the mask
+        selection.add(31, 1);
+        selection.add(0, 2);
+
+        IntArrayList indices = new IntArrayList();
+        selection.forEachChunkIndex(ORIGIN, indices::add);
+        assertEquals(IntArrayList.wrap(new int[]{1, 32, 63, 64, 1023}), indices);
+
+        indices.clear();
+        selection.forEachChunkIndex(NEGATIVE, indices::add);
+        assertEquals(IntArrayList.wrap(new int[]{0}), indices);
+
+        indices.clear();
+        selection.forEachChunkIndex(new VanillaRegionPos(1, 0), indices::add);
+        assertEquals(IntArrayList.wrap(new int[]{31 + 2 * 32}), indices);
+
+        indices.clear();
+        selection.forEachChunkIndex(new VanillaRegionPos(5, 5), indices::add);
+        assertTrue(indices.isEmpty());
+    }
+
+    @Test
+    void forEachChunkIndexCoversEveryBitOfAWholeRegion() {
+        IntArrayList indices = new IntArrayList();
+        wholeRegion(NEGATIVE).forEachChunkIndex(NEGATIVE, indices::add);
+
+        assertEquals(CHUNKS_PER_REGION, indices.size());
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            assertEquals(i, indices.getInt(i));
+        }
+    }
+
+    @Test
+    void isWholeRegionOnlyOnceEveryChunkIsSelected() {
+        ChunkSelection selection = new ChunkSelection();
+        for (int z = 0; z < 32; z++) {
+            for (int x = 0; x < 32; x++) {
+                assertFalse(selection.isWholeRegion(ORIGIN));
+                selection.add(x, z);
+            }
+        }
+        assertTrue(selection.isWholeRegion(ORIGIN));
+        assertEquals(CHUNKS_PER_REGION, selection.chunkCount());
+
+        selection.remove(17, 9);
+        assertFalse(selection.isWholeRegion(ORIGIN));
+        assertEquals(CHUNKS_PER_REGION - 1, selection.chunkCount());
+    }
+
+    @Test
+    void addRegionCountsOnlyNewlySelectedChunks() {
+        ChunkSelection selection = new ChunkSelection();
+        selection.add(3, 4);
+        selection.add(40, 4);
+        selection.addRegion(ORIGIN);
+
+        assertTrue(selection.isWholeRegion(ORIGIN));
+        assertEquals(CHUNKS_PER_REGION + 1, selection.chunkCount());
+
+        selection.removeRegion(ORIGIN);
+        assertEquals(1, selection.chunkCount());
+        assertEquals(List.of(new VanillaRegionPos(1, 0)), selection.regions());
+
+        selection.removeRegion(NEGATIVE);
+        assertEquals(1, selection.chunkCount());
+    }
+
+    @Test
+    void removingTheLastChunkDropsTheRegion() {
+        ChunkSelection selection = new ChunkSelection();
+        selection.add(5, 5);
+        selection.remove(5, 5);
+        selection.remove(5, 5);
+        selection.remove(100, 100);
+
+        assertTrue(selection.isEmpty());
+        assertEquals(0, selection.chunkCount());
+        assertEquals(0, selection.regionCount());
+    }
+
+    @Test
+    void addAllIsTheUnion() {
+        ChunkSelection a = ChunkSelection.of(List.of(ChunkPosition.get(0, 0), ChunkPosition.get(1, 0)));
+        ChunkSelection b = ChunkSelection.of(List.of(ChunkPosition.get(1, 0), ChunkPosition.get(-1, 0)));
+        a.addAll(b);
+
+        assertEquals(3, a.chunkCount());
+        assertEquals(Set.of(List.of(0, 0), List.of(1, 0), List.of(-1, 0)), chunks(a));
+        // the other's masks aren't shared
+        b.add(2, 0);
+        assertFalse(a.contains(2, 0));
+        assertEquals(3, b.chunkCount());
+    }
+
+    @Test
+    void addAllOfAWholeRegion() {
+        ChunkSelection selection = ChunkSelection.of(List.of(ChunkPosition.get(-5, -5)));
+        selection.addAll(wholeRegion(NEGATIVE));
+
+        assertTrue(selection.isWholeRegion(NEGATIVE));
+        assertEquals(CHUNKS_PER_REGION, selection.chunkCount());
+    }
+
+    @Test
+    void removeAllIsTheDifference() {
+        ChunkSelection a = wholeRegion(ORIGIN);
+        a.add(-1, 0);
+        ChunkSelection b = ChunkSelection.of(List.of(ChunkPosition.get(0, 0), ChunkPosition.get(-1, 0), ChunkPosition.get(64, 64)));
+        a.removeAll(b);
+
+        assertEquals(CHUNKS_PER_REGION - 1, a.chunkCount());
+        assertFalse(a.contains(0, 0));
+        assertFalse(a.contains(-1, 0));
+        assertEquals(List.of(ORIGIN), a.regions());
+
+        a.removeAll(wholeRegion(ORIGIN));
+        assertTrue(a.isEmpty());
+        assertEquals(0, a.regionCount());
+    }
+
+    @Test
+    void retainAllIsTheIntersection() {
+        ChunkSelection a = wholeRegion(ORIGIN);
+        a.add(-1, -1);
+        a.add(-2, -1);
+        ChunkSelection b = ChunkSelection.of(List.of(ChunkPosition.get(7, 7), ChunkPosition.get(-1, -1), ChunkPosition.get(64, 0)));
+        a.retainAll(b);
+
+        assertEquals(2, a.chunkCount());
+        assertEquals(Set.of(List.of(7, 7), List.of(-1, -1)), chunks(a));
+        assertEquals(2, a.regionCount());
+
+        a.retainAll(new ChunkSelection());
+        assertTrue(a.isEmpty());
+        assertEquals(0, a.regionCount());
+    }
+
+    @Test
+    void retainRegionsDropsEveryOtherRegion() {
+        ChunkSelection selection = wholeRegion(ORIGIN);
+        selection.add(-1, -1);
+        selection.add(-2, -2);
+        selection.add(40, 0);
+        selection.retainRegions(List.of(NEGATIVE, new VanillaRegionPos(9, 9)));
+
+        assertEquals(2, selection.chunkCount());
+        assertEquals(List.of(NEGATIVE), selection.regions());
+    }
+
+    @Test
+    void copyIsIndependent() {
+        ChunkSelection selection = ChunkSelection.of(List.of(ChunkPosition.get(3, 3)));
+        ChunkSelection copy = selection.copy();
+        copy.add(4, 4);
+        selection.remove(3, 3);
+
+        assertEquals(0, selection.chunkCount());
+        assertEquals(2, copy.chunkCount());
+        assertTrue(copy.contains(3, 3));
+    }
+
+    @Test
+    void regionsListsEachRegionOnce() {
+        List<ChunkPosition> chunks = new ArrayList<>();
+        for (int i = -64; i < 64; i += 8) {
+            chunks.add(ChunkPosition.get(i, i));
+        }
+        ChunkSelection selection = ChunkSelection.of(chunks);
+
+        assertEquals(16, selection.chunkCount());
+        assertEquals(Set.of(new VanillaRegionPos(-2, -2), new VanillaRegionPos(-1, -1), ORIGIN, new VanillaRegionPos(1, 1)),
+                new HashSet<>(selection.regions()));
+        assertEquals(4, selection.regions().size());
+    }
+}
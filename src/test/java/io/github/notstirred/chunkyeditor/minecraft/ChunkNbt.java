@@ -0,0 +1,181 @@
+package io.github.notstirred.chunkyeditor.minecraft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes chunk NBT for tests, one tag at a time in the order given. Compounds are opened by {@link #compound} and
+ * closed by {@link #end}.
+ */
+public class ChunkNbt {
+    public static final int TAG_END = 0;
+    public static final int TAG_BYTE = 1;
+    public static final int TAG_INT = 3;
+    public static final int TAG_LONG = 4;
+    public static final int TAG_DOUBLE = 6;
+    public static final int TAG_BYTE_ARRAY = 7;
+    public static final int TAG_STRING = 8;
+    public static final int TAG_LIST = 9;
+    public static final int TAG_COMPOUND = 10;
+    public static final int TAG_INT_ARRAY = 11;
+    public static final int TAG_LONG_ARRAY = 12;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+    /**
+     * Start a chunk, with the root compound open
+     */
+    public static ChunkNbt root() {
+        return new ChunkNbt().compound("");
+    }
+
+    /**
+     * A chunk as saved since 1.18, with its fields in the root after tags to be skipped
+     */
+    public static byte[] modern(int dataVersion, long inhabitedTime, String status) {
+        return root()
+                .filler()
+                .intTag("DataVersion", dataVersion)
+                .intTag("xPos", 0)
+                .longTag("InhabitedTime", inhabitedTime)
+                .stringTag("Status", status)
+                .end().toByteArray();
+    }
+
+    /**
+     * A chunk as saved before 1.18, with its fields in a {@code Level} compound
+     */
+    public static byte[] legacy(int dataVersion, long inhabitedTime, String status) {
+        return root()
+                .intTag("DataVersion", dataVersion)
+                .compound("Level")
+                .filler()
+                .longTag("InhabitedTime", inhabitedTime)
+                .stringTag("Status", status)
+                .end()
+                .end().toByteArray();
+    }
+
+    /**
+     * A chunk as saved before 1.13, with no status, only whether it was populated
+     *
+     * @param terrainPopulated Null to leave it out
+     */
+    public static byte[] beforeStatus(long inhabitedTime, Byte terrainPopulated) {
+        ChunkNbt nbt = root().compound("Level").longTag("InhabitedTime", inhabitedTime).filler();
+        if (terrainPopulated != null) {
+            nbt.byteTag("TerrainPopulated", terrainPopulated);
+        }
+        return nbt.end().end().toByteArray();
+    }
+
+    /**
+     * Tags of every type which a summary has to skip, including ones named like the fields but of other types
+     */
+    public ChunkNbt filler() {
+        tag(TAG_BYTE, "isLightOn").write(() -> this.out.writeByte(1));
+        tag(TAG_DOUBLE, "InhabitedTime").write(() -> this.out.writeDouble(1e9));
+        tag(TAG_INT, "Status").write(() -> this.out.writeInt(7));
+        tag(TAG_BYTE_ARRAY, "Biomes").write(() -> {
+            this.out.writeInt(256);
+            this.out.write(new byte[256]);
+        });
+        tag(TAG_INT_ARRAY, "HeightMap").write(() -> {
+            this.out.writeInt(3);
+            this.out.write(new byte[12]);
+        });
+        tag(TAG_LONG_ARRAY, "BlockStates").write(() -> {
+            this.out.writeInt(2);
+            this.out.write(new byte[16]);
+        });
+        // an empty list, and lists of fixed and of varying size elements
+        tag(TAG_LIST, "Entities").write(() -> {
+            this.out.writeByte(TAG_END);
+            this.out.writeInt(0);
+        });
+        tag(TAG_LIST, "Lights").write(() -> {
+            this.out.writeByte(TAG_LONG);
+            this.out.writeInt(4);
+            this.out.write(new byte[32]);
+        });
+        tag(TAG_LIST, "sections").write(() -> {
+            this.out.writeByte(TAG_COMPOUND);
+            this.out.writeInt(2);
+        });
+        for (int i = 0; i < 2; i++) {
+            intTag("Y", i);
+            // fields nested anywhere but the root and Level don't count
+            longTag("InhabitedTime", 1_000_000);
+            stringTag("Status", "minecraft:empty");
+            compound("block_states").stringTag("Name", "minecraft:stone").end();
+            this.write(() -> this.out.writeByte(TAG_END));
+        }
+        return this;
+    }
+
+    public ChunkNbt compound(String name) {
+        return tag(TAG_COMPOUND, name);
+    }
+
+    public ChunkNbt end() {
+        return write(() -> this.out.writeByte(TAG_END));
+    }
+
+    public ChunkNbt byteTag(String name, int value) {
+        return tag(TAG_BYTE, name).write(() -> this.out.writeByte(value));
+    }
+
+    public ChunkNbt intTag(String name, int value) {
+        return tag(TAG_INT, name).write(() -> this.out.writeInt(value));
+    }
+
+    public ChunkNbt longTag(String name, long value) {
+        return tag(TAG_LONG, name).write(() -> this.out.writeLong(value));
+    }
+
+    public ChunkNbt stringTag(String name, String value) {
+        return tag(TAG_STRING, name).write(() -> this.out.writeUTF(value));
+    }
+
+    /**
+     * Start a tag, its payload is up to the caller
+     */
+    public ChunkNbt tag(int type, String name) {
+        return write(() -> {
+            this.out.writeByte(type);
+            this.out.writeUTF(name);
+        });
+    }
+
+    /**
+     * Write bytes as they are, each given as an int for brevity
+     */
+    public ChunkNbt raw(int... bytes) {
+        return write(() -> {
+            for (int b : bytes) {
+                this.out.writeByte(b);
+            }
+        });
+    }
+
+    public byte[] toByteArray() {
+        return this.bytes.toByteArray();
+    }
+
+    private ChunkNbt write(Write write) {
+        try {
+            write.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    @FunctionalInterface
+    private interface Write {
+        void write() throws IOException;
+    }
+}
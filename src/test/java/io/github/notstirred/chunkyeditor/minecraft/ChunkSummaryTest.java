@@ -0,0 +1,131 @@
+package io.github.notstirred.chunkyeditor.minecraft;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static io.github.notstirred.chunkyeditor.minecraft.ChunkNbt.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkSummaryTest {
+    private static ChunkSummary read(byte[] nbt) throws IOException {
+        return ChunkSummary.read(new DataInputStream(new ByteArrayInputStream(nbt)));
+    }
+
+    @Test
+    void readsAChunkFromAfter118() throws IOException {
+        assertEquals(new ChunkSummary(3465, 1200, "full", true), read(modern(3465, 1200, "minecraft:full")));
+    }
+
+    @Test
+    void readsAChunkFromBefore118FromItsLevel() throws IOException {
+        assertEquals(new ChunkSummary(2586, 40, "structure_starts", false), read(legacy(2586, 40, "minecraft:structure_starts")));
+    }
+
+    @Test
+    void readsAChunkFromBefore113ByWhetherItWasPopulated() throws IOException {
+        assertEquals(new ChunkSummary(ChunkSummary.NO_DATA_VERSION, 5, null, true), read(beforeStatus(5, (byte) 1)));
+        assertEquals(new ChunkSummary(ChunkSummary.NO_DATA_VERSION, 5, null, false), read(beforeStatus(5, (byte) 0)));
+        // chunks which don't say are assumed to be fully generated
+        assertTrue(read(beforeStatus(5, null)).fullyGenerated());
+    }
+
+    @Test
+    void missingFieldsHaveDefaults() throws IOException {
+        assertEquals(new ChunkSummary(ChunkSummary.NO_DATA_VERSION, 0, null, true), read(root().filler().end().toByteArray()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"full", "minecraft:full", "fullchunk", "postprocessed"})
+    void finalStatusesAreFullyGenerated(String status) throws IOException {
+        assertTrue(read(modern(3465, 0, status)).fullyGenerated());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"empty", "minecraft:features", "light", "spawn", "minecraft:heightmaps", "carved"})
+    void otherStatusesAreNotFullyGenerated(String status) throws IOException {
+        ChunkSummary summary = read(legacy(2586, 0, status));
+        assertFalse(summary.fullyGenerated());
+        assertFalse(summary.status().startsWith("minecraft:"));
+    }
+
+    @Test
+    void stopsReadingOnceEveryFieldIsFound() throws IOException {
+        ChunkNbt fields = root().intTag("DataVersion", 3465).longTag("InhabitedTime", 9).stringTag("Status", "full");
+        byte[] complete = fields.toByteArray();
+        // an unknown tag, which would fail if it were read
+        byte[] followedByGarbage = fields.tag(99, "garbage").toByteArray();
+
+        assertEquals(new ChunkSummary(3465, 9, "full", true), read(complete));
+        assertEquals(new ChunkSummary(3465, 9, "full", true), read(followedByGarbage));
+    }
+
+    @Test
+    void truncatedChunksFail() throws IOException {
+        byte[] nbt = legacy(2586, 40, "full");
+        for (int length : new int[]{0, 1, 3, 20, 400, nbt.length - 10}) {
+            byte[] truncated = Arrays.copyOf(nbt, length);
+            assertThrows(IOException.class, () -> read(truncated), "cut to " + length + " bytes");
+        }
+        assertThrows(IOException.class, () -> read(Arrays.copyOf(beforeStatus(5, (byte) 1), 60)));
+    }
+
+    @Test
+    void rootMustBeACompound() {
+        assertThrows(IOException.class, () -> read(new byte[]{TAG_LIST, 0, 0, TAG_END, 0, 0, 0, 0}));
+    }
+
+    @Test
+    void unknownTagTypesFail() {
+        assertThrows(IOException.class, () -> read(root().tag(13, "what").raw(0, 0, 0, 0).end().toByteArray()));
+    }
+
+    @Test
+    void negativeLengthsFail() {
+        assertThrows(IOException.class, () -> read(root().tag(TAG_BYTE_ARRAY, "Biomes").raw(-1, -1, -1, -1).end().toByteArray()));
+        assertThrows(IOException.class, () -> read(root().tag(TAG_LIST, "Lights").raw(TAG_LONG, -128, 0, 0, 0).end().toByteArray()));
+    }
+
+    @Test
+    void deeplyNestedTagsFail() {
+        ChunkNbt nbt = root().tag(TAG_LIST, "deep");
+        for (int i = 0; i < 600; i++) {
+            nbt.raw(TAG_LIST, 0, 0, 0, 1);
+        }
+        nbt.raw(TAG_END, 0, 0, 0, 0);
+        assertThrows(IOException.class, () -> read(nbt.end().toByteArray()));
+    }
+
+    @Test
+    void inhabitedTimeBelowExcludesTheLimit() {
+        assertTrue(ChunkSummary.inhabitedTimeBelow(1200).test(new ChunkSummary(3465, 1199, "full", true)));
+        assertFalse(ChunkSummary.inhabitedTimeBelow(1200).test(new ChunkSummary(3465, 1200, "full", true)));
+        assertTrue(ChunkSummary.inhabitedTimeBelow(1).test(new ChunkSummary(3465, 0, "full", true)));
+        assertFalse(ChunkSummary.inhabitedTimeBelow(0).test(new ChunkSummary(3465, 0, "full", true)));
+    }
+
+    @Test
+    void notFullyGeneratedMatchesOnlyUnfinishedChunks() {
+        assertTrue(ChunkSummary.notFullyGenerated().test(new ChunkSummary(3465, 0, "features", false)));
+        assertFalse(ChunkSummary.notFullyGenerated().test(new ChunkSummary(3465, 0, "full", true)));
+    }
+
+    @Test
+    void dataVersionBetweenIncludesBothEnds() {
+        var between = ChunkSummary.dataVersionBetween(2586, 2730);
+        assertFalse(between.test(new ChunkSummary(2585, 0, "full", true)));
+        assertTrue(between.test(new ChunkSummary(2586, 0, "full", true)));
+        assertTrue(between.test(new ChunkSummary(2730, 0, "full", true)));
+        assertFalse(between.test(new ChunkSummary(2731, 0, "full", true)));
+        assertTrue(ChunkSummary.dataVersionBetween(2586, 2586).test(new ChunkSummary(2586, 0, "full", true)));
+
+        var beforeDataVersions = ChunkSummary.dataVersionBetween(ChunkSummary.NO_DATA_VERSION, 0);
+        assertTrue(beforeDataVersions.test(new ChunkSummary(ChunkSummary.NO_DATA_VERSION, 0, null, true)));
+        assertFalse(ChunkSummary.dataVersionBetween(0, 3465).test(new ChunkSummary(ChunkSummary.NO_DATA_VERSION, 0, null, true)));
+    }
+}
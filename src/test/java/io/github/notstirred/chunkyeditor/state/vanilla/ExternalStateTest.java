@@ -0,0 +1,116 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExternalStateTest {
+    @TempDir
+    Path directory;
+
+    private final StateJournal journal = new StateJournal();
+    private final SectorStore store = new SectorStore(SectorCodec.NONE, this.journal, Long.MAX_VALUE);
+
+    @AfterEach
+    void closeJournal() {
+        this.journal.close();
+    }
+
+    private static byte[] randomBytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Snapshot the content, leaving the file it was read from in place to be written over
+     */
+    private ExternalState snapshot(Path path, byte[] content) throws IOException {
+        Files.write(path, content);
+        return new ExternalState(path, this.store);
+    }
+
+    @Test
+    void onlyDifferingSectorsAreWritten() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        // more sectors than are read at once, with a partial sector at the end
+        byte[] content = randomBytes(100 * SECTOR_SIZE_BYTES + 100, 1);
+        ExternalState state = snapshot(regionPath, content);
+
+        byte[] changed = content.clone();
+        changed[3] ^= 1;
+        changed[70 * SECTOR_SIZE_BYTES + 10] ^= 1;
+        changed[changed.length - 1] ^= 1;
+        Files.write(regionPath, changed);
+
+        assertEquals(2 * SECTOR_SIZE_BYTES + 100, state.writeState(regionPath));
+        assertArrayEquals(content, Files.readAllBytes(regionPath));
+
+        assertEquals(0, state.writeState(regionPath), "nothing differs, so nothing is written");
+        state.release();
+    }
+
+    @Test
+    void longerFileIsTruncated() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] content = randomBytes(3 * SECTOR_SIZE_BYTES + 100, 2);
+        ExternalState state = snapshot(regionPath, content);
+
+        byte[] longer = Arrays.copyOf(content, 5 * SECTOR_SIZE_BYTES);
+        Files.write(regionPath, longer);
+
+        assertEquals(longer.length - content.length, state.writeState(regionPath));
+        assertArrayEquals(content, Files.readAllBytes(regionPath));
+        state.release();
+    }
+
+    @Test
+    void shorterFileIsExtended() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] content = randomBytes(4 * SECTOR_SIZE_BYTES, 3);
+        ExternalState state = snapshot(regionPath, content);
+
+        // cut partway through the second sector, and the rest of it would read as zero
+        byte[] shorter = Arrays.copyOf(content, SECTOR_SIZE_BYTES + 10);
+        Files.write(regionPath, shorter);
+
+        assertEquals(3 * SECTOR_SIZE_BYTES, state.writeState(regionPath));
+        assertArrayEquals(content, Files.readAllBytes(regionPath));
+        state.release();
+    }
+
+    @Test
+    void zeroSectorsPastTheEndOfTheFileAreWritten() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] content = new byte[3 * SECTOR_SIZE_BYTES];
+        ExternalState state = snapshot(regionPath, content);
+
+        Files.write(regionPath, new byte[SECTOR_SIZE_BYTES]);
+
+        assertEquals(2 * SECTOR_SIZE_BYTES, state.writeState(regionPath));
+        assertArrayEquals(content, Files.readAllBytes(regionPath));
+        state.release();
+    }
+
+    @Test
+    void missingFileIsCreated() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] content = randomBytes(2 * SECTOR_SIZE_BYTES + 1, 4);
+        ExternalState state = snapshot(regionPath, content);
+
+        Files.delete(regionPath);
+
+        assertEquals(content.length, state.writeState(regionPath));
+        assertArrayEquals(content, Files.readAllBytes(regionPath));
+        state.release();
+    }
+}
@@ -0,0 +1,276 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.state.State;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentHistoryTest {
+    private static final VanillaRegionPos REGION = new VanillaRegionPos(1, -2);
+    private static final VanillaRegionPos OTHER_REGION = new VanillaRegionPos(0, 0);
+
+    @TempDir
+    Path directory;
+    @TempDir
+    Path world;
+
+    private final List<StateJournal> journals = new ArrayList<>();
+    private final AtomicLong internalStatesBytes = new AtomicLong();
+
+    private StateJournal journal;
+    private SectorStore store;
+    private PersistentHistory history;
+
+    @AfterEach
+    void closeJournals() {
+        this.journals.forEach(StateJournal::close);
+    }
+
+    /**
+     * Open the history in the directory as if after a restart, closing the one open before
+     */
+    private void open() throws IOException {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        this.journal = StateJournal.openPersistent(this.directory);
+        this.journals.add(this.journal);
+        this.store = new SectorStore(SectorCodec.NONE, this.journal, Long.MAX_VALUE);
+        this.history = new PersistentHistory(this.directory, this.world, this.store, this.journal);
+    }
+
+    private long indexLength() throws IOException {
+        return Files.size(this.directory.resolve("index.bin"));
+    }
+
+    private byte[] index() throws IOException {
+        return Files.readAllBytes(this.directory.resolve("index.bin"));
+    }
+
+    private void assertAppendedTo(byte[] before) throws IOException {
+        byte[] after = index();
+        assertTrue(after.length > before.length);
+        assertArrayEquals(before, Arrays.copyOf(after, before.length), "the index was appended to, not rewritten");
+    }
+
+    /**
+     * A region of a header, a timestamp table and one sector of chunk data
+     */
+    private static byte[] content(int seed) {
+        byte[] content = new byte[HEADER_SIZE_BYTES + 2 * SECTOR_SIZE_BYTES];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private ExternalState state(int seed) {
+        byte[] content = content(seed);
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        this.store.internAll(content, content.length, sectors);
+        return new ExternalState(content.length, this.store, null, sectors.toArray(new SectorStore.Sector[0]));
+    }
+
+    /**
+     * Leave the region in the world as it is in the state of the seed
+     */
+    private void writeRegion(RegionKind kind, VanillaRegionPos regionPos, int seed) throws IOException {
+        Path regionDirectory = Files.createDirectories(kind.directoryIn(this.world));
+        Files.write(regionDirectory.resolve(regionPos.fileName()), content(seed));
+    }
+
+    private VanillaStateTracker.StateGroup group(State state) {
+        VanillaStateTracker.StateGroup group = new VanillaStateTracker.StateGroup(this.internalStatesBytes);
+        group.put(REGION, state);
+        return group;
+    }
+
+    private List<VanillaStateTracker.StateGroup> groups(int... seeds) {
+        List<VanillaStateTracker.StateGroup> groups = new ArrayList<>();
+        for (int seed : seeds) {
+            groups.add(group(state(seed)));
+        }
+        return groups;
+    }
+
+    private static void assertContents(List<VanillaStateTracker.StateGroup> groups, int... seeds) throws IOException {
+        assertEquals(seeds.length, groups.size());
+        for (int i = 0; i < seeds.length; i++) {
+            State header = new InternalState(Arrays.copyOf(content(seeds[i]), HEADER_SIZE_BYTES), null);
+            assertTrue(groups.get(i).get(REGION).headerMatches(header), "step " + i);
+        }
+    }
+
+    @Test
+    void everyKindIsLoadedAtTheSameStep() throws IOException {
+        open();
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, groups(1, 2));
+        histories.put(RegionKind.ENTITIES, List.of(group(state(3)), group(new MissingRegionState(this.store))));
+        this.history.save(histories, 0);
+        writeRegion(RegionKind.TERRAIN, REGION, 1);
+        writeRegion(RegionKind.ENTITIES, REGION, 3);
+
+        open();
+        PersistentHistory.Loaded loaded = this.history.load(new AtomicLong());
+
+        assertNotNull(loaded);
+        assertEquals(2, loaded.stateCount());
+        assertEquals(0, loaded.currentStateIdx());
+        assertEquals(EnumSet.of(RegionKind.TERRAIN, RegionKind.ENTITIES), loaded.histories().keySet());
+        List<VanillaStateTracker.StateGroup> entities = loaded.histories().get(RegionKind.ENTITIES);
+        assertContents(entities.subList(0, 1), 3);
+        assertInstanceOf(MissingRegionState.class, entities.get(1).get(REGION));
+    }
+
+    @Test
+    void historiesOutOfStepAreNotSaved() throws IOException {
+        open();
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, groups(1));
+        this.history.save(histories, 0);
+        byte[] saved = index();
+
+        histories.put(RegionKind.TERRAIN, groups(1, 2));
+        histories.put(RegionKind.POI, groups(3));
+        assertThrows(IOException.class, () -> this.history.save(histories, 1));
+
+        assertArrayEquals(saved, index());
+    }
+
+    @Test
+    void onlyWhatChangedIsAppended() throws IOException {
+        open();
+        List<VanillaStateTracker.StateGroup> terrain = groups(1, 2, 3);
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, terrain);
+        this.history.save(histories, 2);
+        byte[] first = index();
+
+        this.history.save(histories, 2);
+        assertEquals(first.length, indexLength(), "nothing changed, so nothing is written");
+
+        terrain.add(group(state(4)));
+        this.history.save(histories, 3);
+        assertAppendedTo(first);
+        assertTrue(indexLength() - first.length < first.length / 2, "only the new step is written");
+
+        terrain.get(1).put(REGION, state(5));
+        terrain.remove(3).release();
+        this.history.save(histories, 2);
+        writeRegion(RegionKind.TERRAIN, REGION, 3);
+
+        open();
+        PersistentHistory.Loaded loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertEquals(2, loaded.currentStateIdx());
+        assertContents(loaded.histories().get(RegionKind.TERRAIN), 1, 5, 3);
+    }
+
+    @Test
+    void loadedHistoryIsAppendedTo() throws IOException {
+        open();
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, groups(1, 2));
+        this.history.save(histories, 1);
+        writeRegion(RegionKind.TERRAIN, REGION, 2);
+
+        open();
+        PersistentHistory.Loaded loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        byte[] loadedIndex = index();
+        List<VanillaStateTracker.StateGroup> terrain = new ArrayList<>(loaded.histories().get(RegionKind.TERRAIN));
+        terrain.add(group(state(3)));
+        this.history.save(Map.of(RegionKind.TERRAIN, terrain), 2);
+        assertAppendedTo(loadedIndex);
+        writeRegion(RegionKind.TERRAIN, REGION, 3);
+
+        open();
+        loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertContents(loaded.histories().get(RegionKind.TERRAIN), 1, 2, 3);
+    }
+
+    @Test
+    void incompleteSaveIsIgnored() throws IOException {
+        open();
+        List<VanillaStateTracker.StateGroup> terrain = groups(1, 2);
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, terrain);
+        this.history.save(histories, 1);
+        writeRegion(RegionKind.TERRAIN, REGION, 2);
+        terrain.add(group(state(3)));
+        this.history.save(histories, 2);
+        // as if the last save was cut short, before the region was written
+        try (FileChannel channel = FileChannel.open(this.directory.resolve("index.bin"), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        open();
+        PersistentHistory.Loaded loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertEquals(1, loaded.currentStateIdx());
+        List<VanillaStateTracker.StateGroup> loadedTerrain = new ArrayList<>(loaded.histories().get(RegionKind.TERRAIN));
+        assertContents(loadedTerrain, 1, 2);
+
+        // the next save replaces what was cut short
+        loadedTerrain.add(group(state(4)));
+        this.history.save(Map.of(RegionKind.TERRAIN, loadedTerrain), 2);
+        writeRegion(RegionKind.TERRAIN, REGION, 4);
+        open();
+        loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertContents(loaded.histories().get(RegionKind.TERRAIN), 1, 2, 4);
+    }
+
+    @Test
+    void regionChangedBetweenSessionsLosesItsHistory() throws IOException {
+        open();
+        List<VanillaStateTracker.StateGroup> terrain = groups(1, 2);
+        terrain.get(0).put(OTHER_REGION, state(11));
+        terrain.get(1).put(OTHER_REGION, state(12));
+        Map<RegionKind, List<VanillaStateTracker.StateGroup>> histories = new EnumMap<>(RegionKind.class);
+        histories.put(RegionKind.TERRAIN, terrain);
+        this.history.save(histories, 1);
+        writeRegion(RegionKind.TERRAIN, REGION, 2);
+        writeRegion(RegionKind.TERRAIN, OTHER_REGION, 12);
+
+        open();
+        PersistentHistory.Loaded loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertContents(loaded.histories().get(RegionKind.TERRAIN), 1, 2);
+
+        // the game saved the region while the editor was closed
+        writeRegion(RegionKind.TERRAIN, REGION, 7);
+
+        open();
+        loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        List<VanillaStateTracker.StateGroup> loadedTerrain = loaded.histories().get(RegionKind.TERRAIN);
+        assertEquals(2, loadedTerrain.size());
+        for (VanillaStateTracker.StateGroup group : loadedTerrain) {
+            assertFalse(group.getStates().containsKey(REGION), "an undo would overwrite the game's changes");
+            assertNotNull(group.get(OTHER_REGION));
+        }
+
+        // dropping the region is saved, so it isn't checked again
+        this.history.save(Map.of(RegionKind.TERRAIN, loadedTerrain), 1);
+        writeRegion(RegionKind.TERRAIN, REGION, 8);
+        open();
+        loaded = this.history.load(new AtomicLong());
+        assertNotNull(loaded);
+        assertFalse(loaded.histories().get(RegionKind.TERRAIN).get(0).getStates().containsKey(REGION));
+        assertNotNull(loaded.histories().get(RegionKind.TERRAIN).get(0).get(OTHER_REGION));
+    }
+}
@@ -0,0 +1,316 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import io.github.notstirred.chunkyeditor.ChunkSelection;
+import io.github.notstirred.chunkyeditor.VanillaRegionPos;
+import io.github.notstirred.chunkyeditor.minecraft.ChunkNbt;
+import io.github.notstirred.chunkyeditor.minecraft.ChunkSummary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionChunkScannerTest {
+    private static final int GZIP = 1;
+    private static final int ZLIB = 2;
+    private static final int NONE = 3;
+    private static final int LZ4 = 4;
+    private static final int EXTERNAL = 128;
+
+    private static final VanillaRegionPos REGION = new VanillaRegionPos(-1, 2);
+    private static final Predicate<ChunkSummary> ANY = chunk -> true;
+
+    @TempDir
+    Path regionDirectory;
+
+    private static byte[] compress(int compression, byte[] nbt) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = switch (compression) {
+            case GZIP -> new GZIPOutputStream(bytes);
+            case ZLIB -> new DeflaterOutputStream(bytes);
+            default -> bytes;
+        }) {
+            out.write(nbt);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private RegionChunkScanner.Result scan(Predicate<ChunkSummary> filter) throws IOException {
+        return RegionChunkScanner.scan(this.regionDirectory, REGION, filter);
+    }
+
+    private static int chunkX(int index) {
+        return (REGION.x() << 5) + (index & 31);
+    }
+
+    private static int chunkZ(int index) {
+        return (REGION.z() << 5) + (index >> 5);
+    }
+
+    private static ChunkSelection selectionOf(int... indices) {
+        ChunkSelection selection = new ChunkSelection();
+        for (int index : indices) {
+            selection.add(chunkX(index), chunkZ(index));
+        }
+        return selection;
+    }
+
+    private static void assertMatches(ChunkSelection expected, RegionChunkScanner.Result result) {
+        IntListCollector actual = new IntListCollector();
+        result.matches().forEachChunkIndex(REGION, actual);
+        IntListCollector expectedIndices = new IntListCollector();
+        expected.forEachChunkIndex(REGION, expectedIndices);
+        assertEquals(expectedIndices.values, actual.values);
+        assertEquals(expected.chunkCount(), result.matches().chunkCount());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {GZIP, ZLIB, NONE})
+    void readsEachCompressionType(int compression) throws IOException {
+        new RegionFile()
+                .chunk(0, compression, ChunkNbt.modern(3465, 10, "full"))
+                .chunk(33, compression, ChunkNbt.modern(3465, 5000, "full"))
+                .chunk(1023, compression, ChunkNbt.modern(3465, 0, "features"))
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        RegionChunkScanner.Result result = scan(ChunkSummary.inhabitedTimeBelow(100));
+        assertMatches(selectionOf(0, 1023), result);
+        assertEquals(3, result.chunksScanned());
+        assertEquals(0, result.chunksUnreadable());
+        assertTrue(result.bytesRead() > HEADER_SIZE_BYTES);
+    }
+
+    @Test
+    void readsLayoutsFromBeforeAndAfter118() throws IOException {
+        new RegionFile()
+                .chunk(1, ZLIB, ChunkNbt.legacy(2586, 0, "full"))
+                .chunk(2, ZLIB, ChunkNbt.legacy(2586, 0, "minecraft:liquid_carvers"))
+                .chunk(3, ZLIB, ChunkNbt.modern(2860, 0, "minecraft:full"))
+                .chunk(4, ZLIB, ChunkNbt.modern(2860, 0, "minecraft:noise"))
+                .chunk(5, ZLIB, ChunkNbt.beforeStatus(0, (byte) 0))
+                .chunk(6, ZLIB, ChunkNbt.beforeStatus(0, (byte) 1))
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        assertMatches(selectionOf(2, 4, 5), scan(ChunkSummary.notFullyGenerated()));
+        assertMatches(selectionOf(1, 2), scan(ChunkSummary.dataVersionBetween(2586, 2859)));
+        assertMatches(selectionOf(3, 4), scan(ChunkSummary.dataVersionBetween(2860, 2860)));
+        assertMatches(selectionOf(5, 6), scan(ChunkSummary.dataVersionBetween(ChunkSummary.NO_DATA_VERSION, ChunkSummary.NO_DATA_VERSION)));
+    }
+
+    @Test
+    void predicateBoundariesMatchTheSummary() throws IOException {
+        new RegionFile()
+                .chunk(0, ZLIB, ChunkNbt.modern(3464, 1199, "full"))
+                .chunk(1, ZLIB, ChunkNbt.modern(3465, 1200, "full"))
+                .chunk(2, ZLIB, ChunkNbt.modern(3466, 1201, "full"))
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        assertMatches(selectionOf(0), scan(ChunkSummary.inhabitedTimeBelow(1200)));
+        assertMatches(selectionOf(0, 1), scan(ChunkSummary.inhabitedTimeBelow(1201)));
+        assertMatches(selectionOf(), scan(ChunkSummary.inhabitedTimeBelow(1199)));
+        assertMatches(selectionOf(1), scan(ChunkSummary.dataVersionBetween(3465, 3465)));
+        assertMatches(selectionOf(0, 1, 2), scan(ChunkSummary.dataVersionBetween(3464, 3466)));
+        assertMatches(selectionOf(), scan(ChunkSummary.notFullyGenerated()));
+        // conditions are combined by the caller
+        assertMatches(selectionOf(1), scan(ChunkSummary.inhabitedTimeBelow(1201).and(ChunkSummary.dataVersionBetween(3465, 3466))));
+    }
+
+    @Test
+    void chunksAreMatchedWhateverTheirOrderInTheFile() throws IOException {
+        RegionFile region = new RegionFile();
+        int[] indices = {1000, 5, 512, 31, 32, 0};
+        for (int index : indices) {
+            region.chunk(index, ZLIB, ChunkNbt.modern(3465, 0, "full"));
+        }
+        region.write(this.regionDirectory.resolve(REGION.fileName()));
+
+        RegionChunkScanner.Result result = scan(ANY);
+        assertMatches(selectionOf(indices), result);
+        for (int index : indices) {
+            assertTrue(result.matches().contains(chunkX(index), chunkZ(index)));
+        }
+    }
+
+    @Test
+    void readsChunksStoredInTheirOwnFile() throws IOException {
+        int index = 37;
+        Files.write(this.regionDirectory.resolve(String.format("c.%d.%d.mcc", chunkX(index), chunkZ(index))),
+                compress(ZLIB, ChunkNbt.modern(3465, 0, "full")));
+        new RegionFile()
+                .record(index, EXTERNAL | ZLIB, new byte[0], 1)
+                .record(38, EXTERNAL | ZLIB, new byte[0], 1) // its file is missing
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        RegionChunkScanner.Result result = scan(ANY);
+        assertMatches(selectionOf(index), result);
+        assertEquals(2, result.chunksScanned());
+        assertEquals(1, result.chunksUnreadable());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {LZ4, 0, 99, EXTERNAL | LZ4})
+    void unsupportedCompressionNeverMatches(int compression) throws IOException {
+        new RegionFile()
+                .chunk(0, compression, ChunkNbt.modern(3465, 0, "full"))
+                .chunk(1, ZLIB, ChunkNbt.modern(3465, 0, "full"))
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        RegionChunkScanner.Result result = scan(ANY);
+        assertMatches(selectionOf(1), result);
+        assertEquals(1, result.chunksUnreadable());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {GZIP, ZLIB, NONE})
+    void corruptChunksNeverMatch(int compression) throws IOException {
+        byte[] compressed = compress(compression, ChunkNbt.modern(3465, 0, "full"));
+        byte[] corrupt = compressed.clone();
+        for (int i = 0; i < corrupt.length; i += 3) {
+            corrupt[i] ^= (byte) 0x5A;
+        }
+        new RegionFile()
+                .record(0, compression, corrupt, 1)
+                .record(1, compression, Arrays.copyOf(compressed, compressed.length / 2), 1)
+                .record(2, compression, new byte[0], 1)
+                .chunk(3, compression, ChunkNbt.modern(3465, 0, "full"))
+                .write(this.regionDirectory.resolve(REGION.fileName()));
+
+        RegionChunkScanner.Result result = scan(ANY);
+        assertMatches(selectionOf(3), result);
+        assertEquals(4, result.chunksScanned());
+        assertEquals(3, result.chunksUnreadable());
+    }
+
+    @Test
+    void invalidLocationsAndLengthsNeverMatch() throws IOException {
+        byte[] nbt = compress(ZLIB, ChunkNbt.modern(3465, 0, "full"));
+        RegionFile region = new RegionFile()
+                .chunk(0, ZLIB, ChunkNbt.modern(3465, 0, "full"))
+                .location(1, 1, 1) // within the header
+                .location(2, 10_000, 1) // past the end of the file
+                .record(3, ZLIB, nbt, 1)
+                .lengthOfLast(2 * SECTOR_SIZE_BYTES) // longer than its sectors
+                .record(4, ZLIB, nbt, 1)
+                .lengthOfLast(0) // not even the compression type
+                .record(5, ZLIB, nbt, 1);
+        byte[] file = region.build();
+        // the last chunk is cut short by the end of the file
+        Files.write(this.regionDirectory.resolve(REGION.fileName()), Arrays.copyOf(file, file.length - SECTOR_SIZE_BYTES + 10));
+
+        RegionChunkScanner.Result result = scan(ANY);
+        assertMatches(selectionOf(0), result);
+        assertEquals(6, result.chunksScanned());
+        assertEquals(5, result.chunksUnreadable());
+    }
+
+    @Test
+    void missingRegionHasNoChunks() throws IOException {
+        RegionChunkScanner.Result result = scan(ANY);
+        assertTrue(result.matches().isEmpty());
+        assertEquals(0, result.chunksScanned());
+        assertEquals(0, result.bytesRead());
+    }
+
+    @Test
+    void regionShorterThanItsHeaderHasNoChunks() throws IOException {
+        Files.write(this.regionDirectory.resolve(REGION.fileName()), new byte[100]);
+        RegionChunkScanner.Result result = scan(ANY);
+        assertTrue(result.matches().isEmpty());
+        assertEquals(0, result.chunksScanned());
+    }
+
+    @Test
+    void emptyRegionHasNoChunks() throws IOException {
+        new RegionFile().write(this.regionDirectory.resolve(REGION.fileName()));
+        RegionChunkScanner.Result result = scan(ANY);
+        assertTrue(result.matches().isEmpty());
+        assertEquals(0, result.chunksScanned());
+        assertEquals(HEADER_SIZE_BYTES, result.bytesRead());
+    }
+
+    /**
+     * Lays out a region file, with chunks in the order they are added
+     */
+    private static class RegionFile {
+        private final int[] locations = new int[1024];
+        private final List<byte[]> sectors = new ArrayList<>();
+        private int nextSector = 2;
+
+        RegionFile chunk(int index, int compression, byte[] nbt) {
+            byte[] compressed = compress(compression, nbt);
+            return record(index, compression, compressed, (compressed.length + 5 + SECTOR_SIZE_BYTES - 1) / SECTOR_SIZE_BYTES);
+        }
+
+        /**
+         * @param data Written after the length and compression type as it is
+         */
+        RegionFile record(int index, int compression, byte[] data, int sectorCount) {
+            ByteBuffer record = ByteBuffer.allocate(sectorCount * SECTOR_SIZE_BYTES);
+            record.putInt(data.length + 1).put((byte) compression).put(data);
+            this.sectors.add(record.array());
+            location(index, this.nextSector, sectorCount);
+            this.nextSector += sectorCount;
+            return this;
+        }
+
+        /**
+         * Point a chunk anywhere, without writing anything there
+         */
+        RegionFile location(int index, int sectorOffset, int sectorCount) {
+            this.locations[index] = sectorOffset << 8 | sectorCount;
+            return this;
+        }
+
+        /**
+         * Overwrite the stored length of the last record
+         */
+        RegionFile lengthOfLast(int length) {
+            ByteBuffer.wrap(this.sectors.get(this.sectors.size() - 1)).putInt(0, length);
+            return this;
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ByteBuffer header = ByteBuffer.allocate(2 * HEADER_SIZE_BYTES);
+            for (int location : this.locations) {
+                header.putInt(location);
+            }
+            bytes.writeBytes(header.array());
+            this.sectors.forEach(bytes::writeBytes);
+            return bytes.toByteArray();
+        }
+
+        void write(Path path) throws IOException {
+            Files.write(path, build());
+        }
+    }
+
+    private static class IntListCollector implements IntConsumer {
+        final List<Integer> values = new ArrayList<>();
+
+        @Override
+        public void accept(int value) {
+            this.values.add(value);
+        }
+    }
+}
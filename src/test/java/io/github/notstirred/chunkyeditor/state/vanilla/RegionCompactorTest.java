@@ -0,0 +1,131 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.RegionHeaderWriter.LOCATION_ENTRY_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionCompactorTest {
+    private static final int FIRST_DATA_SECTOR = 2;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A region with random timestamps and random chunk data, where every chunk is {@code {index, sectorOffset,
+     * sectorCount}}. The file ends where the last chunk does, less {@code shortBy} bytes.
+     */
+    private static byte[] region(int shortBy, int[]... chunks) {
+        int sectors = FIRST_DATA_SECTOR;
+        for (int[] chunk : chunks) {
+            sectors = Math.max(sectors, chunk[1] + chunk[2]);
+        }
+        byte[] region = new byte[sectors * SECTOR_SIZE_BYTES - shortBy];
+        Random random = new Random(chunks.length);
+        random.nextBytes(region);
+        ByteBuffer locations = ByteBuffer.wrap(region, 0, HEADER_SIZE_BYTES);
+        for (int i = 0; i < HEADER_SIZE_BYTES / LOCATION_ENTRY_BYTES; i++) {
+            locations.putInt(i * LOCATION_ENTRY_BYTES, 0);
+        }
+        for (int[] chunk : chunks) {
+            locations.putInt(chunk[0] * LOCATION_ENTRY_BYTES, chunk[1] << 8 | chunk[2]);
+        }
+        return region;
+    }
+
+    private static int location(byte[] region, int index) {
+        return ByteBuffer.wrap(region).getInt(index * LOCATION_ENTRY_BYTES);
+    }
+
+    /**
+     * Assert the chunk at {@code originalOffset} in the original region is in the compacted one at {@code offset}
+     */
+    private static void assertChunkMoved(byte[] original, byte[] compacted, int index, int originalOffset, int offset, int count) {
+        assertEquals(offset << 8 | count, location(compacted, index), "location of chunk " + index);
+        int from = originalOffset * SECTOR_SIZE_BYTES;
+        int length = Math.min(count * SECTOR_SIZE_BYTES, original.length - from);
+        assertArrayEquals(Arrays.copyOfRange(original, from, from + length),
+                Arrays.copyOfRange(compacted, offset * SECTOR_SIZE_BYTES, offset * SECTOR_SIZE_BYTES + length),
+                "data of chunk " + index);
+    }
+
+    @Test
+    void liveChunksArePackedInFileOrder() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        // the last chunk is cut short, as a region written without padding would be
+        byte[] original = region(100, new int[]{0, 10, 2}, new int[]{5, 3, 1}, new int[]{1023, 20, 3});
+        Files.write(regionPath, original);
+
+        RegionCompactor.Result result = RegionCompactor.compact(regionPath);
+
+        byte[] compacted = Files.readAllBytes(regionPath);
+        assertEquals(original.length, result.originalSize());
+        assertEquals(8L * SECTOR_SIZE_BYTES, result.compactedSize());
+        assertEquals(result.compactedSize(), compacted.length, "every chunk is still sector aligned");
+        assertArrayEquals(Arrays.copyOfRange(original, HEADER_SIZE_BYTES, 2 * HEADER_SIZE_BYTES),
+                Arrays.copyOfRange(compacted, HEADER_SIZE_BYTES, 2 * HEADER_SIZE_BYTES), "timestamps are kept");
+        assertChunkMoved(original, compacted, 5, 3, 2, 1);
+        assertChunkMoved(original, compacted, 0, 10, 3, 2);
+        assertChunkMoved(original, compacted, 1023, 20, 5, 3);
+        for (int i = 0; i < HEADER_SIZE_BYTES / LOCATION_ENTRY_BYTES; i++) {
+            if (i != 0 && i != 5 && i != 1023) {
+                assertEquals(0, location(compacted, i), "chunk " + i + " is still absent");
+            }
+        }
+        assertFalse(Files.exists(this.directory.resolve("r.0.0.mca.compacting")));
+    }
+
+    @Test
+    void packedRegionIsUntouched() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] original = region(0, new int[]{0, 2, 2}, new int[]{1, 4, 1});
+        Files.write(regionPath, original);
+
+        RegionCompactor.Result result = RegionCompactor.compact(regionPath);
+
+        assertEquals(0, result.reclaimedBytes());
+        assertArrayEquals(original, Files.readAllBytes(regionPath));
+    }
+
+    private void assertRefused(byte[] original) throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        Files.write(regionPath, original);
+
+        assertThrows(IOException.class, () -> RegionCompactor.compact(regionPath));
+
+        assertArrayEquals(original, Files.readAllBytes(regionPath));
+        assertFalse(Files.exists(this.directory.resolve("r.0.0.mca.compacting")));
+    }
+
+    @Test
+    void overlappingChunksAreRefused() throws IOException {
+        assertRefused(region(0, new int[]{0, 10, 3}, new int[]{1, 12, 1}, new int[]{2, 20, 1}));
+    }
+
+    @Test
+    void chunkPastTheEndIsRefused() throws IOException {
+        byte[] original = region(0, new int[]{0, 10, 1});
+        ByteBuffer.wrap(original).putInt(LOCATION_ENTRY_BYTES, 11 << 8 | 1);
+        assertRefused(original);
+    }
+
+    @Test
+    void chunkInTheTablesIsRefused() throws IOException {
+        assertRefused(region(0, new int[]{0, 1, 1}, new int[]{1, 10, 1}));
+    }
+
+    @Test
+    void chunkWithoutSectorsIsRefused() throws IOException {
+        assertRefused(region(0, new int[]{0, 5, 0}, new int[]{1, 10, 1}));
+    }
+}
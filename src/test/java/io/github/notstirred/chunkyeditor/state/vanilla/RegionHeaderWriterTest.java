@@ -0,0 +1,100 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.RegionHeaderWriter.LOCATION_ENTRY_BYTES;
+import static io.github.notstirred.chunkyeditor.state.vanilla.VanillaWorldState.HEADER_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RegionHeaderWriterTest {
+    @TempDir
+    Path directory;
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void onlyTheChangedRangeIsWritten() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] original = randomBytes(3 * HEADER_SIZE_BYTES);
+        // no byte of a cleared entry may already be zero
+        Arrays.fill(original, 0, HEADER_SIZE_BYTES, (byte) 0x7F);
+        Files.write(regionPath, original);
+
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+            writer.clearChunk(2);
+            writer.clearChunk(4);
+            assertEquals(2 * LOCATION_ENTRY_BYTES, writer.commit());
+            assertEquals(3 * LOCATION_ENTRY_BYTES, writer.writtenBytes(), "from the first changed byte to the last");
+            assertEquals(0, writer.commit(), "nothing is left to write");
+            assertEquals(3 * LOCATION_ENTRY_BYTES, writer.writtenBytes());
+        }
+
+        byte[] expected = original.clone();
+        Arrays.fill(expected, 2 * LOCATION_ENTRY_BYTES, 3 * LOCATION_ENTRY_BYTES, (byte) 0);
+        Arrays.fill(expected, 4 * LOCATION_ENTRY_BYTES, 5 * LOCATION_ENTRY_BYTES, (byte) 0);
+        assertArrayEquals(expected, Files.readAllBytes(regionPath));
+    }
+
+    @Test
+    void shortFileGetsACompleteHeader() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] original = randomBytes(100);
+        Files.write(regionPath, original);
+
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+            assertEquals(original.length, writer.fileLength());
+            writer.setLocation(1000, 0x010203 << 8 | 4);
+            assertEquals(4, writer.commit());
+            assertEquals(HEADER_SIZE_BYTES, writer.writtenBytes());
+        }
+
+        byte[] written = Files.readAllBytes(regionPath);
+        assertEquals(HEADER_SIZE_BYTES, written.length);
+        assertArrayEquals(original, Arrays.copyOf(written, original.length));
+        assertEquals(0x010203 << 8 | 4, ByteBuffer.wrap(written).getInt(1000 * LOCATION_ENTRY_BYTES));
+        for (int i = original.length; i < HEADER_SIZE_BYTES; i++) {
+            if (i < 1000 * LOCATION_ENTRY_BYTES || i >= 1001 * LOCATION_ENTRY_BYTES) {
+                assertEquals(0, written[i], "byte " + i + " past the end of the file reads as zero");
+            }
+        }
+    }
+
+    @Test
+    void shortFileGetsACompleteHeaderWithoutEdits() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] original = randomBytes(HEADER_SIZE_BYTES - 1);
+        Files.write(regionPath, original);
+
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+            assertEquals(0, writer.commit());
+        }
+
+        assertArrayEquals(Arrays.copyOf(original, HEADER_SIZE_BYTES), Files.readAllBytes(regionPath));
+    }
+
+    @Test
+    void missingFileIsCreated() throws IOException {
+        Path regionPath = this.directory.resolve("r.0.0.mca");
+        byte[] header = randomBytes(HEADER_SIZE_BYTES);
+
+        try (RegionHeaderWriter writer = RegionHeaderWriter.open(regionPath)) {
+            assertEquals(0, writer.fileLength());
+            writer.setHeader(header);
+            writer.commit();
+        }
+
+        assertArrayEquals(header, Files.readAllBytes(regionPath));
+    }
+}
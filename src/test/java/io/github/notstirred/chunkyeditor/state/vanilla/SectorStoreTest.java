@@ -0,0 +1,207 @@
+package io.github.notstirred.chunkyeditor.state.vanilla;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.notstirred.chunkyeditor.state.vanilla.SectorStore.SECTOR_SIZE_BYTES;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SectorStoreTest {
+    private final List<StateJournal> journals = new ArrayList<>();
+
+    @AfterEach
+    void closeJournals() {
+        this.journals.forEach(StateJournal::close);
+    }
+
+    private StateJournal journal(StateJournal journal) {
+        this.journals.add(journal);
+        return journal;
+    }
+
+    /**
+     * Distinct sectors, with a partial sector at the end. Every other sector is random, so that it doesn't shrink when
+     * encoded, and the rest are a repeated byte which does.
+     */
+    private static byte[] distinctSectors(int sectorCount, int lastSectorLength) {
+        Random random = new Random(sectorCount);
+        byte[] data = new byte[(sectorCount - 1) * SECTOR_SIZE_BYTES + lastSectorLength];
+        for (int i = 0; i < sectorCount; i++) {
+            int offset = i * SECTOR_SIZE_BYTES;
+            int end = Math.min(data.length, offset + SECTOR_SIZE_BYTES);
+            if (i % 2 == 0) {
+                byte[] sector = new byte[end - offset];
+                random.nextBytes(sector);
+                System.arraycopy(sector, 0, data, offset, sector.length);
+            } else {
+                Arrays.fill(data, offset, end, (byte) i);
+            }
+        }
+        return data;
+    }
+
+    private static void assertContent(SectorStore store, List<SectorStore.Sector> sectors, byte[] expected) throws IOException {
+        byte[] actual = new byte[expected.length];
+        for (int i = 0; i < sectors.size(); i++) {
+            SectorStore.Sector sector = sectors.get(i);
+            store.read(sector, 0, actual, i * SECTOR_SIZE_BYTES, sector.length);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @ParameterizedTest
+    @EnumSource(SectorCodec.class)
+    void sectorsPastTheBudgetAreReadBackFromDisk(SectorCodec codec) throws IOException {
+        SectorStore store = new SectorStore(codec, journal(new StateJournal()), 0);
+        byte[] data = distinctSectors(5, 100);
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        store.internAll(data, data.length, sectors);
+
+        assertEquals(0, store.residentBytes());
+        assertTrue(store.diskBytes() > 0);
+        assertContent(store, sectors, data);
+    }
+
+    @ParameterizedTest
+    @EnumSource(SectorCodec.class)
+    void failedAppendKeepsEachSectorInMemory(SectorCodec codec) throws IOException {
+        SectorStore store = new SectorStore(codec, journal(new FailingJournal()), 0);
+        byte[] data = distinctSectors(5, 100);
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        store.internAll(data, data.length, sectors);
+
+        assertEquals(0, store.diskBytes());
+        assertTrue(store.residentBytes() > 0);
+        assertContent(store, sectors, data);
+    }
+
+    @Test
+    void identicalSectorsAreStoredOnce() throws IOException {
+        SectorStore store = new SectorStore(SectorCodec.NONE, journal(new StateJournal()), Long.MAX_VALUE);
+        byte[] data = new byte[3 * SECTOR_SIZE_BYTES];
+        Arrays.fill(data, (byte) 7);
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        store.internAll(data, data.length, sectors);
+
+        assertEquals(1, store.sectorCount());
+        assertSame(sectors.get(0), sectors.get(2));
+        assertEquals(SECTOR_SIZE_BYTES, store.residentBytes());
+        assertContent(store, sectors, data);
+    }
+
+    private static List<SectorStore.Sector> internSpillable(SectorStore store, byte[] data) {
+        List<SectorStore.Sector> sectors = new ArrayList<>();
+        store.internAll(data, data.length, sectors);
+        sectors.forEach(store::markSpillable);
+        return sectors;
+    }
+
+    @Test
+    void spillDoesNotHoldTheStoreWhileWriting() throws Exception {
+        BlockingJournal journal = (BlockingJournal) journal(new BlockingJournal());
+        SectorStore store = new SectorStore(SectorCodec.NONE, journal, Long.MAX_VALUE);
+        byte[] data = distinctSectors(4, SECTOR_SIZE_BYTES);
+        List<SectorStore.Sector> sectors = internSpillable(store, data);
+
+        CompletableFuture<Void> spill = CompletableFuture.runAsync(store::spillAll);
+        assertTrue(journal.appending.await(10, TimeUnit.SECONDS));
+
+        // the sectors being written are still read from memory, and other sectors can be interned
+        assertContent(store, sectors, data);
+        byte[] other = new byte[2 * SECTOR_SIZE_BYTES + 100];
+        new Random(-1).nextBytes(other);
+        List<SectorStore.Sector> otherSectors = new ArrayList<>();
+        store.internAll(other, other.length, otherSectors);
+        assertContent(store, otherSectors, other);
+
+        journal.proceed.countDown();
+        spill.get(10, TimeUnit.SECONDS);
+        assertEquals(4L * SECTOR_SIZE_BYTES, store.diskBytes());
+        assertEquals(other.length, store.residentBytes(), "only the sectors which weren't spillable are left");
+        assertContent(store, sectors, data);
+    }
+
+    @Test
+    void sectorReleasedWhileSpillingIsFreed() throws Exception {
+        BlockingJournal journal = (BlockingJournal) journal(new BlockingJournal());
+        SectorStore store = new SectorStore(SectorCodec.NONE, journal, Long.MAX_VALUE);
+        byte[] data = distinctSectors(2, SECTOR_SIZE_BYTES);
+        List<SectorStore.Sector> sectors = internSpillable(store, data);
+
+        CompletableFuture<Void> spill = CompletableFuture.runAsync(store::spillAll);
+        assertTrue(journal.appending.await(10, TimeUnit.SECONDS));
+        store.release(sectors.get(0));
+        journal.proceed.countDown();
+        spill.get(10, TimeUnit.SECONDS);
+
+        assertEquals(0, store.residentBytes());
+        assertEquals(SECTOR_SIZE_BYTES, store.diskBytes());
+        assertEquals(SECTOR_SIZE_BYTES, journal.freedBytes.get(), "the released sector's copy in the journal is freed");
+        assertContent(store, sectors.subList(1, 2), Arrays.copyOfRange(data, SECTOR_SIZE_BYTES, data.length));
+    }
+
+    @Test
+    void failedSpillKeepsSectorsInMemory() throws IOException {
+        SectorStore store = new SectorStore(SectorCodec.NONE, journal(new FailingJournal()), Long.MAX_VALUE);
+        byte[] data = distinctSectors(3, 100);
+        List<SectorStore.Sector> sectors = internSpillable(store, data);
+        long resident = store.residentBytes();
+
+        store.spillAll();
+
+        assertEquals(resident, store.residentBytes());
+        assertEquals(0, store.diskBytes());
+        assertContent(store, sectors, data);
+    }
+
+    /**
+     * A journal whose appends wait until it's told to proceed
+     */
+    private static class BlockingJournal extends StateJournal {
+        final CountDownLatch appending = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicLong freedBytes = new AtomicLong();
+
+        @Override
+        public long append(ByteBuffer... parts) throws IOException {
+            this.appending.countDown();
+            try {
+                if (!this.proceed.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Never told to proceed");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.append(parts);
+        }
+
+        @Override
+        public synchronized void free(long address, int length) {
+            this.freedBytes.addAndGet(length);
+            super.free(address, length);
+        }
+    }
+
+    /**
+     * A journal with no space left, failing every append
+     */
+    private static class FailingJournal extends StateJournal {
+        @Override
+        public synchronized long append(ByteBuffer... parts) throws IOException {
+            throw new IOException("No space left on device");
+        }
+    }
+}